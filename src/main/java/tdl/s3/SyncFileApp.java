@@ -4,6 +4,7 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import tdl.s3.credentials.AWSSecretProperties;
+import tdl.s3.sync.Bundling;
 import tdl.s3.sync.Filters;
 import tdl.s3.sync.RemoteSync;
 import tdl.s3.sync.Source;
@@ -11,10 +12,18 @@ import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.sync.destination.S3BucketDestination;
 import tdl.s3.sync.progress.UploadStatsProgressListener;
-
+import tdl.s3.upload.AdaptiveConcurrency;
+import tdl.s3.upload.BandwidthLimiter;
+import tdl.s3.upload.BandwidthSchedule;
+import tdl.s3.upload.PartHedging;
+import tdl.s3.upload.UploadPriorities;
+import tdl.s3.upload.UploadPriorityPolicy;
+
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.NumberFormat;
+import java.util.Collections;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -33,6 +42,45 @@ public class SyncFileApp {
     @Parameter(names = {"--filter"})
     private String regex = "^[0-9a-zA-Z\\_]+\\.mp4";
 
+    @Parameter(names = {"--manifest"})
+    private String manifestPath;
+
+    @Parameter(names = {"--scan-cache"})
+    private String scanCachePath;
+
+    @Parameter(names = {"--journal"})
+    private String journalPath;
+
+    @Parameter(names = {"--priority"})
+    private String priority = "fifo";
+
+    //Bytes per second, such as 10M, or rates by time of day, such as 08:00=2M,19:00=0
+    @Parameter(names = {"--max-rate"})
+    private String maxRate;
+
+    //Upper bound of the parts uploaded at the same time, which then adapts to the link
+    @Parameter(names = {"--max-parts-in-flight"})
+    private Integer maxPartsInFlight;
+
+    //Parts slower than that percentile of the latest parts are sent a second time, such as 0.99
+    @Parameter(names = {"--hedge-percentile"})
+    private Double hedgePercentile;
+
+    //Finished files smaller than that many bytes are sent in a single request, 0 to always use multipart uploads
+    @Parameter(names = {"--single-request-threshold"})
+    private Long singleRequestThreshold;
+
+    //Directory keeping the bundle indexes, setting it packs the small files into bundles
+    @Parameter(names = {"--bundle-dir"})
+    private String bundleDir;
+
+    //Files smaller than that many bytes are bundled
+    @Parameter(names = {"--bundle-max-file-size"})
+    private long bundleMaxFileSize = Bundling.DEFAULT_MAX_FILE_SIZE;
+
+    @Parameter(names = {"--watch", "-w"})
+    private boolean watch = false;
+
     private static final NumberFormat percentageFormatter = NumberFormat.getPercentInstance();
     private static final NumberFormat uploadSpeedFormatter = NumberFormat.getNumberInstance();
 
@@ -56,6 +104,28 @@ public class SyncFileApp {
         Source source = buildSource();
         Destination destination = buildDestination();
         RemoteSync sync = new RemoteSync(source, destination);
+        if (manifestPath != null) {
+            sync.setManifestPath(Paths.get(manifestPath));
+        }
+        if (scanCachePath != null) {
+            sync.setScanCachePath(Paths.get(scanCachePath), regex);
+        }
+        if (journalPath != null) {
+            sync.setUploadJournalDirectory(Paths.get(journalPath));
+        }
+        sync.setPriorityPolicy(buildPriorityPolicy());
+        if (maxRate != null) {
+            sync.setBandwidthLimiters(Collections.singletonList(new BandwidthLimiter(BandwidthSchedule.parse(maxRate))));
+        }
+        if (maxPartsInFlight != null) {
+            sync.setAdaptiveConcurrency(new AdaptiveConcurrency(maxPartsInFlight));
+        }
+        if (hedgePercentile != null) {
+            sync.setPartHedging(new PartHedging(hedgePercentile));
+        }
+        if (singleRequestThreshold != null) {
+            sync.setSingleRequestThreshold(singleRequestThreshold);
+        }
 
         // Check destination
         destination.startS3SyncSession();
@@ -80,7 +150,26 @@ public class SyncFileApp {
         }, 0, 1000);
 
         // Run (blocking)
-        sync.run();
+        if (watch) {
+            //The JVM halts once the hooks return, so the hook waits for the uploads to drain
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                sync.stopWatching();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            try {
+                sync.watch();
+            } catch (IOException ex) {
+                throw new DestinationOperationException("Cannot watch " + dirPath, ex);
+            }
+        } else {
+            sync.run();
+        }
+        sync.shutdown();
         timer.cancel();
     }
 
@@ -88,10 +177,32 @@ public class SyncFileApp {
         Filters filters = Filters.getBuilder()
                 .include(Filters.matches(regex))
                 .create();
-        return Source.getBuilder(Paths.get(dirPath))
+        Source.Builder builder = Source.getBuilder(Paths.get(dirPath))
                 .setFilters(filters)
-                .setRecursive(recursive)
-                .create();
+                .setRecursive(recursive);
+        if (bundleDir != null) {
+            builder.setBundling(Bundling.getBuilder(Paths.get(bundleDir))
+                    .setMaxFileSize(bundleMaxFileSize)
+                    .create());
+        }
+        return builder.create();
+    }
+
+    private UploadPriorityPolicy buildPriorityPolicy() {
+        switch (priority) {
+            case "fifo":
+                return UploadPriorities.fifo();
+            case "just-finished":
+                return UploadPriorities.justFinishedFirst();
+            case "falling-behind":
+                return UploadPriorities.fallingBehindFirst();
+            case "smallest":
+                return UploadPriorities.smallestFirst();
+            case "oldest":
+                return UploadPriorities.oldestFirst();
+            default:
+                throw new IllegalArgumentException("Unknown priority policy " + priority);
+        }
     }
 
     private Destination buildDestination() {
@@ -0,0 +1,193 @@
+package tdl.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import tdl.s3.credentials.AWSSecretProperties;
+import tdl.s3.sync.Bundling;
+import tdl.s3.sync.Filters;
+import tdl.s3.sync.RemoteSync;
+import tdl.s3.sync.Source;
+import tdl.s3.sync.SyncHost;
+import tdl.s3.sync.destination.Destination;
+import tdl.s3.sync.destination.DestinationOperationException;
+import tdl.s3.sync.destination.S3BucketDestination;
+import tdl.s3.upload.AdaptiveConcurrency;
+import tdl.s3.upload.BandwidthLimiter;
+import tdl.s3.upload.BandwidthSchedule;
+import tdl.s3.upload.PartHedging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs several syncs in one process, as listed in a jobs file such as:
+ * <pre>
+ * upload_threads=8
+ * max_rate=08:00=20M,19:00=0
+ * jobs=recordings,screens
+ * recordings.dir=/data/recordings
+ * recordings.config=./.private/aws-secrets
+ * recordings.recursive=true
+ * recordings.weight=2
+ * screens.dir=/data/screens
+ * screens.config=./.private/aws-secrets
+ * </pre>
+ * Each job also accepts {@code filter}, {@code manifest}, {@code scan_cache}, {@code journal},
+ * {@code max_rate}, {@code max_parts_in_flight}, {@code hedge_percentile}, {@code single_request_threshold},
+ * {@code bundle_dir} and {@code bundle_max_file_size}, with the same meaning as the options of {@link SyncFileApp}.
+ * The global {@code max_rate} caps all the jobs together.
+ * Jobs with the same {@code config} share one S3 client.
+ */
+@Parameters
+public class SyncHostApp {
+
+    private static final String DEFAULT_FILTER = "^[0-9a-zA-Z\\_]+\\.mp4";
+
+    private static final int DEFAULT_UPLOAD_THREADS = 8;
+
+    @Parameter(names = {"--jobs", "-j"}, required = true)
+    private String jobsPath;
+
+    @Parameter(names = {"--watch", "-w"})
+    private boolean watch = false;
+
+    private final Map<String, AmazonS3> clients = new HashMap<>();
+
+    private BandwidthLimiter globalLimiter;
+
+    public static void main(String[] args) throws DestinationOperationException {
+        S3BucketDestination.runSanityCheck();
+
+        SyncHostApp app = new SyncHostApp();
+        JCommander jCommander = new JCommander(app);
+        jCommander.parse(args);
+
+        app.run();
+    }
+
+    private void run() throws DestinationOperationException {
+        Properties jobsProperties = loadProperties();
+        int uploadThreads = Integer.parseInt(jobsProperties.getProperty("upload_threads",
+                String.valueOf(DEFAULT_UPLOAD_THREADS)));
+        SyncHost host = new SyncHost(uploadThreads);
+        String globalMaxRate = jobsProperties.getProperty("max_rate");
+        if (globalMaxRate != null) {
+            globalLimiter = new BandwidthLimiter(BandwidthSchedule.parse(globalMaxRate));
+        }
+        for (String name : jobsProperties.getProperty("jobs", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                addJob(host, name.trim(), jobsProperties);
+            }
+        }
+
+        if (watch) {
+            //The JVM halts once the hooks return, so the hook waits for the uploads to drain
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                host.stopWatching();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            host.watch();
+        } else {
+            host.run();
+        }
+        host.shutdown();
+    }
+
+    private void addJob(SyncHost host, String name, Properties jobsProperties) throws DestinationOperationException {
+        String dirPath = getRequiredProperty(jobsProperties, name, "dir");
+        String filter = jobsProperties.getProperty(name + ".filter", DEFAULT_FILTER);
+        Filters filters = Filters.getBuilder()
+                .include(Filters.matches(filter))
+                .create();
+        Source.Builder sourceBuilder = Source.getBuilder(Paths.get(dirPath))
+                .setFilters(filters)
+                .setRecursive(Boolean.parseBoolean(jobsProperties.getProperty(name + ".recursive", "false")));
+        String bundleDir = jobsProperties.getProperty(name + ".bundle_dir");
+        if (bundleDir != null) {
+            sourceBuilder.setBundling(Bundling.getBuilder(Paths.get(bundleDir))
+                    .setMaxFileSize(Long.parseLong(jobsProperties.getProperty(name + ".bundle_max_file_size",
+                            String.valueOf(Bundling.DEFAULT_MAX_FILE_SIZE))))
+                    .create());
+        }
+        Source source = sourceBuilder.create();
+        Destination destination = buildDestination(getRequiredProperty(jobsProperties, name, "config"));
+        destination.startS3SyncSession();
+
+        int weight = Integer.parseInt(jobsProperties.getProperty(name + ".weight", "1"));
+        RemoteSync sync = host.addJob(name, source, destination, weight);
+        String manifestPath = jobsProperties.getProperty(name + ".manifest");
+        if (manifestPath != null) {
+            sync.setManifestPath(Paths.get(manifestPath));
+        }
+        String scanCachePath = jobsProperties.getProperty(name + ".scan_cache");
+        if (scanCachePath != null) {
+            sync.setScanCachePath(Paths.get(scanCachePath), filter);
+        }
+        String journalPath = jobsProperties.getProperty(name + ".journal");
+        if (journalPath != null) {
+            sync.setUploadJournalDirectory(Paths.get(journalPath));
+        }
+        List<BandwidthLimiter> limiters = new ArrayList<>();
+        if (globalLimiter != null) {
+            limiters.add(globalLimiter);
+        }
+        String maxRate = jobsProperties.getProperty(name + ".max_rate");
+        if (maxRate != null) {
+            limiters.add(new BandwidthLimiter(BandwidthSchedule.parse(maxRate)));
+        }
+        sync.setBandwidthLimiters(limiters);
+        String maxPartsInFlight = jobsProperties.getProperty(name + ".max_parts_in_flight");
+        if (maxPartsInFlight != null) {
+            sync.setAdaptiveConcurrency(new AdaptiveConcurrency(Integer.parseInt(maxPartsInFlight)));
+        }
+        String hedgePercentile = jobsProperties.getProperty(name + ".hedge_percentile");
+        if (hedgePercentile != null) {
+            sync.setPartHedging(new PartHedging(Double.parseDouble(hedgePercentile)));
+        }
+        String singleRequestThreshold = jobsProperties.getProperty(name + ".single_request_threshold");
+        if (singleRequestThreshold != null) {
+            sync.setSingleRequestThreshold(Long.parseLong(singleRequestThreshold));
+        }
+    }
+
+    private Destination buildDestination(String configPath) {
+        AWSSecretProperties awsSecretProperties = AWSSecretProperties.fromPlainTextFile(Paths.get(configPath));
+        AmazonS3 client = clients.computeIfAbsent(configPath, path -> awsSecretProperties.createClient());
+        return new S3BucketDestination(
+                client,
+                awsSecretProperties.getS3Bucket(),
+                awsSecretProperties.getS3Prefix());
+    }
+
+    private Properties loadProperties() {
+        Properties properties = new Properties();
+        try (InputStream inStream = Files.newInputStream(Paths.get(jobsPath))) {
+            properties.load(inStream);
+            return properties;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static String getRequiredProperty(Properties properties, String job, String key) {
+        String value = properties.getProperty(job + "." + key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key + " for job " + job);
+        }
+        return value;
+    }
+}
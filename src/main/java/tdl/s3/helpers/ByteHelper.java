@@ -1,11 +1,20 @@
 package tdl.s3.helpers;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 
 public final class ByteHelper {
 
     private static final int MINIMUM_PART_SIZE = 5 * 1024 * 1024;
 
+    private static final byte[] EMPTY_PART = new byte[0];
+
+    //Small enough for a chunk to still be in the CPU cache when it is digested
+    private static final int DIGEST_CHUNK_SIZE = 64 * 1024;
+
     private ByteHelper() {
     }
 
@@ -22,26 +31,89 @@ public final class ByteHelper {
         return result;
     }
 
+    /**
+     * @deprecated parts are read with positional channel reads, see {@link #readFully(FileChannel, byte[], int, long)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
     public static byte[] getNextPartFromInputStream(InputStream stream, long offset, boolean readLastBytes) throws IOException {
-        byte[] buffer = new byte[MINIMUM_PART_SIZE];
-        int read = 0;
         skipOffsetInInputStream(stream, offset);
+        int partSize = getNextPartSize(stream, readLastBytes);
+        if (partSize == 0) {
+            return EMPTY_PART;
+        }
+        byte[] buffer = new byte[partSize];
+        readFully(stream, buffer, partSize);
+        return buffer;
+    }
+
+    /**
+     * Size of the next part that can be read from the stream without blocking,
+     * or 0 if there is not enough data for a full part and the last bytes should not be read yet.
+     *
+     * @deprecated parts are read with positional channel reads, see {@link #readFully(FileChannel, byte[], int, long)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
+    public static int getNextPartSize(InputStream stream, boolean readLastBytes) throws IOException {
         int available = stream.available();
         if (available < MINIMUM_PART_SIZE && !readLastBytes) {
-            return new byte[0];
+            return 0;
         }
-        while (available > 0) {
-            int currentRed = stream.read(buffer, read, MINIMUM_PART_SIZE - read);
-            read += currentRed;
-            available = stream.available();
-            if (read == MINIMUM_PART_SIZE) {
-                break;
+        return Math.min(available, MINIMUM_PART_SIZE);
+    }
+
+    public static void readFully(InputStream stream, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int currentRead = stream.read(buffer, read, length - read);
+            if (currentRead < 0) {
+                throw new EOFException("Expected " + length + " bytes but stream ended after " + read);
             }
+            read += currentRead;
         }
-        return truncate(buffer, read);
     }
 
-    static void skipOffsetInInputStream(InputStream stream, long offset) throws IOException {
+    /**
+     * Reads {@code length} bytes at the given position without moving the channel position,
+     * so the same channel can be shared by concurrent readers.
+     */
+    public static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        readFully(channel, buffer, 0, length, position);
+    }
+
+    /**
+     * Reads {@code length} bytes at the given position and updates the digest with them.
+     * The data is read and digested chunk by chunk, so each byte is digested while it is
+     * still in the cache instead of going through memory a second time.
+     */
+    public static void readFully(FileChannel channel, byte[] buffer, int length, long position, MessageDigest digest) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int chunkSize = Math.min(DIGEST_CHUNK_SIZE, length - read);
+            readFully(channel, buffer, read, chunkSize, position + read);
+            digest.update(buffer, read, chunkSize);
+            read += chunkSize;
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int offset, int length, long position) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int currentRead = channel.read(ByteBuffer.wrap(buffer, offset + read, length - read), position + read);
+            if (currentRead < 0) {
+                throw new EOFException("Expected " + length + " bytes at " + position + " but file ended after " + read);
+            }
+            read += currentRead;
+        }
+    }
+
+    /**
+     * @deprecated parts are read with positional channel reads, see {@link #readFully(FileChannel, byte[], int, long)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
+    public static void skipOffsetInInputStream(InputStream stream, long offset) throws IOException {
         long skipped = 0;
         long trial = 0;
         while (trial < 10) {
@@ -57,10 +129,32 @@ public final class ByteHelper {
         throw new IOException("Can not read more from the stream");
     }
 
+    /**
+     * @deprecated parts are read with positional channel reads, see {@link #readFully(FileChannel, byte[], int, long)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
     public static byte[] readPart(Integer partNumber, File file) throws IOException {
-        try (BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
-            long offset = MINIMUM_PART_SIZE * (partNumber - 1);
-            return getNextPartFromInputStream(inputStream, offset, false);
+        return readPart(partNumber, file, MINIMUM_PART_SIZE);
+    }
+
+    /**
+     * Reads a full part of an upload using the given part size, or nothing if the file does not hold a full part there.
+     *
+     * @deprecated parts are read with positional channel reads, see {@link #readFully(FileChannel, byte[], int, long)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
+    public static byte[] readPart(Integer partNumber, File file, int partSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long offset = (long) partSize * (partNumber - 1);
+            long remaining = channel.size() - offset;
+            if (remaining < partSize) {
+                return EMPTY_PART;
+            }
+            byte[] buffer = new byte[partSize];
+            readFully(channel, buffer, partSize, offset);
+            return buffer;
         }
     }
 }
@@ -3,19 +3,48 @@ package tdl.s3.helpers;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
 public final class ChecksumHelper {
 
+    //Looking up a provider for every part is costly and digests are not thread safe, so each thread keeps its own
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+
     private ChecksumHelper() {
     }
 
     public static String digest(byte[] bytes, String algorithm) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
-            byte[] digest = messageDigest.digest(bytes);
-            return Base64.getEncoder().encodeToString(digest);
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException("Can't send multipart upload. Can't create " + algorithm + " digest. " + ex.getMessage(), ex);
+        return digest(bytes, 0, bytes.length, algorithm);
+    }
+
+    public static String digest(byte[] bytes, int offset, int length, String algorithm) {
+        MessageDigest messageDigest = getDigest(algorithm);
+        messageDigest.update(bytes, offset, length);
+        return encode(messageDigest.digest());
+    }
+
+    /**
+     * Returns the calling thread's digest for the algorithm, reset and ready to be updated.
+     * The instance is reused by the next call on the same thread, so it should be
+     * finished with {@link MessageDigest#digest()} before asking for it again.
+     */
+    public static MessageDigest getDigest(String algorithm) {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest messageDigest = digests.get(algorithm);
+        if (messageDigest == null) {
+            try {
+                messageDigest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException("Can't send multipart upload. Can't create " + algorithm + " digest. " + ex.getMessage(), ex);
+            }
+            digests.put(algorithm, messageDigest);
         }
+        messageDigest.reset();
+        return messageDigest;
+    }
+
+    public static String encode(byte[] digest) {
+        return Base64.getEncoder().encodeToString(digest);
     }
 }
@@ -0,0 +1,93 @@
+package tdl.s3.sync;
+
+import java.nio.file.Path;
+
+/**
+ * Packs the small files of a source into bundle objects instead of uploading one object per file.
+ *
+ * Finished files below {@code maxFileSize} are appended to a bundle until it reaches
+ * {@code maxBundleSize}. Each bundle is uploaded under {@code remotePrefix} with an index object
+ * mapping each original path to its offset and length in the bundle, so a single file is read back
+ * with a ranged GET. The indexes are also kept in the state directory, which is how later runs
+ * know which files were bundled already without asking the destination.
+ */
+public class Bundling {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_MAX_BUNDLE_SIZE = 64L * 1024 * 1024;
+
+    public static final String DEFAULT_REMOTE_PREFIX = "_bundles/";
+
+    private final Path stateDirectory;
+
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+    private long maxBundleSize = DEFAULT_MAX_BUNDLE_SIZE;
+
+    private String remotePrefix = DEFAULT_REMOTE_PREFIX;
+
+    public static class Builder {
+
+        private final Bundling bundling;
+
+        public Builder(Path stateDirectory) {
+            bundling = new Bundling(stateDirectory);
+        }
+
+        /**
+         * Files smaller than that are bundled, the others are uploaded on their own.
+         */
+        public Builder setMaxFileSize(long maxFileSize) {
+            bundling.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        /**
+         * A bundle is closed once it holds that many bytes.
+         */
+        public Builder setMaxBundleSize(long maxBundleSize) {
+            bundling.maxBundleSize = maxBundleSize;
+            return this;
+        }
+
+        /**
+         * Where the bundles and their indexes are uploaded, relative to the destination.
+         */
+        public Builder setRemotePrefix(String remotePrefix) {
+            bundling.remotePrefix = remotePrefix;
+            return this;
+        }
+
+        public Bundling create() {
+            if (bundling.maxFileSize < 1 || bundling.maxBundleSize < bundling.maxFileSize) {
+                throw new IllegalArgumentException("Sizes should be 1 <= max file size <= max bundle size");
+            }
+            return bundling;
+        }
+    }
+
+    private Bundling(Path stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    public static Builder getBuilder(Path stateDirectory) {
+        return new Builder(stateDirectory);
+    }
+
+    public Path getStateDirectory() {
+        return stateDirectory;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public long getMaxBundleSize() {
+        return maxBundleSize;
+    }
+
+    public String getRemotePrefix() {
+        return remotePrefix;
+    }
+}
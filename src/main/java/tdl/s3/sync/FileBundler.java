@@ -0,0 +1,453 @@
+package tdl.s3.sync;
+
+import org.slf4j.Logger;
+import tdl.s3.helpers.FileHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Writes the small files of a source into bundles, and remembers which files were bundled.
+ *
+ * A bundle is a sequence of entries, each made of the length of the path (4 bytes),
+ * the UTF-8 path, the length of the content (8 bytes) and the content, so it can be
+ * unpacked without its index. The index is a text file:
+ * <pre>
+ * # s3-sync bundle index v1
+ * #bundle=_bundles/1700000000000-3f2a....bundle
+ * 1052    230    1700000000000    logs/app.log
+ * </pre>
+ * with the offset of the content in the bundle, its length, the time the file was last
+ * modified and its path, separated by tabs. A bundle is written to the state directory
+ * with a pending index, which only becomes an index of the state directory once the bundle
+ * and its index were uploaded. A bundle whose upload failed, or was interrupted by a restart,
+ * is kept with its pending index and uploaded again under the same name, so a bundle object
+ * never stays in the destination without its index. A bundle left without a complete pending
+ * index is deleted on load, its files get bundled again.
+ *
+ * On load, the indexes of the state directory are compacted into a single one, with a
+ * {@code #bundle=} line before the entries of each bundle. Entries of files bundled again
+ * since, or no longer in the source, are left out of it.
+ */
+class FileBundler {
+    private static final Logger log = getLogger(FileBundler.class);
+
+    private static final String HEADER = "# s3-sync bundle index v1";
+
+    private static final String BUNDLE_PREFIX = "#bundle=";
+
+    private static final String DATA_SUFFIX = ".bundle";
+
+    private static final String INDEX_SUFFIX = ".index";
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    //Path length and content length
+    private static final int ENTRY_HEADER_SIZE = 4 + 8;
+
+    static class Entry {
+
+        private final String bundleKey;
+
+        private final long offset;
+
+        private final long length;
+
+        private final long lastModified;
+
+        Entry(String bundleKey, long offset, long length, long lastModified) {
+            this.bundleKey = bundleKey;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        String getBundleKey() {
+            return bundleKey;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        private String toIndexLine(String path) {
+            return offset + "\t" + length + "\t" + lastModified + "\t" + path;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * A bundle written to the state directory, waiting to be uploaded.
+     */
+    class Bundle {
+
+        private final String name;
+
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        private long size;
+
+        private Bundle(String name) {
+            this.name = name;
+        }
+
+        File getDataFile() {
+            return bundling.getStateDirectory().resolve(name + DATA_SUFFIX).toFile();
+        }
+
+        File getIndexFile() {
+            return bundling.getStateDirectory().resolve(name + PENDING_SUFFIX).toFile();
+        }
+
+        String getDataKey() {
+            return bundling.getRemotePrefix() + name + DATA_SUFFIX;
+        }
+
+        String getIndexKey() {
+            return bundling.getRemotePrefix() + name + INDEX_SUFFIX;
+        }
+
+        Map<String, Entry> getEntries() {
+            return entries;
+        }
+
+        private void append(DataOutputStream out, String path, byte[] content, long lastModified) throws IOException {
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(pathBytes.length);
+            out.write(pathBytes);
+            out.writeLong(content.length);
+            out.write(content);
+            long offset = size + ENTRY_HEADER_SIZE + pathBytes.length;
+            entries.put(path, new Entry(getDataKey(), offset, content.length, lastModified));
+            size = offset + content.length;
+        }
+
+        private void writeIndex() throws IOException {
+            FileBundler.writeIndex(getIndexFile().toPath(), entries);
+        }
+    }
+
+    private final Bundling bundling;
+
+    private final Map<String, Entry> bundledFiles = new ConcurrentHashMap<>();
+
+    //Bundles written and not uploaded yet, guarded by this
+    private final List<Bundle> pendingBundles = new ArrayList<>();
+
+    private FileBundler(Bundling bundling) {
+        this.bundling = bundling;
+    }
+
+    /**
+     * Reads the indexes of the state directory, and compacts them. Indexes that can not be read
+     * are skipped and left alone, their files get bundled again.
+     *
+     * @param folder the source the files were bundled from
+     */
+    static FileBundler load(Bundling bundling, Path folder) {
+        FileBundler bundler = new FileBundler(bundling);
+        Path directory = bundling.getStateDirectory();
+        if (!Files.isDirectory(directory)) {
+            return bundler;
+        }
+        //Names start with the time the bundle was written, so later bundles win
+        TreeSet<Path> indexes = new TreeSet<>();
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(INDEX_SUFFIX)) {
+                    indexes.add(file);
+                } else if (name.endsWith(DATA_SUFFIX) || name.endsWith(PENDING_SUFFIX)) {
+                    leftovers.add(file);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Cannot list bundle indexes in " + directory, ex);
+        }
+        bundler.loadPendingBundles(leftovers);
+        List<Path> readIndexes = new ArrayList<>();
+        int readEntries = 0;
+        for (Path index : indexes) {
+            try {
+                readEntries += bundler.readIndex(index);
+                readIndexes.add(index);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Cannot read bundle index " + index + ", its files will be bundled again", ex);
+            }
+        }
+        bundler.bundledFiles.keySet().removeIf(path -> !Files.isRegularFile(folder.resolve(path)));
+        if (readIndexes.size() > 1 || bundler.bundledFiles.size() < readEntries) {
+            bundler.compact(readIndexes);
+        }
+        return bundler;
+    }
+
+    /**
+     * Keeps the bundles written with their whole pending index, to upload them again.
+     * Anything else was interrupted while being written.
+     */
+    private void loadPendingBundles(List<Path> leftovers) {
+        for (Path file : leftovers) {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(PENDING_SUFFIX)) {
+                continue;
+            }
+            Bundle bundle = new Bundle(name.substring(0, name.length() - PENDING_SUFFIX.length()));
+            File dataFile = bundle.getDataFile();
+            if (!dataFile.isFile()) {
+                continue;
+            }
+            try {
+                bundle.entries.putAll(readEntries(file));
+                bundle.size = dataFile.length();
+                pendingBundles.add(bundle);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Cannot read pending bundle index " + file + ", its files will be bundled again", ex);
+            }
+        }
+        Set<File> kept = new HashSet<>();
+        pendingBundles.forEach(bundle -> {
+            kept.add(bundle.getDataFile());
+            kept.add(bundle.getIndexFile());
+        });
+        for (Path file : leftovers) {
+            if (!kept.contains(file.toFile())) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    log.warn("Cannot delete " + file, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the indexes with a single one holding what they still tell.
+     * A failure leaves the indexes as they were, they are compacted on the next load.
+     */
+    private void compact(List<Path> indexes) {
+        Path directory = bundling.getStateDirectory();
+        String name = System.currentTimeMillis() + "-" + UUID.randomUUID();
+        Path pending = directory.resolve(name + PENDING_SUFFIX);
+        try {
+            writeIndex(pending, bundledFiles);
+            Path compacted = directory.resolve(name + INDEX_SUFFIX);
+            Files.move(pending, compacted, StandardCopyOption.ATOMIC_MOVE);
+            for (Path index : indexes) {
+                Files.deleteIfExists(index);
+            }
+            log.info("Compacted " + indexes.size() + " bundle indexes into " + compacted);
+        } catch (IOException ex) {
+            log.warn("Cannot compact bundle indexes in " + directory, ex);
+            try {
+                Files.deleteIfExists(pending);
+            } catch (IOException cleanupEx) {
+                log.warn("Cannot delete " + pending, cleanupEx);
+            }
+        }
+    }
+
+    /**
+     * Whether the file is small and finished, so it goes into a bundle rather than an object of its own.
+     */
+    boolean accepts(File file) {
+        return file.isFile()
+                && file.length() < bundling.getMaxFileSize()
+                && !FileHelper.lockFileExists(file);
+    }
+
+    /**
+     * Whether the file was bundled already, and did not change since.
+     */
+    boolean isBundled(String path, File file) {
+        Entry entry = bundledFiles.get(path);
+        return entry != null && entry.length == file.length() && entry.lastModified == file.lastModified();
+    }
+
+    /**
+     * Writes the files into as many bundles as needed. A file that can not be read is left out
+     * of the bundles and logged.
+     */
+    List<Bundle> pack(Path folder, List<String> paths) throws IOException {
+        Files.createDirectories(bundling.getStateDirectory());
+        List<Bundle> bundles = new ArrayList<>();
+        Bundle bundle = null;
+        DataOutputStream out = null;
+        try {
+            for (String path : paths) {
+                File file = new File(folder.toFile(), path);
+                long lastModified = file.lastModified();
+                byte[] content;
+                try {
+                    content = Files.readAllBytes(file.toPath());
+                } catch (IOException ex) {
+                    log.warn("Cannot bundle " + path + ": " + ex.getMessage());
+                    continue;
+                }
+                if (bundle != null && bundle.size + getEntrySize(path, content) > bundling.getMaxBundleSize()) {
+                    out.close();
+                    bundle.writeIndex();
+                    bundle = null;
+                }
+                if (bundle == null) {
+                    bundle = new Bundle(System.currentTimeMillis() + "-" + UUID.randomUUID());
+                    bundles.add(bundle);
+                    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(bundle.getDataFile().toPath())));
+                }
+                bundle.append(out, path, content, lastModified);
+            }
+            if (bundle != null) {
+                out.close();
+                bundle.writeIndex();
+            }
+            return bundles;
+        } catch (IOException ex) {
+            if (out != null) {
+                closeQuietly(out);
+            }
+            bundles.forEach(this::discard);
+            throw ex;
+        }
+    }
+
+    /**
+     * Records the files of an uploaded bundle as bundled, the bundle data is no longer needed locally.
+     */
+    void commit(Bundle bundle) throws IOException {
+        Path index = bundling.getStateDirectory().resolve(bundle.name + INDEX_SUFFIX);
+        Files.move(bundle.getIndexFile().toPath(), index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bundledFiles.putAll(bundle.entries);
+        try {
+            Files.deleteIfExists(bundle.getDataFile().toPath());
+        } catch (IOException ex) {
+            //Deleted on the next load, having no pending index any more
+            log.warn("Cannot delete bundle " + bundle.name, ex);
+        }
+    }
+
+    /**
+     * Keeps a bundle that was not uploaded, to upload it again under the same name.
+     */
+    synchronized void uploadLater(Bundle bundle) {
+        pendingBundles.add(bundle);
+    }
+
+    synchronized boolean hasPendingBundles() {
+        return !pendingBundles.isEmpty();
+    }
+
+    /**
+     * The bundles to upload again, which are no longer pending once taken.
+     */
+    synchronized List<Bundle> takePendingBundles() {
+        List<Bundle> bundles = new ArrayList<>(pendingBundles);
+        pendingBundles.clear();
+        return bundles;
+    }
+
+    /**
+     * Forgets a bundle that was not uploaded, its files get bundled again.
+     */
+    void discard(Bundle bundle) {
+        try {
+            Files.deleteIfExists(bundle.getDataFile().toPath());
+            Files.deleteIfExists(bundle.getIndexFile().toPath());
+        } catch (IOException ex) {
+            log.warn("Cannot delete bundle " + bundle.name, ex);
+        }
+    }
+
+    private static long getEntrySize(String path, byte[] content) {
+        return ENTRY_HEADER_SIZE + path.getBytes(StandardCharsets.UTF_8).length + content.length;
+    }
+
+    /**
+     * Writes the entries grouped by bundle.
+     */
+    private static void writeIndex(Path index, Map<String, Entry> entries) throws IOException {
+        Map<String, Map<String, Entry>> bundles = new TreeMap<>();
+        entries.forEach((path, entry) -> bundles.computeIfAbsent(entry.bundleKey, key -> new LinkedHashMap<>()).put(path, entry));
+        try (BufferedWriter writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Map<String, Entry>> bundle : bundles.entrySet()) {
+                writer.write(BUNDLE_PREFIX + bundle.getKey());
+                writer.newLine();
+                for (Map.Entry<String, Entry> item : bundle.getValue().entrySet()) {
+                    writer.write(item.getValue().toIndexLine(item.getKey()));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries read.
+     */
+    private int readIndex(Path index) throws IOException {
+        Map<String, Entry> entries = readEntries(index);
+        bundledFiles.putAll(entries);
+        return entries.size();
+    }
+
+    private static Map<String, Entry> readEntries(Path index) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown bundle index format: " + line);
+            }
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            String bundleKey = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(BUNDLE_PREFIX)) {
+                    bundleKey = line.substring(BUNDLE_PREFIX.length());
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length != 4 || bundleKey == null) {
+                        throw new IOException("Invalid bundle index entry: " + line);
+                    }
+                    entries.put(fields[3], new Entry(bundleKey, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])));
+                }
+            }
+            return entries;
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            log.warn("Cannot close bundle", ex);
+        }
+    }
+}
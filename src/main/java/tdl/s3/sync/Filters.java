@@ -1,15 +1,28 @@
 package tdl.s3.sync;
 
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files of a source are uploaded.
+ *
+ * A file is accepted when no exclude and at least one include matches it. Excludes are
+ * checked first and evaluation stops at the first match. Directory excludes prune whole
+ * subtrees, their files are never listed. The regular expressions and globs are compiled
+ * once, when the filter is created.
+ */
 public class Filters {
 
     private final List<Filter> includes = new ArrayList<>();
 
     private final List<Filter> excludes = new ArrayList<>();
 
+    private final List<Filter> directoryExcludes = new ArrayList<>();
+
     public static class Builder {
 
         private final Filters filters = new Filters();
@@ -30,6 +43,11 @@ public class Filters {
             filters.include(filter);
             return this;
         }
+
+        public final Builder excludeDirectory(Filter filter) {
+            filters.excludeDirectory(filter);
+            return this;
+        }
     }
 
     private Filters() {
@@ -48,14 +66,35 @@ public class Filters {
         includes.add(filter);
     }
 
-    public boolean accept(Path path) {
-        boolean accept = includes.stream()
-                .anyMatch(e -> e.accept(path));
+    public final void excludeDirectory(Filter filter) {
+        directoryExcludes.add(filter);
+    }
 
-        boolean reject = excludes.stream()
-                .anyMatch(e -> e.accept(path));
+    public boolean accept(Path path) {
+        for (Filter exclude : excludes) {
+            if (exclude.accept(path)) {
+                return false;
+            }
+        }
+        for (Filter include : includes) {
+            if (include.accept(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        return accept && !reject;
+    /**
+     * Whether the files under the directory may be uploaded at all.
+     * The source directory itself is never checked.
+     */
+    public boolean acceptDirectory(Path directory) {
+        for (Filter exclude : directoryExcludes) {
+            if (exclude.accept(directory)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static final Filter getDefaultLockFilter() {
@@ -71,7 +110,16 @@ public class Filters {
     }
 
     public static final Filter matches(String regex) {
-        return (Path path) -> path.getFileName().toString().matches(regex);
+        Pattern pattern = Pattern.compile(regex);
+        return (Path path) -> pattern.matcher(path.getFileName().toString()).matches();
+    }
+
+    /**
+     * Matches the file or directory name against a glob, such as {@code *.mp4} or {@code {tmp,cache}}.
+     */
+    public static final Filter glob(String glob) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return (Path path) -> matcher.matches(path.getFileName());
     }
 
     public static final Filter name(String name) {
@@ -1,43 +1,248 @@
 package tdl.s3.sync;
 
+import org.slf4j.Logger;
+import tdl.s3.helpers.FileHelper;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.sync.progress.ProgressListener;
 import tdl.s3.upload.FileUploadingService;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.slf4j.LoggerFactory.getLogger;
 
 class FolderSynchronizer {
+    private static final Logger log = getLogger(FolderSynchronizer.class);
 
     private final Source source;
 
     private final FileUploadingService fileUploadingService;
 
+    private SyncManifest manifest;
+
+    private ScanCache scanCache;
+
+    private FileBundler bundler;
+
     FolderSynchronizer(Source source, FileUploadingService fileUploadingService) {
         this.source = source;
         this.fileUploadingService = fileUploadingService;
     }
 
+    void setManifest(SyncManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    void setScanCache(ScanCache scanCache) {
+        this.scanCache = scanCache;
+    }
+
+    void setBundler(FileBundler bundler) {
+        this.bundler = bundler;
+    }
+
     void synchronize() {
         Path folder = source.getPath();
-        List<String> paths = source.getFilesToUpload();
+        boolean reconcile = manifest == null || manifest.isReconcileDue();
+        //Only files changed since the last scan, unless the manifest gets reconciled
+        List<String> paths = scanCache == null
+                ? source.getFilesToUpload()
+                : source.getFilesToUpload(scanCache, manifest == null || !reconcile);
+        List<String> candidates = reconcile ? paths : paths.stream()
+                .filter(path -> !manifest.isCompleted(path, new File(folder.toFile(), path)))
+                .collect(Collectors.toList());
+        //Bundles that failed before are uploaded again even when nothing changed
+        boolean hasPendingBundles = bundler != null && bundler.hasPendingBundles();
+        if ((manifest != null || scanCache != null) && candidates.isEmpty() && !hasPendingBundles) {
+            saveScanCache();
+            return;
+        }
         Destination destination = fileUploadingService.getDestination();
+        //Bundled files that did not change are known to be uploaded without asking the destination
+        List<String> unbundled = bundler == null ? candidates : candidates.stream()
+                .filter(path -> !bundler.isBundled(path, new File(folder.toFile(), path)))
+                .collect(Collectors.toList());
         List<String> uploadable;
         try {
-            uploadable = destination.filterUploadableFiles(paths);
+            uploadable = bundler != null && unbundled.isEmpty()
+                    ? new ArrayList<>()
+                    : destination.filterUploadableFiles(unbundled);
+            recordAlreadyUploaded(folder, candidates, uploadable, reconcile);
         } catch (DestinationOperationException ex) {
+            candidates.forEach(this::forgetScannedFile);
             uploadable = new ArrayList<>();
         }
-        if (uploadable.isEmpty()) {
+        if (uploadable.isEmpty() && !hasPendingBundles) {
+            saveManifest();
+            saveScanCache();
             return;
         }
-        uploadable.forEach(upload -> {
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        if (bundler != null) {
+            Map<Boolean, List<String>> small = uploadable.stream()
+                    .collect(Collectors.partitioningBy(path -> bundler.accepts(new File(folder.toFile(), path))));
+            uploads.addAll(uploadBundles(folder, small.get(true)));
+            uploadable = small.get(false);
+        }
+        //Files are uploaded concurrently, up to the service's max concurrent files,
+        //so one file's init and commit round-trips overlap with other files' parts
+        uploadable.stream()
+                .map(upload -> {
                     File uploadFile = new File(folder.toFile(), upload);
-                    fileUploadingService.upload(uploadFile, upload);
+                    boolean isWritingFinished = !FileHelper.lockFileExists(uploadFile);
+                    return forgetOnFailure(fileUploadingService.uploadAsync(uploadFile, upload)
+                            .thenAccept(uploaded -> recordUpload(upload, uploadFile, Boolean.TRUE.equals(uploaded),
+                                    Boolean.TRUE.equals(uploaded) && isWritingFinished)),
+                            Collections.singleton(upload));
+                })
+                .forEach(uploads::add);
+        try {
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            //What was recorded is kept, whatever happened to the other uploads
+            saveManifest();
+            saveScanCache();
+        }
+    }
+
+    /**
+     * An upload that failed unexpectedly, or could not be recorded, only affects its own files,
+     * which are listed again on the next scan.
+     */
+    private CompletableFuture<Void> forgetOnFailure(CompletableFuture<Void> upload, Collection<String> paths) {
+        return upload.exceptionally(failure -> {
+            log.warn("Cannot upload " + paths, failure);
+            paths.forEach(this::forgetScannedFile);
+            return null;
+        });
+    }
+
+    /**
+     * Uploads each bundle, then its index. The files of a bundle only count as uploaded
+     * once both are. A bundle that failed is uploaded again on the next run under the same name,
+     * its files are not bundled again meanwhile.
+     */
+    private List<CompletableFuture<Void>> uploadBundles(Path folder, List<String> paths) {
+        List<FileBundler.Bundle> bundles = bundler.takePendingBundles();
+        Set<String> bundled = new HashSet<>();
+        bundles.forEach(bundle -> bundled.addAll(bundle.getEntries().keySet()));
+        List<String> unbundled = paths.stream()
+                .filter(path -> !bundled.contains(path))
+                .collect(Collectors.toList());
+        if (!unbundled.isEmpty()) {
+            try {
+                bundler.pack(folder, unbundled).forEach(bundle -> {
+                    bundles.add(bundle);
+                    bundled.addAll(bundle.getEntries().keySet());
+                });
+            } catch (IOException ex) {
+                log.warn("Cannot write bundles", ex);
+            }
+            unbundled.stream()
+                    .filter(path -> !bundled.contains(path))
+                    .forEach(this::forgetScannedFile);
+        }
+        return bundles.stream()
+                .map(bundle -> forgetOnFailure(fileUploadingService.uploadAsync(bundle.getDataFile(), bundle.getDataKey())
+                        .thenCompose(uploaded -> Boolean.TRUE.equals(uploaded)
+                                ? fileUploadingService.uploadAsync(bundle.getIndexFile(), bundle.getIndexKey())
+                                : CompletableFuture.completedFuture(false))
+                        .thenAccept(uploaded -> recordBundle(folder, bundle, Boolean.TRUE.equals(uploaded))),
+                        bundle.getEntries().keySet()))
+                .collect(Collectors.toList());
+    }
+
+    private void recordBundle(Path folder, FileBundler.Bundle bundle, boolean uploaded) {
+        if (uploaded) {
+            try {
+                bundler.commit(bundle);
+            } catch (IOException ex) {
+                log.warn("Cannot record bundle " + bundle.getDataKey() + ", it will be uploaded again", ex);
+                uploaded = false;
+            }
+        }
+        if (!uploaded) {
+            bundler.uploadLater(bundle);
+        }
+        for (String path : bundle.getEntries().keySet()) {
+            File file = new File(folder.toFile(), path);
+            //A file changed since it was bundled gets bundled again
+            boolean completed = uploaded && bundler.isBundled(path, file);
+            recordUpload(path, file, completed, completed);
+        }
+    }
+
+    /**
+     * Candidates the destination did not ask for are already there.
+     */
+    private void recordAlreadyUploaded(Path folder, List<String> candidates, List<String> uploadable, boolean reconcile) {
+        if (manifest == null) {
+            return;
+        }
+        Set<String> uploadableSet = new HashSet<>(uploadable);
+        candidates.stream()
+                .filter(path -> !uploadableSet.contains(path))
+                .forEach(path -> {
+                    File file = new File(folder.toFile(), path);
+                    manifest.markCompleted(path, file.length(), file.lastModified());
                 });
+        if (reconcile) {
+            manifest.reconciled();
+        }
+    }
+
+    private void recordUpload(String path, File file, boolean uploaded, boolean completed) {
+        if (!uploaded) {
+            //Listed again on the next scan, even if it does not change
+            forgetScannedFile(path);
+        }
+        if (manifest == null) {
+            return;
+        }
+        if (completed) {
+            manifest.markCompleted(path, file.length(), file.lastModified());
+        } else {
+            manifest.markIncomplete(path, file.length(), file.lastModified());
+        }
+    }
+
+    private void saveManifest() {
+        if (manifest == null) {
+            return;
+        }
+        try {
+            manifest.save();
+        } catch (IOException ex) {
+            log.warn("Cannot save sync manifest", ex);
+        }
+    }
+
+    private void forgetScannedFile(String path) {
+        if (scanCache != null) {
+            scanCache.forget(path);
+        }
+    }
+
+    private void saveScanCache() {
+        if (scanCache == null) {
+            return;
+        }
+        try {
+            scanCache.save();
+        } catch (IOException ex) {
+            log.warn("Cannot save scan cache", ex);
+        }
     }
 
     void setListener(ProgressListener listener) {
@@ -0,0 +1,375 @@
+package tdl.s3.sync;
+
+import org.slf4j.Logger;
+import tdl.s3.helpers.FileHelper;
+import tdl.s3.upload.FileUploadingService;
+import tdl.s3.upload.PartSizePolicy;
+import tdl.s3.upload.UploadRetryPolicy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Uploads the files of a source as they change, using a {@link WatchService}.
+ *
+ * A growing file is scheduled once a new part's worth of bytes was written since it was
+ * last scheduled, going by the part size of its open upload, a finished file once it stopped
+ * changing. A file is never uploaded twice at the same time: changes seen while it is uploading
+ * schedule it again once the upload is done.
+ * Deleting the lock file of a file finishes its upload right away, without waiting for it to settle.
+ * A finished file whose upload failed is uploaded again after a delay doubling with each failure,
+ * until it is uploaded or fails with an error that uploading it again would not fix.
+ * Files recorded as completed in the manifest are left alone.
+ */
+class FolderWatcher implements Closeable {
+    private static final Logger log = getLogger(FolderWatcher.class);
+
+    private static final long POLL_INTERVAL_MILLIS = 250;
+
+    //A finished file is only uploaded once nothing touched it for that long,
+    //so a file still being copied in is not uploaded half way
+    private static final long SETTLE_MILLIS = 1000;
+
+    private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+
+    private static final long RETRY_MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Source source;
+
+    private final FileUploadingService fileUploadingService;
+
+    private final SyncManifest manifest;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+    //Size of each file when its last upload was scheduled
+    private final Map<String, Long> scheduledSizes = new HashMap<>();
+
+    private final Set<String> uploading = new HashSet<>();
+
+    private final Set<String> changedWhileUploading = new HashSet<>();
+
+    //Finished files waiting to settle, with the time they last changed
+    private final Map<String, Long> settlingFiles = new HashMap<>();
+
+    //Files whose lock file was deleted while they were uploading
+    private final Set<String> unlockedWhileUploading = new HashSet<>();
+
+    //Finished files whose upload failed, with the time they are uploaded again
+    private final Map<String, Long> retryingFiles = new HashMap<>();
+
+    //Uploads in a row that failed, for each finished file
+    private final Map<String, Integer> failedUploads = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    FolderWatcher(Source source, FileUploadingService fileUploadingService, SyncManifest manifest) throws IOException {
+        this.source = source;
+        this.fileUploadingService = fileUploadingService;
+        this.manifest = manifest;
+        this.watchService = source.getPath().getFileSystem().newWatchService();
+        registerTree(source.getPath());
+    }
+
+    /**
+     * Blocks handling changes until {@link #stop()} is called or the thread is interrupted.
+     */
+    void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            }
+            if (key != null) {
+                handleEvents(key);
+            }
+            scheduleSettledFiles();
+            scheduleFailedFiles();
+        }
+    }
+
+    private void scheduleSettledFiles() {
+        long now = System.nanoTime();
+        Set<String> settled = new HashSet<>();
+        synchronized (this) {
+            settlingFiles.entrySet().removeIf(entry -> {
+                boolean isSettled = now - entry.getValue() >= TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+                if (isSettled) {
+                    settled.add(entry.getKey());
+                }
+                return isSettled;
+            });
+        }
+        settled.forEach(relativePath -> scheduleUpload(relativePath, source.getPath().resolve(relativePath).toFile(), true));
+    }
+
+    private void scheduleFailedFiles() {
+        long now = System.nanoTime();
+        Set<String> due = new HashSet<>();
+        synchronized (this) {
+            retryingFiles.entrySet().removeIf(entry -> {
+                boolean isDue = now - entry.getValue() >= 0;
+                if (isDue) {
+                    due.add(entry.getKey());
+                }
+                return isDue;
+            });
+        }
+        for (String relativePath : due) {
+            Path path = source.getPath().resolve(relativePath);
+            if (Files.isRegularFile(path)) {
+                scheduleUpload(relativePath, path.toFile(), true);
+            } else {
+                synchronized (this) {
+                    failedUploads.remove(relativePath);
+                }
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        watchService.close();
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                //Events were lost, look at every file again
+                rescan(source.getPath());
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (source.isRecursive() && source.getFilters().acceptDirectory(path)) {
+                    registerTree(path);
+                    //Files may have been written before the directory was registered
+                    rescan(path);
+                }
+            } else if (event.kind() == ENTRY_DELETE) {
+                if (Filters.getDefaultLockFilter().accept(path)) {
+                    lockFileDeleted(path);
+                } else {
+                    fileDeleted(path);
+                }
+            } else {
+                fileChanged(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void rescan(Path directory) {
+        int maxDepth = source.isRecursive() ? Integer.MAX_VALUE : 1;
+        try {
+            Files.walkFileTree(directory, new HashSet<>(), maxDepth, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subdirectory, BasicFileAttributes attrs) {
+                    if (!subdirectory.equals(source.getPath()) && !source.getFilters().acceptDirectory(subdirectory)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    fileChanged(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Cannot scan " + directory, ex);
+        }
+    }
+
+    private void fileChanged(Path path) {
+        if (!Files.isRegularFile(path) || !source.getFilters().accept(path)) {
+            return;
+        }
+        String relativePath = getRelativePath(path);
+        File file = path.toFile();
+        if (manifest.isCompleted(relativePath, file)) {
+            return;
+        }
+        if (!FileHelper.lockFileExists(file)) {
+            synchronized (this) {
+                //Uploaded once it settled rather than when its retry is due
+                retryingFiles.remove(relativePath);
+                settlingFiles.put(relativePath, System.nanoTime());
+            }
+            return;
+        }
+        long newBytes;
+        synchronized (this) {
+            newBytes = file.length() - scheduledSizes.getOrDefault(relativePath, 0L);
+        }
+        //Parts chosen by an adaptive policy may be larger than the minimum
+        int partSize = fileUploadingService.getFollowedPartSize(relativePath);
+        if (newBytes >= Math.max(partSize, PartSizePolicy.MINIMUM_PART_SIZE)) {
+            scheduleUpload(relativePath, file, false);
+        }
+    }
+
+    /**
+     * The writer is done with the file: its last part is uploaded and the upload committed straight away.
+     */
+    private void lockFileDeleted(Path lockFile) {
+        String lockFileName = lockFile.getFileName().toString();
+        Path path = lockFile.resolveSibling(lockFileName.substring(0, lockFileName.length() - ".lock".length()));
+        if (!Files.isRegularFile(path) || !source.getFilters().accept(path)) {
+            return;
+        }
+        String relativePath = getRelativePath(path);
+        synchronized (this) {
+            settlingFiles.remove(relativePath);
+            retryingFiles.remove(relativePath);
+            if (uploading.contains(relativePath)) {
+                unlockedWhileUploading.add(relativePath);
+            }
+        }
+        scheduleUpload(relativePath, path.toFile(), true);
+    }
+
+    /**
+     * Forgets what was tracked for the file, or for the files of a deleted directory,
+     * so a file created again under the same name starts afresh.
+     */
+    private synchronized void fileDeleted(Path path) {
+        String relativePath = getRelativePath(path);
+        String directoryPrefix = relativePath.endsWith("/") ? relativePath : relativePath + "/";
+        Predicate<String> deleted = trackedPath -> trackedPath.equals(relativePath) || trackedPath.startsWith(directoryPrefix);
+        scheduledSizes.keySet().removeIf(deleted);
+        settlingFiles.keySet().removeIf(deleted);
+        retryingFiles.keySet().removeIf(deleted);
+        failedUploads.keySet().removeIf(deleted);
+    }
+
+    private void scheduleUpload(String relativePath, File file, boolean isWritingFinished) {
+        if (manifest.isCompleted(relativePath, file)) {
+            return;
+        }
+        synchronized (this) {
+            if (uploading.contains(relativePath)) {
+                changedWhileUploading.add(relativePath);
+                return;
+            }
+            uploading.add(relativePath);
+            scheduledSizes.put(relativePath, file.length());
+        }
+        fileUploadingService.uploadAsyncOrFail(file, relativePath)
+                .whenComplete((done, failure) -> uploadFinished(relativePath, file, isWritingFinished, failure));
+    }
+
+    /**
+     * @param failure null when the file was uploaded
+     */
+    private void uploadFinished(String relativePath, File file, boolean isWritingFinished, Throwable failure) {
+        boolean uploaded = failure == null;
+        boolean completed = uploaded && isWritingFinished;
+        if (completed) {
+            manifest.markCompleted(relativePath, file.length(), file.lastModified());
+            saveManifest();
+        }
+        boolean changed;
+        boolean unlocked;
+        synchronized (this) {
+            uploading.remove(relativePath);
+            changed = changedWhileUploading.remove(relativePath);
+            unlocked = unlockedWhileUploading.remove(relativePath);
+            if (uploaded) {
+                failedUploads.remove(relativePath);
+            }
+            if (completed) {
+                scheduledSizes.remove(relativePath);
+            }
+        }
+        if (completed || !running) {
+            return;
+        }
+        if (unlocked) {
+            scheduleUpload(relativePath, file, true);
+        } else if (changed) {
+            fileChanged(file.toPath());
+        } else if (!uploaded && isWritingFinished) {
+            retryLater(relativePath, failure);
+        }
+    }
+
+    private synchronized void retryLater(String relativePath, Throwable failure) {
+        if (UploadRetryPolicy.classify(failure) == UploadRetryPolicy.FailureKind.PERMANENT) {
+            failedUploads.remove(relativePath);
+            log.error("Upload of " + relativePath + " failed and will not be tried again until the file changes: "
+                    + failure.getMessage());
+            return;
+        }
+        int failures = failedUploads.merge(relativePath, 1, Integer::sum);
+        long delay = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(failures - 1, 20));
+        log.warn("Upload of " + relativePath + " failed, trying again in " + delay + " ms: " + failure.getMessage());
+        retryingFiles.put(relativePath, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    private void saveManifest() {
+        try {
+            manifest.save();
+        } catch (IOException ex) {
+            log.warn("Cannot save sync manifest", ex);
+        }
+    }
+
+    private void registerTree(Path root) {
+        try {
+            if (!source.isRecursive()) {
+                register(root);
+                return;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) throws IOException {
+                    if (!directory.equals(source.getPath()) && !source.getFilters().acceptDirectory(directory)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    register(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Cannot watch " + root, ex);
+        }
+    }
+
+    private void register(Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        watchedDirectories.put(key, directory);
+    }
+
+    private String getRelativePath(Path path) {
+        return source.getPath().toFile().toURI().relativize(path.toFile().toURI()).getPath();
+    }
+}
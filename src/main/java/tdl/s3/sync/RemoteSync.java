@@ -3,7 +3,20 @@ package tdl.s3.sync;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.progress.DummyProgressListener;
 import tdl.s3.sync.progress.ProgressListener;
+import tdl.s3.upload.AdaptiveConcurrency;
+import tdl.s3.upload.BandwidthLimiter;
 import tdl.s3.upload.FileUploadingService;
+import tdl.s3.upload.PartHedging;
+import tdl.s3.upload.UploadJournal;
+import tdl.s3.upload.UploadPriorities;
+import tdl.s3.upload.UploadPriorityPolicy;
+import tdl.s3.upload.UploadRetryPolicy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 
 public class RemoteSync {
@@ -18,6 +31,36 @@ public class RemoteSync {
 
     private ProgressListener listener;
 
+    private Path manifestPath;
+
+    private SyncManifest manifest;
+
+    private Path uploadJournalDirectory;
+
+    private Path scanCachePath;
+
+    private String scanCacheFilterKey;
+
+    private ScanCache scanCache;
+
+    private FileBundler bundler;
+
+    private Executor uploadExecutor;
+
+    private UploadPriorityPolicy priorityPolicy = UploadPriorities.fifo();
+
+    private List<BandwidthLimiter> bandwidthLimiters = new ArrayList<>();
+
+    private AdaptiveConcurrency concurrency;
+
+    private UploadRetryPolicy retryPolicy;
+
+    private PartHedging hedging;
+
+    private Long singleRequestThreshold;
+
+    private volatile FolderWatcher folderWatcher;
+
     public RemoteSync(Source source, Destination destination) {
         this.source = source;
         if (!this.source.isValidPath()) {
@@ -31,6 +74,105 @@ public class RemoteSync {
         this.listener = listener;
     }
 
+    /**
+     * Keeps a manifest of the uploaded files at the given path, so runs over
+     * unchanged files do not need to list the destination.
+     */
+    public void setManifestPath(Path manifestPath) {
+        this.manifestPath = manifestPath;
+        this.manifest = null;
+    }
+
+    /**
+     * Keeps what the scans of the source saw at the given path, so later runs
+     * only look at the files and directories that changed.
+     *
+     * @param filterKey describes the filters of the source, such as their pattern:
+     *                  changing it makes the next run scan from scratch
+     */
+    public void setScanCachePath(Path scanCachePath, String filterKey) {
+        this.scanCachePath = scanCachePath;
+        this.scanCacheFilterKey = filterKey;
+        this.scanCache = null;
+    }
+
+    /**
+     * Uploads the parts on shared threads instead of threads of its own, see {@link SyncHost}.
+     */
+    public void setUploadExecutor(Executor uploadExecutor) {
+        this.uploadExecutor = uploadExecutor;
+    }
+
+    /**
+     * Decides which files, and which of their parts, are uploaded first.
+     */
+    public void setPriorityPolicy(UploadPriorityPolicy priorityPolicy) {
+        this.priorityPolicy = priorityPolicy;
+    }
+
+    /**
+     * Limits the upload rate. A limiter can be shared with other syncs to cap them together,
+     * and its rate changed while uploads are running.
+     */
+    public void setBandwidthLimiters(List<BandwidthLimiter> bandwidthLimiters) {
+        this.bandwidthLimiters = new ArrayList<>(bandwidthLimiters);
+        if (fileUploadingService != null) {
+            fileUploadingService.setBandwidthLimiters(this.bandwidthLimiters);
+        }
+    }
+
+    /**
+     * Lets the number of parts uploaded at the same time follow the link, see {@link AdaptiveConcurrency}.
+     */
+    public void setAdaptiveConcurrency(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+        if (fileUploadingService != null) {
+            fileUploadingService.setAdaptiveConcurrency(concurrency);
+        }
+    }
+
+    /**
+     * Decides which failed parts are sent again, instead of the default {@link UploadRetryPolicy}.
+     */
+    public void setRetryPolicy(UploadRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        if (fileUploadingService != null) {
+            fileUploadingService.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    /**
+     * Sends the parts that take far longer than usual a second time, see {@link PartHedging}.
+     */
+    public void setPartHedging(PartHedging hedging) {
+        this.hedging = hedging;
+        if (fileUploadingService != null) {
+            fileUploadingService.setPartHedging(hedging);
+        }
+    }
+
+    /**
+     * Sends the finished files smaller than that in a single request, 0 to always use multipart uploads.
+     */
+    public void setSingleRequestThreshold(long singleRequestThreshold) {
+        this.singleRequestThreshold = singleRequestThreshold;
+        if (fileUploadingService != null) {
+            fileUploadingService.setSingleRequestThreshold(singleRequestThreshold);
+        }
+    }
+
+    /**
+     * Journals the uploads in progress in the given directory, so uploads interrupted
+     * by a crash are resumed without listing the multipart uploads of the destination.
+     */
+    public void setUploadJournalDirectory(Path uploadJournalDirectory) {
+        this.uploadJournalDirectory = uploadJournalDirectory;
+    }
+
+    /**
+     * Repeated runs reuse the same upload threads.
+     * Call {@link #shutdown()} once the sync is no longer needed.
+     */
     public void run() {
         buildUploadingService();
         buildFolderSynchronizer();
@@ -38,12 +180,81 @@ public class RemoteSync {
         folderSynchronizer.synchronize();
     }
 
+    /**
+     * Synchronizes the folder, then keeps uploading files as they change until
+     * {@link #stopWatching()} is called or the thread is interrupted.
+     * Without a manifest path the files already uploaded are only remembered in memory.
+     */
+    public void watch() throws IOException {
+        if (manifestPath == null && manifest == null) {
+            manifest = SyncManifest.inMemory();
+        }
+        buildUploadingService();
+        //Registered before the initial run, so changes made during it are not missed
+        try (FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest)) {
+            folderWatcher = watcher;
+            run();
+            watcher.watch();
+        } finally {
+            folderWatcher = null;
+        }
+    }
+
+    public void stopWatching() {
+        FolderWatcher watcher = folderWatcher;
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    public void shutdown() {
+        if (fileUploadingService != null) {
+            fileUploadingService.shutdown();
+        }
+    }
+
     private void buildUploadingService() {
-        fileUploadingService = new FileUploadingService(destination);
+        if (fileUploadingService == null) {
+            fileUploadingService = new FileUploadingService(destination);
+            if (uploadJournalDirectory != null) {
+                fileUploadingService.setUploadJournal(new UploadJournal(uploadJournalDirectory));
+            }
+            if (uploadExecutor != null) {
+                fileUploadingService.setUploadExecutor(uploadExecutor);
+            }
+            fileUploadingService.setPriorityPolicy(priorityPolicy);
+            fileUploadingService.setBandwidthLimiters(bandwidthLimiters);
+            fileUploadingService.setAdaptiveConcurrency(concurrency);
+            fileUploadingService.setPartHedging(hedging);
+            if (retryPolicy != null) {
+                fileUploadingService.setRetryPolicy(retryPolicy);
+            }
+            if (singleRequestThreshold != null) {
+                fileUploadingService.setSingleRequestThreshold(singleRequestThreshold);
+            }
+        }
     }
 
     private void buildFolderSynchronizer() {
         Filters filters = source.getFilters();
         folderSynchronizer = new FolderSynchronizer(source, fileUploadingService);
+        if (manifestPath != null && manifest == null) {
+            manifest = SyncManifest.load(manifestPath);
+        }
+        if (manifest != null) {
+            folderSynchronizer.setManifest(manifest);
+        }
+        if (scanCachePath != null && scanCache == null) {
+            scanCache = ScanCache.load(scanCachePath, source, scanCacheFilterKey);
+        }
+        if (scanCache != null) {
+            folderSynchronizer.setScanCache(scanCache);
+        }
+        if (source.getBundling() != null && bundler == null) {
+            bundler = FileBundler.load(source.getBundling(), source.getPath());
+        }
+        if (bundler != null) {
+            folderSynchronizer.setBundler(bundler);
+        }
     }
 }
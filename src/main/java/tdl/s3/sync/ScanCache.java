@@ -0,0 +1,368 @@
+package tdl.s3.sync;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * What the previous scans of a source saw, kept on disk between runs.
+ *
+ * A directory is only listed again when its modification time changed or when it holds
+ * lock files, otherwise its files are known not to have changed: files without a lock
+ * are finished, and adding, removing or renaming a file or a lock changes the directory.
+ * Subdirectories are still visited, each with one stat.
+ * Files are listed again when their size, modification time or lock changed.
+ *
+ * The cache records the source it was written for: its path, whether it is recursive and a key
+ * given by the caller for its filters. A cache written for anything else is discarded on load.
+ */
+public class ScanCache {
+    private static final Logger log = getLogger(ScanCache.class);
+
+    private static final String HEADER = "# s3-sync scan cache v2";
+
+    private static final String SOURCE_PREFIX = "#source=";
+
+    private static final String RECURSIVE_PREFIX = "#recursive=";
+
+    private static final String FILTERS_PREFIX = "#filters=";
+
+    private static final String LOCK_EXTENSION = ".lock";
+
+    //A directory modified that close to a scan may still change within the same timestamp,
+    //it is listed again on the next scan
+    private static final long RACY_MILLIS = 2000;
+
+    private static final long UNKNOWN = -1;
+
+    private static class DirectoryEntry {
+
+        private long lastModified = UNKNOWN;
+
+        private boolean hasLockFiles;
+
+        private final Set<String> subdirectories = new HashSet<>();
+
+        private final Set<String> fileNames = new HashSet<>();
+    }
+
+    private static class FileEntry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final boolean locked;
+
+        FileEntry(long size, long lastModified, boolean locked) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.locked = locked;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileEntry)) {
+                return false;
+            }
+            FileEntry other = (FileEntry) o;
+            return size == other.size && lastModified == other.lastModified && locked == other.locked;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModified, locked);
+        }
+    }
+
+    private final Path cachePath;
+
+    //Header lines describing the source, written on save and compared on load
+    private final List<String> sourceLines;
+
+    private final Map<String, DirectoryEntry> directories = new HashMap<>();
+
+    private final Map<String, FileEntry> files = new HashMap<>();
+
+    private ScanCache(Path cachePath, List<String> sourceLines) {
+        this.cachePath = cachePath;
+        this.sourceLines = sourceLines;
+    }
+
+    /**
+     * Loads the cache, or starts an empty one if the file does not exist, can not be read,
+     * or was written for another source.
+     *
+     * @param filterKey describes the filters of the source, for instance their pattern,
+     *                  so a cache written with other filters is not used
+     */
+    public static ScanCache load(Path cachePath, Source source, String filterKey) {
+        List<String> sourceLines = Arrays.asList(
+                SOURCE_PREFIX + toSingleLine(source.getPath().toAbsolutePath().normalize().toString()),
+                RECURSIVE_PREFIX + source.isRecursive(),
+                FILTERS_PREFIX + toSingleLine(filterKey));
+        ScanCache cache = new ScanCache(cachePath, sourceLines);
+        if (Files.exists(cachePath)) {
+            try {
+                if (!cache.read()) {
+                    log.info("Scan cache " + cachePath + " was written for another source or filters, scanning from scratch");
+                }
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Cannot read scan cache " + cachePath + ", scanning from scratch", ex);
+                cache.directories.clear();
+                cache.files.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * A cache that only lives as long as the process, {@link #save()} does nothing.
+     */
+    public static ScanCache inMemory() {
+        return new ScanCache(null, Collections.emptyList());
+    }
+
+    /**
+     * Escapes the value so it can be written as one tab separated field of a line.
+     */
+    static String toSingleLine(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+
+    static String fromSingleLine(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char escaped = value.charAt(++i);
+                result.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped == 't' ? '\t' : escaped);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Lists the file again on the next scan, for instance because its upload failed.
+     */
+    public synchronized void forget(String path) {
+        files.remove(path);
+        DirectoryEntry directory = directories.get(getParent(path));
+        if (directory != null) {
+            directory.lastModified = UNKNOWN;
+        }
+    }
+
+    synchronized List<String> scan(Source source, boolean changedOnly) {
+        List<String> found = new ArrayList<>();
+        try {
+            scanDirectory(source, source.getPath(), "", changedOnly, System.currentTimeMillis(), found);
+        } catch (IOException ex) {
+            log.warn("Cannot scan " + source.getPath(), ex);
+        }
+        return found;
+    }
+
+    private void scanDirectory(Source source, Path directory, String relativePath, boolean changedOnly,
+                               long scanStart, List<String> found) throws IOException {
+        long lastModified = Files.getLastModifiedTime(directory).toMillis();
+        DirectoryEntry cached = directories.get(relativePath);
+        if (changedOnly && cached != null && cached.lastModified == lastModified && !cached.hasLockFiles) {
+            for (String subdirectory : cached.subdirectories) {
+                scanSubdirectory(source, directory, relativePath, subdirectory, changedOnly, scanStart, found);
+            }
+            return;
+        }
+
+        DirectoryEntry entry = new DirectoryEntry();
+        Set<String> lockFileNames = new HashSet<>();
+        Map<Path, BasicFileAttributes> candidates = new HashMap<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException ex) {
+                    //Removed while listing
+                    continue;
+                }
+                String name = child.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    if (source.isRecursive() && source.getFilters().acceptDirectory(child)) {
+                        entry.subdirectories.add(name);
+                    }
+                } else if (attributes.isRegularFile()) {
+                    if (name.endsWith(LOCK_EXTENSION)) {
+                        lockFileNames.add(name);
+                    } else if (source.getFilters().accept(child)) {
+                        candidates.put(child, attributes);
+                    }
+                }
+            }
+        }
+
+        entry.hasLockFiles = !lockFileNames.isEmpty();
+        candidates.forEach((child, attributes) -> {
+            String name = child.getFileName().toString();
+            String path = relativePath + name;
+            FileEntry file = new FileEntry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    lockFileNames.contains(name + LOCK_EXTENSION));
+            FileEntry previous = files.put(path, file);
+            entry.fileNames.add(name);
+            if (!changedOnly || !file.equals(previous)) {
+                found.add(path);
+            }
+        });
+        if (cached != null) {
+            cached.fileNames.stream()
+                    .filter(name -> !entry.fileNames.contains(name))
+                    .forEach(name -> files.remove(relativePath + name));
+            cached.subdirectories.stream()
+                    .filter(name -> !entry.subdirectories.contains(name))
+                    .forEach(name -> forgetDirectory(relativePath + name + "/"));
+        }
+        if (scanStart - lastModified >= RACY_MILLIS) {
+            entry.lastModified = lastModified;
+        }
+        directories.put(relativePath, entry);
+
+        for (String subdirectory : entry.subdirectories) {
+            scanSubdirectory(source, directory, relativePath, subdirectory, changedOnly, scanStart, found);
+        }
+    }
+
+    private void scanSubdirectory(Source source, Path directory, String relativePath, String name,
+                                  boolean changedOnly, long scanStart, List<String> found) {
+        try {
+            scanDirectory(source, directory.resolve(name), relativePath + name + "/", changedOnly, scanStart, found);
+        } catch (IOException ex) {
+            //Removed since its parent was listed, the parent gets listed again
+            forgetDirectory(relativePath + name + "/");
+            DirectoryEntry parent = directories.get(relativePath);
+            if (parent != null) {
+                parent.lastModified = UNKNOWN;
+            }
+        }
+    }
+
+    private void forgetDirectory(String relativePath) {
+        DirectoryEntry entry = directories.remove(relativePath);
+        if (entry == null) {
+            return;
+        }
+        entry.fileNames.forEach(name -> files.remove(relativePath + name));
+        entry.subdirectories.forEach(name -> forgetDirectory(relativePath + name + "/"));
+    }
+
+    private static String getParent(String path) {
+        int separator = path.lastIndexOf('/', path.endsWith("/") ? path.length() - 2 : path.length() - 1);
+        return path.substring(0, separator + 1);
+    }
+
+    /**
+     * Writes the cache to a temporary file first, so a crash never leaves a truncated cache.
+     */
+    public synchronized void save() throws IOException {
+        if (cachePath == null) {
+            return;
+        }
+        Path directory = cachePath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempPath = Files.createTempFile(directory, cachePath.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (String sourceLine : sourceLines) {
+                writer.write(sourceLine);
+                writer.newLine();
+            }
+            for (Map.Entry<String, DirectoryEntry> item : directories.entrySet()) {
+                DirectoryEntry entry = item.getValue();
+                writer.write("d\t" + entry.lastModified + "\t" + (entry.hasLockFiles ? "1" : "0") + "\t"
+                        + toSingleLine(item.getKey()));
+                writer.newLine();
+            }
+            for (Map.Entry<String, FileEntry> item : files.entrySet()) {
+                FileEntry entry = item.getValue();
+                writer.write("f\t" + entry.size + "\t" + entry.lastModified + "\t" + (entry.locked ? "1" : "0")
+                        + "\t" + toSingleLine(item.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns false, leaving the cache empty, if the cache was written for another source.
+     */
+    private boolean read() throws IOException {
+        List<String[]> fileLines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(cachePath, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown scan cache format: " + line);
+            }
+            for (String sourceLine : sourceLines) {
+                if (!sourceLine.equals(reader.readLine())) {
+                    return false;
+                }
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("d\t")) {
+                    String[] fields = line.split("\t", 4);
+                    DirectoryEntry entry = new DirectoryEntry();
+                    entry.lastModified = Long.parseLong(fields[1]);
+                    entry.hasLockFiles = "1".equals(fields[2]);
+                    directories.put(fromSingleLine(fields[3]), entry);
+                } else if (line.startsWith("f\t")) {
+                    fileLines.add(line.split("\t", 5));
+                } else if (!line.isEmpty()) {
+                    throw new IOException("Invalid scan cache entry: " + line);
+                }
+            }
+        }
+        directories.keySet().stream()
+                .filter(path -> !path.isEmpty())
+                .forEach(path -> {
+                    DirectoryEntry parent = directories.get(getParent(path));
+                    if (parent != null) {
+                        String name = path.substring(getParent(path).length(), path.length() - 1);
+                        parent.subdirectories.add(name);
+                    }
+                });
+        for (String[] fields : fileLines) {
+            String path = fromSingleLine(fields[4]);
+            DirectoryEntry parent = directories.get(getParent(path));
+            if (parent != null) {
+                files.put(path, new FileEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), "1".equals(fields[3])));
+                parent.fileNames.add(path.substring(getParent(path).length()));
+            }
+        }
+        return true;
+    }
+}
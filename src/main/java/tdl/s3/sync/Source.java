@@ -2,13 +2,15 @@ package tdl.s3.sync;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.function.BiPredicate;
-import java.util.stream.Collectors;
 
 public class Source {
 
@@ -18,6 +20,8 @@ public class Source {
 
     private Filters filters;
 
+    private Bundling bundling;
+
     public static class Builder {
 
         private final Source source = new Source();
@@ -40,6 +44,14 @@ public class Source {
             return this;
         }
 
+        /**
+         * Packs the small files into bundles, see {@link Bundling}. Without it every file is an object of its own.
+         */
+        public Builder setBundling(Bundling bundling) {
+            source.bundling = bundling;
+            return this;
+        }
+
         public Source create() {
             if (source.filters == null) {
                 throw new RuntimeException("Cannot found filters.");
@@ -64,25 +76,55 @@ public class Source {
         return isRecursive;
     }
 
+    public Bundling getBundling() {
+        return bundling;
+    }
+
     public boolean isValidPath() {
         File file = path.toFile();
         return file.isDirectory();
     }
 
+    /**
+     * Lists the accepted files, without descending into the excluded directories.
+     */
     public List<String> getFilesToUpload() {
+        int maxDepth = isRecursive ? Integer.MAX_VALUE : 1;
+        List<String> files = new ArrayList<>();
         try {
-            int maxDepth = isRecursive ? Integer.MAX_VALUE : 1;
-            File base = path.toFile();
-            BiPredicate<Path, BasicFileAttributes> matcher = (filePath, fileAttr) -> {
-                return fileAttr.isRegularFile() && filters.accept(filePath);
-            };
-            return Files.find(path, maxDepth, matcher)
-                    .map(filePath -> {
-                        return base.toURI().relativize(filePath.toFile().toURI()).getPath();
-                    })
-                    .collect(Collectors.toList());
+            Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) {
+                    if (!directory.equals(path) && !filters.acceptDirectory(directory)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && filters.accept(file)) {
+                        files.add(getRelativePath(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return files;
         } catch (IOException ex) {
             return new ArrayList<>();
         }
     }
+
+    private String getRelativePath(Path file) {
+        return path.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Lists the files to upload, remembering what was seen in the cache.
+     * With {@code changedOnly} only the files that are new or changed since the previous scan
+     * are listed, and the directories that did not change are not listed again.
+     */
+    public List<String> getFilesToUpload(ScanCache cache, boolean changedOnly) {
+        return cache.scan(this, changedOnly);
+    }
 }
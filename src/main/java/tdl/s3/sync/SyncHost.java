@@ -0,0 +1,117 @@
+package tdl.s3.sync;
+
+import org.slf4j.Logger;
+import tdl.s3.sync.destination.Destination;
+import tdl.s3.upload.SharedUploadScheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Runs several sync jobs, each pairing a {@link Source} with a {@link Destination}, in one process.
+ *
+ * The jobs upload their parts on one {@link SharedUploadScheduler}, which shares the threads
+ * between them by weight and lends the share of idle jobs to the busy ones.
+ * Part buffers come from the process wide {@link tdl.s3.upload.PartBufferPool}, so the jobs
+ * also share one memory budget. Jobs of the same account should be given destinations
+ * built on the same client, so they share its connections too.
+ */
+public class SyncHost {
+    private static final Logger log = getLogger(SyncHost.class);
+
+    private final SharedUploadScheduler scheduler;
+
+    private final Map<String, RemoteSync> jobs = new LinkedHashMap<>();
+
+    public SyncHost(int uploadThreadCount) {
+        this.scheduler = new SharedUploadScheduler(uploadThreadCount);
+    }
+
+    /**
+     * Adds a job. The returned sync can be configured further, but should only be run through the host.
+     *
+     * @param weight share of the upload threads the job gets while other jobs are busy too
+     */
+    public synchronized RemoteSync addJob(String name, Source source, Destination destination, int weight) {
+        if (jobs.containsKey(name)) {
+            throw new IllegalArgumentException("Job " + name + " already exists");
+        }
+        RemoteSync sync = new RemoteSync(source, destination);
+        sync.setUploadExecutor(scheduler.register(name, weight));
+        jobs.put(name, sync);
+        return sync;
+    }
+
+    /**
+     * Synchronizes every job once, the jobs running at the same time.
+     */
+    public void run() {
+        runJobs("sync", RemoteSync::run);
+    }
+
+    /**
+     * Synchronizes every job, then keeps uploading their files as they change until {@link #stopWatching()}.
+     */
+    public void watch() {
+        runJobs("watch", sync -> {
+            try {
+                sync.watch();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    public synchronized void stopWatching() {
+        jobs.values().forEach(RemoteSync::stopWatching);
+    }
+
+    /**
+     * Waits for the running uploads of every job and stops the upload threads.
+     */
+    public void shutdown() {
+        List<RemoteSync> syncs;
+        synchronized (this) {
+            syncs = new ArrayList<>(jobs.values());
+        }
+        syncs.forEach(RemoteSync::shutdown);
+        scheduler.shutdown();
+    }
+
+    /**
+     * One failing job does not stop the others.
+     */
+    private void runJobs(String action, Consumer<RemoteSync> jobAction) {
+        Map<String, RemoteSync> jobsToRun;
+        synchronized (this) {
+            jobsToRun = new LinkedHashMap<>(jobs);
+        }
+        List<Thread> threads = new ArrayList<>();
+        jobsToRun.forEach((name, sync) -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    jobAction.accept(sync);
+                } catch (RuntimeException ex) {
+                    log.error("Job " + name + " failed to " + action, ex);
+                }
+            }, "sync-job-" + name);
+            threads.add(thread);
+            thread.start();
+        });
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                stopWatching();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package tdl.s3.sync;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Local record of what the sync already uploaded, kept on disk between runs.
+ *
+ * Files marked as completed are skipped without asking the destination, as long as
+ * their size and modification time did not change, so a run over an unchanged folder
+ * does not list the bucket at all. Every
+ * {@code reconcileInterval} the completed flags are ignored once, so that the
+ * manifest gets checked against the destination again.
+ */
+public class SyncManifest {
+    private static final Logger log = getLogger(SyncManifest.class);
+
+    private static final String HEADER = "# s3-sync manifest v2";
+
+    private static final String RECONCILED_PREFIX = "#reconciled=";
+
+    public static final long DEFAULT_RECONCILE_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    public static class Entry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final boolean completed;
+
+        Entry(long size, long lastModified, boolean completed) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.completed = completed;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
+    private final Path manifestPath;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    private volatile long lastReconciled = 0;
+
+    private SyncManifest(Path manifestPath) {
+        this.manifestPath = manifestPath;
+    }
+
+    /**
+     * Loads the manifest, or starts an empty one if the file does not exist or can not be read.
+     */
+    public static SyncManifest load(Path manifestPath) {
+        SyncManifest manifest = new SyncManifest(manifestPath);
+        if (Files.exists(manifestPath)) {
+            try {
+                manifest.read();
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Cannot read sync manifest " + manifestPath + ", starting from scratch", ex);
+                manifest.entries.clear();
+                manifest.lastReconciled = 0;
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * A manifest that only lives as long as the process, {@link #save()} does nothing.
+     */
+    public static SyncManifest inMemory() {
+        return new SyncManifest(null);
+    }
+
+    public void setReconcileInterval(long reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    public Optional<Entry> get(String path) {
+        return Optional.ofNullable(entries.get(path));
+    }
+
+    /**
+     * Whether the file was uploaded as it is now: a file rewritten since is not completed anymore.
+     */
+    public boolean isCompleted(String path, File file) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.isCompleted()
+                && entry.size == file.length() && entry.lastModified == file.lastModified();
+    }
+
+    public void markCompleted(String path, long size, long lastModified) {
+        entries.put(path, new Entry(size, lastModified, true));
+    }
+
+    public void markIncomplete(String path, long size, long lastModified) {
+        entries.put(path, new Entry(size, lastModified, false));
+    }
+
+    public boolean isReconcileDue() {
+        return System.currentTimeMillis() - lastReconciled >= reconcileInterval;
+    }
+
+    public void reconciled() {
+        lastReconciled = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes the manifest to a temporary file first, so a crash never leaves a truncated manifest.
+     */
+    public synchronized void save() throws IOException {
+        if (manifestPath == null) {
+            return;
+        }
+        Path directory = manifestPath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempPath = Files.createTempFile(directory, manifestPath.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(RECONCILED_PREFIX + lastReconciled);
+            writer.newLine();
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                writer.write((entry.completed ? "1" : "0") + "\t"
+                        + entry.size + "\t"
+                        + entry.lastModified + "\t"
+                        + ScanCache.toSingleLine(item.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown manifest format: " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RECONCILED_PREFIX)) {
+                    lastReconciled = Long.parseLong(line.substring(RECONCILED_PREFIX.length()));
+                } else if (!line.isEmpty()) {
+                    readEntry(line);
+                }
+            }
+        }
+    }
+
+    private void readEntry(String line) throws IOException {
+        String[] fields = line.split("\t", 4);
+        if (fields.length != 4) {
+            throw new IOException("Invalid manifest entry: " + line);
+        }
+        entries.put(ScanCache.fromSingleLine(fields[3]), new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), "1".equals(fields[0])));
+    }
+}
@@ -5,6 +5,7 @@ import com.amazonaws.services.s3.model.PartListing;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import tdl.s3.upload.MultipartUploadResult;
 
+import java.io.InputStream;
 import java.util.List;
 
 public interface Destination {
@@ -18,10 +19,22 @@ public interface Destination {
 
     PartListing getAlreadyUploadedParts(String remotePath) throws DestinationOperationException;
 
+    /**
+     * Lists the parts of a known upload, or returns null if the upload no longer exists.
+     */
+    PartListing getUploadedParts(String remotePath, String uploadId) throws DestinationOperationException;
+
     MultipartUploadResult uploadMultiPart(UploadPartRequest request) throws DestinationOperationException;
 
     void commitMultipartUpload(String remotePath, List<PartETag> eTags, String uploadId) throws DestinationOperationException;
 
     UploadPartRequest createUploadPartRequest(String remotePath) throws DestinationOperationException;
 
+    /**
+     * Uploads a whole object in a single request, for the files too small to be worth a multipart upload.
+     *
+     * @param md5Digest base64 MD5 of the content, checked by the destination
+     */
+    void putObject(String remotePath, InputStream content, long contentLength, String md5Digest) throws DestinationOperationException;
+
 }
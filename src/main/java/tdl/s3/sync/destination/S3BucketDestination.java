@@ -1,5 +1,6 @@
 package tdl.s3.sync.destination;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.regions.Regions;
@@ -9,6 +10,7 @@ import com.amazonaws.services.s3.model.*;
 import tdl.s3.upload.MultipartUploadFinder;
 import tdl.s3.upload.MultipartUploadResult;
 
+import java.io.InputStream;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -16,11 +18,13 @@ public class S3BucketDestination implements Destination {
     private final AmazonS3 awsClient;
     private final String bucket;
     private final String prefix;
+    private final MultipartUploadFinder multipartUploadFinder;
 
     public S3BucketDestination(AmazonS3 awsClient, String bucket, String prefix) {
         this.awsClient = awsClient;
         this.bucket = bucket;
         this.prefix = prefix;
+        this.multipartUploadFinder = new MultipartUploadFinder(awsClient, bucket, prefix);
     }
 
     // ~~~~ Public methods
@@ -48,6 +52,8 @@ public class S3BucketDestination implements Destination {
 
     @Override
     public void startS3SyncSession() throws DestinationOperationException {
+        //Uploads may have been started or completed elsewhere since the last session
+        invalidateMultipartUploadIndex();
         try {
             // Upload a file to S3 to prove that the user if not expired and has write permissions to the bucket + prefix
             awsClient.putObject(bucket, prefix + "last_sync_start.txt", "timestamp: " + System.currentTimeMillis());
@@ -66,11 +72,22 @@ public class S3BucketDestination implements Destination {
         }
     }
 
+    /**
+     * Forgets the in progress uploads listed so far, the next lookup lists them again.
+     */
+    public void invalidateMultipartUploadIndex() {
+        multipartUploadFinder.invalidate();
+    }
+
     @Override
     public List<String> filterUploadableFiles(List<String> paths) {
-        Set<String> existingItems = listAllObjects().stream()
-                .map(S3ObjectSummary::getKey)
-                .collect(Collectors.toSet());
+        if (paths.isEmpty()) {
+            return new ArrayList<>();
+        }
+        TreeSet<String> candidateKeys = paths.stream()
+                .map(this::getFullPath)
+                .collect(Collectors.toCollection(TreeSet::new));
+        Set<String> existingItems = listObjectsInRange(candidateKeys.first(), candidateKeys.last());
 
         int trimLength = prefix.length();
         return paths.stream()
@@ -80,18 +97,30 @@ public class S3BucketDestination implements Destination {
                 .collect(Collectors.toList());
     }
 
-    private Set<S3ObjectSummary> listAllObjects() {
-        ListObjectsRequest request = new ListObjectsRequest()
+    /**
+     * Lists the keys between the first and last key, both included, instead of the whole prefix.
+     * Keys are listed in order, so listing starts right before the first key and stops
+     * after the last one: when only a few new files are checked, typically the latest
+     * recordings, only the end of the prefix is listed.
+     */
+    private Set<String> listObjectsInRange(String firstKey, String lastKey) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
                 .withBucketName(bucket)
-                .withPrefix(prefix);
-        ObjectListing result;
-        Set<S3ObjectSummary> summaries = new HashSet<>();
+                .withPrefix(prefix)
+                //Any proper prefix of the first key sorts right before it
+                .withStartAfter(firstKey.substring(0, firstKey.length() - 1));
+        ListObjectsV2Result result;
+        Set<String> keys = new HashSet<>();
         do {
-            result = awsClient.listObjects(request);
-            request.setMarker(result.getNextMarker());
-            summaries.addAll(result.getObjectSummaries());
+            result = awsClient.listObjectsV2(request);
+            request.setContinuationToken(result.getNextContinuationToken());
+            List<S3ObjectSummary> summaries = result.getObjectSummaries();
+            summaries.forEach(summary -> keys.add(summary.getKey()));
+            if (!summaries.isEmpty() && summaries.get(summaries.size() - 1).getKey().compareTo(lastKey) > 0) {
+                break;
+            }
         } while (result.isTruncated());
-        return summaries;
+        return keys;
     }
 
     @Override
@@ -100,6 +129,7 @@ public class S3BucketDestination implements Destination {
         try {
             InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucket, path);
             InitiateMultipartUploadResult result = awsClient.initiateMultipartUpload(request);
+            multipartUploadFinder.uploadStarted(path, result.getUploadId());
             return result.getUploadId();
         } catch (AmazonS3Exception ex) {
             throw new DestinationOperationException("Fail to initialize uploading process: " + path, ex);
@@ -116,6 +146,20 @@ public class S3BucketDestination implements Destination {
                 .orElse(null);
     }
 
+    @Override
+    public PartListing getUploadedParts(String remotePath, String uploadId) throws DestinationOperationException {
+        try {
+            return getPartListing(remotePath, uploadId);
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() == 404) {
+                return null;
+            }
+            throw new DestinationOperationException("Failed to list parts of upload: " + getFullPath(remotePath), ex);
+        } catch (AmazonClientException ex) {
+            throw new DestinationOperationException("Failed to list parts of upload: " + getFullPath(remotePath), ex);
+        }
+    }
+
     @Override
     public MultipartUploadResult uploadMultiPart(UploadPartRequest request) throws DestinationOperationException {
         try {
@@ -136,6 +180,7 @@ public class S3BucketDestination implements Destination {
                 eTags
         );
         completeMultipartUpload(request);
+        multipartUploadFinder.uploadCompleted(request.getKey());
     }
 
     @Override
@@ -144,6 +189,19 @@ public class S3BucketDestination implements Destination {
                 .withBucketName(bucket)
                 .withKey(getFullPath(remotePath));
     }
+
+    @Override
+    public void putObject(String remotePath, InputStream content, long contentLength, String md5Digest) throws DestinationOperationException {
+        String path = getFullPath(remotePath);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        metadata.setContentMD5(md5Digest);
+        try {
+            awsClient.putObject(new PutObjectRequest(bucket, path, content, metadata));
+        } catch (AmazonClientException ex) {
+            throw new DestinationOperationException("Fail to upload object: " + path, ex);
+        }
+    }
     // ~~~ MultiPart Helpers
 
     private void completeMultipartUpload(CompleteMultipartUploadRequest request) throws DestinationOperationException {
@@ -155,12 +213,7 @@ public class S3BucketDestination implements Destination {
     }
 
     private MultipartUpload findOrNull(String remotePath) throws DestinationOperationException {
-        MultipartUploadFinder finder = new MultipartUploadFinder(awsClient, bucket, prefix);
-        List<MultipartUpload> uploads = finder.getAlreadyStartedMultipartUploads();
-        return uploads.stream()
-                .filter(upload -> upload.getKey().equals(getFullPath(remotePath)))
-                .findAny()
-                .orElse(null);
+        return multipartUploadFinder.findOrNull(getFullPath(remotePath));
     }
     // ~~~ Part Helpers
 
@@ -169,8 +222,20 @@ public class S3BucketDestination implements Destination {
         return listParts(request);
     }
 
+    /**
+     * Lists every part of the upload: a single response holds at most 1000 parts,
+     * so the following pages are requested from the part number marker of the previous one.
+     */
     private PartListing listParts(ListPartsRequest request) {
-        return awsClient.listParts(request);
+        PartListing listing = awsClient.listParts(request);
+        PartListing page = listing;
+        while (page.isTruncated()) {
+            request.setPartNumberMarker(page.getNextPartNumberMarker());
+            page = awsClient.listParts(request);
+            listing.getParts().addAll(page.getParts());
+        }
+        listing.setTruncated(false);
+        return listing;
     }
     // ~~~ Path helpers
 
@@ -1,8 +1,12 @@
 package tdl.s3.sync.progress;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class UploadStatsProgressListener implements ProgressListener {
@@ -50,34 +54,60 @@ public class UploadStatsProgressListener implements ProgressListener {
         }
     }
 
-    private FileUploadStat fileUploadStat = null;
+    //Several files can be uploaded at the same time, stats are kept per upload
+    private final Map<String, FileUploadStat> fileUploadStats = new ConcurrentHashMap<>();
+
+    private final Map<File, String> uploadIds = new ConcurrentHashMap<>();
+
+    private volatile FileUploadStat lastStartedStat = null;
 
     @Override
     public void uploadFileStarted(File file, String uploadId, long uploadedByte) {
-        fileUploadStat = new FileUploadStat(file.length(), uploadedByte);
+        FileUploadStat fileUploadStat = new FileUploadStat(file.length(), uploadedByte);
+        fileUploadStats.put(uploadId, fileUploadStat);
+        uploadIds.put(file, uploadId);
+        lastStartedStat = fileUploadStat;
     }
 
     @Override
     public void uploadFileProgress(String uploadId, long uploadedByte) {
-        fileUploadStat.incrementUploadedSize(uploadedByte);
+        FileUploadStat fileUploadStat = fileUploadStats.get(uploadId);
+        if (fileUploadStat != null) {
+            fileUploadStat.incrementUploadedSize(uploadedByte);
+        }
     }
 
     @Override
     public void uploadFileFinished(File file) {
-        fileUploadStat = null;
+        String uploadId = uploadIds.remove(file);
+        if (uploadId != null) {
+            FileUploadStat fileUploadStat = fileUploadStats.remove(uploadId);
+            if (fileUploadStat == lastStartedStat) {
+                lastStartedStat = null;
+            }
+        }
     }
 
 
     //~~~~ Getters
 
 
+    /**
+     * Stats of the most recently started upload that is still running.
+     */
     public Optional<FileUploadStat> getCurrentStats() {
-        //TODO Improve this class so that it can handle multiple uploads simultaneously
-        return Optional.ofNullable(fileUploadStat);
+        FileUploadStat fileUploadStat = lastStartedStat;
+        if (fileUploadStat != null) {
+            return Optional.of(fileUploadStat);
+        }
+        return fileUploadStats.values().stream().findFirst();
     }
 
+    public Collection<FileUploadStat> getAllCurrentStats() {
+        return new ArrayList<>(fileUploadStats.values());
+    }
 
     public boolean isCurrentlyUploading() {
-        return fileUploadStat != null;
+        return !fileUploadStats.isEmpty();
     }
 }
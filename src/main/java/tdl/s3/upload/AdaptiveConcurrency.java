@@ -0,0 +1,176 @@
+package tdl.s3.upload;
+
+import com.amazonaws.AmazonServiceException;
+import org.slf4j.Logger;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Finds how many parts should be uploaded at the same time, additive increase, multiplicative decrease.
+ *
+ * Part uploads are measured in rounds of as many parts as the current limit. After a round
+ * the limit grows by one if the total throughput improved over the previous round, and shrinks
+ * when the time per byte of a part rose well above the best seen recently, which means the
+ * extra parts only queue up somewhere. A throttling error (503 SlowDown) or a timeout halves
+ * the limit at once, at most once per round since the parts in flight tend to fail together.
+ * The limit always stays between the bounds.
+ */
+public class AdaptiveConcurrency {
+    private static final Logger log = getLogger(AdaptiveConcurrency.class);
+
+    private static final int DEFAULT_MIN_LIMIT = 1;
+
+    private static final int DEFAULT_MAX_LIMIT = 32;
+
+    //Throughput has to improve by that much for another part to be worth it
+    private static final double MIN_THROUGHPUT_GAIN = 1.05;
+
+    //Time per byte that far above the best round means the parts are queuing
+    private static final double LATENCY_TOLERANCE = 1.5;
+
+    //The best time per byte slowly expires, so a link that got slower for good is accepted
+    private static final double BASELINE_DRIFT = 1.05;
+
+    private static final double LATENCY_BACKOFF = 0.75;
+
+    private static final double ERROR_BACKOFF = 0.5;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private int limit;
+
+    private int roundParts;
+
+    private long roundBytes;
+
+    private long roundNanos;
+
+    private long roundStartNanos;
+
+    private boolean decreasedThisRound;
+
+    private double previousThroughput;
+
+    private double baselineNanosPerByte;
+
+    public AdaptiveConcurrency() {
+        this(DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, ConcurrentMultipartUploader.DEFAULT_THREAD_COUNT);
+    }
+
+    public AdaptiveConcurrency(int maxLimit) {
+        this(DEFAULT_MIN_LIMIT, maxLimit, ConcurrentMultipartUploader.DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * @param minLimit     fewest parts uploaded at the same time, whatever the errors
+     * @param maxLimit     most parts uploaded at the same time, also the most upload threads
+     * @param initialLimit limit to start from
+     */
+    public AdaptiveConcurrency(int minLimit, int maxLimit, int initialLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits should be 1 <= min <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * How many parts should be uploaded at the same time now.
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Called once a part was uploaded.
+     */
+    public synchronized void recordSuccess(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        if (roundParts == 0) {
+            //Idle time before the round does not count against it
+            roundStartNanos = System.nanoTime() - nanos;
+        }
+        roundParts++;
+        roundBytes += bytes;
+        roundNanos += nanos;
+        if (roundParts >= limit) {
+            endRound();
+        }
+    }
+
+    /**
+     * Called when a part upload failed. Only throttling errors and timeouts change the limit.
+     */
+    public synchronized void recordFailure(Throwable failure) {
+        if (!isCongestion(failure) || decreasedThisRound) {
+            return;
+        }
+        setLimit((int) (limit * ERROR_BACKOFF), "upload failed with " + failure);
+        startRound();
+        decreasedThisRound = true;
+    }
+
+    private void endRound() {
+        double nanosPerByte = roundNanos / (double) roundBytes;
+        long elapsedNanos = Math.max(1, System.nanoTime() - roundStartNanos);
+        double throughput = roundBytes / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+
+        if (baselineNanosPerByte == 0 || nanosPerByte < baselineNanosPerByte) {
+            baselineNanosPerByte = nanosPerByte;
+        }
+        if (nanosPerByte > baselineNanosPerByte * LATENCY_TOLERANCE) {
+            setLimit((int) (limit * LATENCY_BACKOFF), "part latency rose");
+        } else if (throughput > previousThroughput * MIN_THROUGHPUT_GAIN) {
+            setLimit(limit + 1, "throughput improved");
+        }
+        baselineNanosPerByte *= BASELINE_DRIFT;
+        previousThroughput = throughput;
+        startRound();
+        decreasedThisRound = false;
+    }
+
+    private void startRound() {
+        roundParts = 0;
+        roundBytes = 0;
+        roundNanos = 0;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (newLimit != limit) {
+            log.debug("Parts in flight " + limit + " -> " + newLimit + ", " + reason);
+            limit = newLimit;
+        }
+    }
+
+    private static boolean isCongestion(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException serviceException = (AmazonServiceException) cause;
+                return serviceException.getStatusCode() == 503
+                        || "SlowDown".equals(serviceException.getErrorCode())
+                        || "RequestTimeout".equals(serviceException.getErrorCode());
+            }
+        }
+        return false;
+    }
+}
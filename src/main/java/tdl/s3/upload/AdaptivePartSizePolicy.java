@@ -0,0 +1,176 @@
+package tdl.s3.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the part size from the file size, its growth rate and the measured throughput.
+ *
+ * On a fast link parts grow so that each one takes about {@code targetPartSeconds}
+ * to upload, which means fewer requests. A file that is still being written gets
+ * parts no larger than what it writes in {@code maxTailLagSeconds}, so the uploaded
+ * data does not lag too far behind the recording. In every case the part is large
+ * enough for the (projected) file to fit in {@link #MAXIMUM_PART_COUNT} parts.
+ */
+public class AdaptivePartSizePolicy implements PartSizePolicy {
+
+    private static final int SIZE_GRANULARITY = 1024 * 1024;
+
+    //Parts are read into byte arrays, so they can not get anywhere near 2 GB
+    private static final int HARD_MAXIMUM_PART_SIZE = 1024 * 1024 * 1024;
+
+    private static final int DEFAULT_MAXIMUM_PART_SIZE = 64 * 1024 * 1024;
+
+    private static final double DEFAULT_TARGET_PART_SECONDS = 5;
+
+    private static final double DEFAULT_MAX_TAIL_LAG_SECONDS = 30;
+
+    private static final double DEFAULT_PROJECTION_HOURS = 6;
+
+    //Weight of the latest sample in the throughput average
+    private static final double THROUGHPUT_SMOOTHING = 0.2;
+
+    //Growing files followed at the same time, the least recently seen one is forgotten beyond that
+    private static final int MAX_OBSERVED_FILES = 1024;
+
+    private final int maximumPartSize;
+
+    private final double targetPartSeconds;
+
+    private final double maxTailLagSeconds;
+
+    private final double projectionSeconds;
+
+    //Only files still being written, a finished file no longer grows
+    private final Map<String, SizeObservation> lastObservations = new LinkedHashMap<String, SizeObservation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SizeObservation> eldest) {
+            return size() > MAX_OBSERVED_FILES;
+        }
+    };
+
+    private double bytesPerSecond = 0;
+
+    public AdaptivePartSizePolicy() {
+        this(DEFAULT_MAXIMUM_PART_SIZE, DEFAULT_TARGET_PART_SECONDS, DEFAULT_MAX_TAIL_LAG_SECONDS, DEFAULT_PROJECTION_HOURS);
+    }
+
+    /**
+     * @param maximumPartSize   largest part chosen for throughput, bigger parts are only used to respect the part count limit
+     * @param targetPartSeconds how long a single part should take to upload
+     * @param maxTailLagSeconds how much of a growing file's output a single part may hold
+     * @param projectionHours   how long a growing file is expected to keep growing at its current rate
+     */
+    public AdaptivePartSizePolicy(int maximumPartSize, double targetPartSeconds, double maxTailLagSeconds, double projectionHours) {
+        if (maximumPartSize < MINIMUM_PART_SIZE || maximumPartSize > HARD_MAXIMUM_PART_SIZE) {
+            throw new IllegalArgumentException("Maximum part size should be between "
+                    + MINIMUM_PART_SIZE + " and " + HARD_MAXIMUM_PART_SIZE);
+        }
+        this.maximumPartSize = maximumPartSize;
+        this.targetPartSeconds = targetPartSeconds;
+        this.maxTailLagSeconds = maxTailLagSeconds;
+        this.projectionSeconds = projectionHours * 3600;
+    }
+
+    @Override
+    public int choosePartSize(File file, long fileSize, boolean isWritingFinished) {
+        double growthRate = observeGrowthRate(file, fileSize, isWritingFinished);
+
+        long partSize = MINIMUM_PART_SIZE;
+        double throughput = getBytesPerSecond();
+        if (throughput > 0) {
+            partSize = Math.max(partSize, (long) (throughput * targetPartSeconds));
+        }
+        if (!isWritingFinished && growthRate > 0) {
+            partSize = Math.min(partSize, (long) (growthRate * maxTailLagSeconds));
+        }
+        partSize = Math.min(partSize, maximumPartSize);
+
+        long expectedSize = isWritingFinished ? fileSize : fileSize + (long) (growthRate * projectionSeconds);
+        long partCountLimitedSize = (expectedSize + MAXIMUM_PART_COUNT - 1) / MAXIMUM_PART_COUNT;
+        partSize = Math.max(partSize, partCountLimitedSize);
+
+        partSize = Math.max(partSize, MINIMUM_PART_SIZE);
+        return (int) Math.min(roundUp(partSize), HARD_MAXIMUM_PART_SIZE);
+    }
+
+    @Override
+    public synchronized void recordPartUpload(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double sample = bytes / (nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        bytesPerSecond = bytesPerSecond == 0
+                ? sample
+                : bytesPerSecond + THROUGHPUT_SMOOTHING * (sample - bytesPerSecond);
+    }
+
+    synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    synchronized int getObservedFileCount() {
+        return lastObservations.size();
+    }
+
+    /**
+     * Growth since the previous time the same file was seen, in bytes per second.
+     * A file seen for the first time is assumed to have grown steadily since it was created.
+     * A finished file is forgotten, its growth rate is not used anymore.
+     */
+    private double observeGrowthRate(File file, long fileSize, boolean isWritingFinished) {
+        SizeObservation current = new SizeObservation(fileSize, System.nanoTime());
+        SizeObservation previous;
+        synchronized (this) {
+            previous = isWritingFinished
+                    ? lastObservations.remove(file.getAbsolutePath())
+                    : lastObservations.put(file.getAbsolutePath(), current);
+        }
+        if (isWritingFinished) {
+            return 0;
+        }
+        if (previous == null) {
+            return getAverageGrowthRateSinceCreation(file, fileSize);
+        }
+        if (current.nanoTime <= previous.nanoTime || fileSize <= previous.size) {
+            return 0;
+        }
+        double elapsedSeconds = (current.nanoTime - previous.nanoTime) / (double) TimeUnit.SECONDS.toNanos(1);
+        return (fileSize - previous.size) / elapsedSeconds;
+    }
+
+    private static double getAverageGrowthRateSinceCreation(File file, long fileSize) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            long writingMillis = attributes.lastModifiedTime().toMillis() - attributes.creationTime().toMillis();
+            if (writingMillis < TimeUnit.SECONDS.toMillis(1)) {
+                //File systems without a creation time report the modification time instead
+                return 0;
+            }
+            return fileSize / (writingMillis / 1000.0);
+        } catch (IOException | UnsupportedOperationException ex) {
+            return 0;
+        }
+    }
+
+    private static long roundUp(long size) {
+        return (size + SIZE_GRANULARITY - 1) / SIZE_GRANULARITY * SIZE_GRANULARITY;
+    }
+
+    private static class SizeObservation {
+
+        private final long size;
+
+        private final long nanoTime;
+
+        SizeObservation(long size, long nanoTime) {
+            this.size = size;
+            this.nanoTime = nanoTime;
+        }
+    }
+}
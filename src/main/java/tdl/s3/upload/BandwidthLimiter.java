@@ -0,0 +1,81 @@
+package tdl.s3.upload;
+
+import java.time.Clock;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the bytes sent per second.
+ *
+ * The bucket holds up to one second of the current rate, so short bursts go through
+ * at full speed while the average stays under the rate. A read larger than the bucket
+ * is let through and paid back by the next ones. The rate follows a
+ * {@link BandwidthSchedule} and can be changed while uploads are running.
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Clock clock;
+
+    private volatile BandwidthSchedule schedule;
+
+    private double availableBytes = 0;
+
+    private long lastRefillNanos = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(BandwidthSchedule.constant(bytesPerSecond));
+    }
+
+    public BandwidthLimiter(BandwidthSchedule schedule) {
+        this(schedule, Clock.systemDefaultZone());
+    }
+
+    BandwidthLimiter(BandwidthSchedule schedule, Clock clock) {
+        this.schedule = schedule;
+        this.clock = clock;
+    }
+
+    public void setSchedule(BandwidthSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        setSchedule(BandwidthSchedule.constant(bytesPerSecond));
+    }
+
+    /**
+     * Current rate in bytes per second, 0 when unlimited.
+     */
+    public long getBytesPerSecond() {
+        return schedule.getRate(LocalTime.now(clock));
+    }
+
+    /**
+     * Takes the bytes from the bucket, sleeping until the rate allows them.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos = reserve(bytes);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private synchronized long reserve(int bytes) {
+        long rate = getBytesPerSecond();
+        long now = System.nanoTime();
+        if (rate <= BandwidthSchedule.UNLIMITED) {
+            availableBytes = 0;
+            lastRefillNanos = now;
+            return 0;
+        }
+        availableBytes = Math.min(rate, availableBytes + (double) (now - lastRefillNanos) * rate / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+        availableBytes -= bytes;
+        if (availableBytes >= 0) {
+            return 0;
+        }
+        return (long) (-availableBytes * NANOS_PER_SECOND / rate);
+    }
+}
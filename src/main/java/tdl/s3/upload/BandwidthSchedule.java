@@ -0,0 +1,79 @@
+package tdl.s3.upload;
+
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Upload rate depending on the time of day, in bytes per second, 0 meaning unlimited.
+ *
+ * Each rate applies from its start time until the next one, the last rate of the day
+ * carrying on past midnight until the first one.
+ */
+public class BandwidthSchedule {
+
+    public static final long UNLIMITED = 0;
+
+    private final NavigableMap<LocalTime, Long> ratesByStart;
+
+    private BandwidthSchedule(NavigableMap<LocalTime, Long> ratesByStart) {
+        this.ratesByStart = ratesByStart;
+    }
+
+    public static BandwidthSchedule constant(long bytesPerSecond) {
+        NavigableMap<LocalTime, Long> rates = new TreeMap<>();
+        rates.put(LocalTime.MIDNIGHT, bytesPerSecond);
+        return new BandwidthSchedule(rates);
+    }
+
+    public static BandwidthSchedule of(Map<LocalTime, Long> ratesByStart) {
+        if (ratesByStart.isEmpty()) {
+            throw new IllegalArgumentException("Bandwidth schedule should have at least one rate");
+        }
+        return new BandwidthSchedule(new TreeMap<>(ratesByStart));
+    }
+
+    /**
+     * Parses either a single rate, such as {@code 10M}, or rates by start time,
+     * such as {@code 08:00=2M,19:00=0}. Rates accept the K, M and G suffixes.
+     */
+    public static BandwidthSchedule parse(String schedule) {
+        if (!schedule.contains("=")) {
+            return constant(parseRate(schedule));
+        }
+        Map<LocalTime, Long> rates = new TreeMap<>();
+        for (String item : schedule.split(",")) {
+            String[] fields = item.trim().split("=");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + item);
+            }
+            rates.put(LocalTime.parse(fields[0].trim()), parseRate(fields[1]));
+        }
+        return of(rates);
+    }
+
+    static long parseRate(String rate) {
+        String value = rate.trim().toUpperCase();
+        long multiplier = 1;
+        if (value.endsWith("K")) {
+            multiplier = 1024;
+        } else if (value.endsWith("M")) {
+            multiplier = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return (long) (Double.parseDouble(value) * multiplier);
+    }
+
+    public long getRate(LocalTime time) {
+        Map.Entry<LocalTime, Long> current = ratesByStart.floorEntry(time);
+        if (current == null) {
+            current = ratesByStart.lastEntry();
+        }
+        return current.getValue();
+    }
+}
@@ -1,21 +1,53 @@
 package tdl.s3.upload;
 
+import com.amazonaws.internal.ResettableInputStream;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import tdl.s3.sync.destination.Destination;
+import org.slf4j.Logger;
 import tdl.s3.sync.destination.DestinationOperationException;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.slf4j.LoggerFactory.getLogger;
 
 public class ConcurrentMultipartUploader {
+    private static final Logger log = getLogger(ConcurrentMultipartUploader.class);
 
-    private static final int DEFAULT_THREAD_COUNT = 4;
+    static final int DEFAULT_THREAD_COUNT = 4;
 
     private static final int MAX_UPLOADING_TIME = 360;
 
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    //Only hands the retries back to the upload threads once their delay is over, so one thread is enough
+    private static final ScheduledExecutorService RETRY_SCHEDULER =
+            new ScheduledThreadPoolExecutor(1, createThreadFactory("s3-part-retry"));
+
     private final Destination destination;
 
     private final ExecutorService executorService;
 
+    private final Executor sharedExecutor;
+
+    private final PrioritizedExecutor prioritizedExecutor;
+
+    private volatile List<BandwidthLimiter> bandwidthLimiters = Collections.emptyList();
+
+    private volatile AdaptiveConcurrency concurrency;
+
+    private volatile UploadRetryPolicy retryPolicy = new UploadRetryPolicy();
+
     public ConcurrentMultipartUploader(Destination destination) {
         this(destination, DEFAULT_THREAD_COUNT);
     }
@@ -25,35 +57,435 @@ public class ConcurrentMultipartUploader {
         if (threadCount < 1) {
             throw new IllegalArgumentException("Thread count should be >= 1");
         }
-        executorService = Executors.newFixedThreadPool(threadCount);
+        executorService = createExecutorService(threadCount);
+        sharedExecutor = null;
+        prioritizedExecutor = new PrioritizedExecutor(executorService);
+    }
+
+    /**
+     * Runs the parts on threads owned by someone else, such as a {@link SharedUploadScheduler}.
+     * Shutting the uploader down then leaves the threads running.
+     */
+    ConcurrentMultipartUploader(Destination destination, Executor sharedExecutor) {
+        this.destination = destination;
+        this.executorService = null;
+        this.sharedExecutor = sharedExecutor;
+        this.prioritizedExecutor = new PrioritizedExecutor(sharedExecutor);
+    }
+
+    /**
+     * The uploader is meant to be created once and shared by all the files of a sync.
+     * Per-file completion is tracked with the futures of each file's parts, so the pool
+     * only needs to be shut down when the owner is done with it.
+     * Threads are daemons and idle ones time out, so a pool nobody shut down does not
+     * keep the JVM alive or hold threads forever.
+     */
+    private static ExecutorService createExecutorService(int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                createThreadFactory("s3-part-upload"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static ThreadFactory createThreadFactory(String namePrefix) {
+        int poolNumber = POOL_COUNTER.incrementAndGet();
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + poolNumber + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Limits the rate parts are sent at, every limiter applying to every part.
+     * Takes effect for the parts starting after the call.
+     */
+    void setBandwidthLimiters(List<BandwidthLimiter> bandwidthLimiters) {
+        this.bandwidthLimiters = Collections.unmodifiableList(new ArrayList<>(bandwidthLimiters));
+    }
+
+    /**
+     * Lets the controller choose how many parts are uploaded at the same time.
+     * The threads owned by the uploader follow its limit. Shared threads belong to their owner,
+     * the limit then only bounds how many parts each file keeps in flight.
+     */
+    void setConcurrency(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+        resizeExecutor();
+    }
+
+    AdaptiveConcurrency getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Decides which failed parts are sent again. The budget of the policy covers every file of the uploader.
+     */
+    void setRetryPolicy(UploadRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    UploadRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    private void resizeExecutor() {
+        AdaptiveConcurrency controller = concurrency;
+        if (controller == null || !(executorService instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) executorService;
+        int threadCount = controller.getLimit();
+        synchronized (executor) {
+            //Core size can never exceed the maximum size, even between the two calls
+            if (threadCount > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threadCount);
+                executor.setCorePoolSize(threadCount);
+            } else if (threadCount < executor.getCorePoolSize()) {
+                executor.setCorePoolSize(threadCount);
+                executor.setMaximumPoolSize(threadCount);
+            }
+        }
     }
 
     public ExecutorService getExecutorService() {
         return executorService;
     }
 
+    private Executor getExecutor() {
+        return sharedExecutor != null ? sharedExecutor : getExecutorService();
+    }
+
     void shutdownAndAwaitTermination() throws DestinationOperationException {
         ExecutorService service = getExecutorService();
+        if (service == null) {
+            //Shared threads belong to their owner
+            return;
+        }
         service.shutdown();
         try {
-            service.awaitTermination(MAX_UPLOADING_TIME, TimeUnit.SECONDS);
+            if (!service.awaitTermination(MAX_UPLOADING_TIME, TimeUnit.SECONDS)) {
+                List<Runnable> abandoned = service.shutdownNow();
+                log.warn("Part uploads did not finish in " + MAX_UPLOADING_TIME + " seconds, "
+                        + abandoned.size() + " queued uploads abandoned");
+            }
         } catch (InterruptedException ex) {
             throw new DestinationOperationException("Cannot finish uploading", ex);
         }
     }
 
     Future<MultipartUploadResult> submitTaskForPartUploading(UploadPartRequest request) {
-        Callable<MultipartUploadResult> task = createCallableForPartUploadingAndReturnETag(request);
-        return getExecutorService().submit(task);
+        PartUpload upload = new PartUpload(request, retryPolicy.newFileBudget(), () -> true, getExecutor(), null);
+        upload.submit();
+        return upload;
+    }
+
+    PartCompletionService createCompletionService() {
+        return createCompletionService(0);
+    }
+
+    /**
+     * Parts submitted through the completion service overtake the waiting parts of a lower priority,
+     * lower values first.
+     */
+    PartCompletionService createCompletionService(long priority) {
+        return new PartCompletionService(prioritizedExecutor.withPriority(priority));
+    }
+
+    Future<MultipartUploadResult> submitTaskForPartUploading(UploadPartRequest request, PartCompletionService completionService) {
+        return submitTaskForPartUploading(request, completionService, retryPolicy.newFileBudget());
+    }
+
+    /**
+     * @param fileBudget retries shared by the parts of the same file
+     */
+    Future<MultipartUploadResult> submitTaskForPartUploading(UploadPartRequest request,
+                                                             PartCompletionService completionService,
+                                                             UploadRetryPolicy.FileBudget fileBudget) {
+        return submitTaskForPartUploading(request, completionService, fileBudget, () -> true);
+    }
+
+    /**
+     * @param onStart called on the upload thread before the part is first sent, returning false skips the part,
+     *                whose result is then null
+     */
+    Future<MultipartUploadResult> submitTaskForPartUploading(UploadPartRequest request,
+                                                             PartCompletionService completionService,
+                                                             UploadRetryPolicy.FileBudget fileBudget,
+                                                             BooleanSupplier onStart) {
+        PartUpload upload = new PartUpload(request, fileBudget, onStart, completionService.getExecutor(), completionService);
+        upload.submit();
+        return upload;
     }
 
-    private Callable<MultipartUploadResult> createCallableForPartUploadingAndReturnETag(UploadPartRequest request) {
-        return () -> {
+    /**
+     * Uploads a whole small file in a single request, on the calling thread and through the bandwidth limiters.
+     * A failure is left to the caller, sending the file again costs no more than sending a part again.
+     */
+    void putObject(String remotePath, InputStream data, long length, String md5Digest) throws DestinationOperationException {
+        List<BandwidthLimiter> limiters = bandwidthLimiters;
+        InputStream content = limiters.isEmpty() ? data : new ThrottledInputStream(data, limiters);
+        destination.putObject(remotePath, content, length, md5Digest);
+    }
+
+    /**
+     * The attempts sending one part. Each attempt runs on an upload thread, and a failed one that is
+     * worth sending again is handed back to the executor once its delay is over, so the thread uploads
+     * other parts rather than sleeping meanwhile. The part data stays in memory or in the file from
+     * the first attempt to the last one, so nothing is read again.
+     *
+     * The future completes with the last attempt. Cancelling it drops a retry waiting for its delay,
+     * or interrupts the running attempt when allowed to.
+     */
+    private class PartUpload implements RunnableFuture<MultipartUploadResult> {
+
+        private final UploadPartRequest request;
+
+        private final UploadRetryPolicy.FileBudget fileBudget;
+
+        private final BooleanSupplier onStart;
+
+        private final Executor executor;
+
+        private final CompletableFuture<MultipartUploadResult> result = new CompletableFuture<>();
+
+        //Only used by the thread running the current attempt, attempts never overlap
+        private int retries = 0;
+
+        private boolean started = false;
+
+        private InputStream partData;
+
+        //Guarded by this, so a cancelled attempt is interrupted while it runs and never afterwards
+        private Thread runner;
+
+        /**
+         * @param completionService told once the part is finished, null when nobody waits that way
+         */
+        PartUpload(UploadPartRequest request, UploadRetryPolicy.FileBudget fileBudget, BooleanSupplier onStart,
+                   Executor executor, PartCompletionService completionService) {
+            this.request = request;
+            this.fileBudget = fileBudget;
+            this.onStart = onStart;
+            this.executor = executor;
+            if (completionService != null) {
+                result.whenComplete((uploaded, failure) -> completionService.finished(this));
+            }
+        }
+
+        private void submit() {
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (result.isDone()) {
+                    //Cancelled while waiting, the data is released here if an attempt held it
+                    if (started) {
+                        release();
+                    }
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            long retryDelay = -1;
             try {
-                return destination.uploadMultiPart(request);
-            } catch (DestinationOperationException e) {
-                throw e;
+                retryDelay = attempt();
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                //An interrupt meant for this part must not reach the next task of the thread
+                Thread.interrupted();
             }
-        };
+            if (retryDelay < 0) {
+                release();
+            } else {
+                RETRY_SCHEDULER.schedule(this::resubmit, retryDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Sends the part once. Returns the delay before sending it again, or -1 once the part is finished.
+         */
+        private long attempt() throws Exception {
+            if (!started) {
+                started = true;
+                if (!onStart.getAsBoolean()) {
+                    result.complete(null);
+                    return -1;
+                }
+                throttle(request);
+                partData = holdPartData(request);
+            }
+            UploadRetryPolicy policy = retryPolicy;
+            long start = System.nanoTime();
+            try {
+                MultipartUploadResult uploaded = destination.uploadMultiPart(request);
+                if (uploaded != null) {
+                    uploaded.setUploadNanos(System.nanoTime() - start);
+                    recordConcurrencySample(controller -> controller.recordSuccess(request.getPartSize(), uploaded.getUploadNanos()));
+                }
+                result.complete(uploaded);
+                return -1;
+            } catch (Exception ex) {
+                recordConcurrencySample(controller -> controller.recordFailure(ex));
+                UploadRetryPolicy.FailureKind kind = UploadRetryPolicy.classify(ex);
+                if (result.isDone() || !policy.shouldRetry(kind, retries, fileBudget) || !rewindPartData(request)) {
+                    throw ex;
+                }
+                long delay = policy.getDelayMillis(retries, kind);
+                retries++;
+                log.warn("Part " + request.getPartNumber() + " of " + request.getKey() + " failed (" + kind
+                        + "), retrying in " + delay + " ms: " + ex.getMessage());
+                return delay;
+            }
+        }
+
+        private void resubmit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                result.completeExceptionally(ex);
+                release();
+            }
+        }
+
+        private void release() {
+            if (partData != null) {
+                request.setInputStream(partData);
+            }
+            releasePartData(request);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = result.cancel(false);
+            if (cancelled && mayInterruptIfRunning) {
+                synchronized (this) {
+                    if (runner != null) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return result.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        @Override
+        public MultipartUploadResult get() throws InterruptedException, ExecutionException {
+            return result.get();
+        }
+
+        @Override
+        public MultipartUploadResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return result.get(timeout, unit);
+        }
+    }
+
+    private void recordConcurrencySample(Consumer<AdaptiveConcurrency> sample) {
+        AdaptiveConcurrency controller = concurrency;
+        if (controller != null) {
+            sample.accept(controller);
+            resizeExecutor();
+        }
+    }
+
+    /**
+     * Makes the SDK read the part through the bandwidth limiters.
+     * A part described as a file region is turned into a stream over the same region for that.
+     */
+    private void throttle(UploadPartRequest request) throws IOException {
+        List<BandwidthLimiter> limiters = bandwidthLimiters;
+        if (limiters.isEmpty()) {
+            return;
+        }
+        InputStream data = request.getInputStream();
+        if (data == null && request.getFile() != null) {
+            ResettableInputStream fileData = new ResettableInputStream(request.getFile());
+            long toSkip = request.getFileOffset();
+            while (toSkip > 0) {
+                long skipped = fileData.skip(toSkip);
+                if (skipped <= 0) {
+                    fileData.close();
+                    throw new IOException("Cannot read part " + request.getPartNumber() + " of " + request.getFile());
+                }
+                toSkip -= skipped;
+            }
+            data = fileData;
+            request.setFile(null);
+            request.setFileOffset(0);
+        }
+        request.setInputStream(new ThrottledInputStream(data, limiters));
+    }
+
+    /**
+     * Keeps the part data readable for the retries: the stream is marked at its start,
+     * and whatever closes it while sending leaves it open. Returns the stream to close once done.
+     */
+    private static InputStream holdPartData(UploadPartRequest request) {
+        InputStream inputStream = request.getInputStream();
+        if (inputStream == null) {
+            return null;
+        }
+        if (inputStream.markSupported()) {
+            inputStream.mark(Integer.MAX_VALUE);
+        }
+        request.setInputStream(new FilterInputStream(inputStream) {
+            @Override
+            public void close() {
+                //Closed by the uploader, after the last attempt
+            }
+        });
+        return inputStream;
+    }
+
+    /**
+     * Parts described as a file region are read again by the SDK, streams go back to their start.
+     */
+    private static boolean rewindPartData(UploadPartRequest request) {
+        InputStream inputStream = request.getInputStream();
+        if (inputStream == null) {
+            return true;
+        }
+        if (!inputStream.markSupported()) {
+            return false;
+        }
+        try {
+            inputStream.reset();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closing the part input stream gives pooled part buffers back to their pool.
+     */
+    private static void releasePartData(UploadPartRequest request) {
+        InputStream inputStream = request.getInputStream();
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            inputStream.close();
+        } catch (IOException ex) {
+            log.warn("Cannot close part " + request.getPartNumber() + " of " + request.getKey(), ex);
+        }
     }
 }
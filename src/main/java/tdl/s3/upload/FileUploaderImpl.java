@@ -7,6 +7,7 @@ import tdl.s3.sync.destination.DestinationOperationException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -19,9 +20,19 @@ public class FileUploaderImpl implements FileUploader {
 
     private final UploadingStrategy uploadingStrategy;
 
+    private final UploadRetryPolicy retryPolicy;
+
     FileUploaderImpl(final Destination destination, UploadingStrategy uploadingStrategy) {
+        this(destination, uploadingStrategy, new UploadRetryPolicy());
+    }
+
+    /**
+     * @param retryPolicy spaces out the attempts to upload the whole file again
+     */
+    FileUploaderImpl(final Destination destination, UploadingStrategy uploadingStrategy, UploadRetryPolicy retryPolicy) {
         this.destination = destination;
         this.uploadingStrategy = uploadingStrategy;
+        this.retryPolicy = retryPolicy;
     }
 
     @Override
@@ -31,28 +42,41 @@ public class FileUploaderImpl implements FileUploader {
 
     @Override
     public void upload(File file, String path) throws UploadingException {
-        upload(file, path, RETRY_TIMES_COUNT);
-    }
-
-    private void upload(File file, String path, int retry) throws UploadingException {
         String filePath = FileHelper.getRelativeFilePathToCwd(file);
         log.info("Uploading file " + filePath);
         try {
-            uploadInternal(file, path);
-        } catch (IOException | DestinationOperationException e) {
-            //TODO: Might need to change to loop instead of recursive construct
-            if (retry == 0) {
-                log.error("Error during uploading, can't upload file due to exception: " + e.getMessage());
-                throw new UploadingException("Can't upload file " + filePath + " due to error " + e.getMessage(), e);
-            } else {
-                log.warn("Error during uploading : " + e.getMessage() + " Trying next time...");
-                upload(file, path, retry - 1);
+            for (int retry = 0; ; retry++) {
+                try {
+                    uploadInternal(file, path);
+                    return;
+                } catch (IOException | DestinationOperationException e) {
+                    //Failed parts were already retried one by one, uploading the file again would not do better,
+                    //nor would it for a failure that does not go away, such as a denied access or a missing file
+                    UploadRetryPolicy.FailureKind kind = UploadRetryPolicy.classify(e);
+                    if (retry == RETRY_TIMES_COUNT || e instanceof PartUploadException
+                            || kind == UploadRetryPolicy.FailureKind.PERMANENT) {
+                        log.error("Error during uploading, can't upload file due to exception: " + e.getMessage());
+                        throw new UploadingException("Can't upload file " + filePath + " due to error " + e.getMessage(), e);
+                    }
+                    log.warn("Error during uploading : " + e.getMessage() + " Trying next time...");
+                    waitBeforeRetry(retry, filePath, e, kind);
+                }
             }
         } finally {
             log.info("Finished uploading file " + filePath);
         }
     }
 
+    private void waitBeforeRetry(int retry, String filePath, Exception failure, UploadRetryPolicy.FailureKind kind)
+            throws UploadingException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(retryPolicy.getDelayMillis(retry, kind));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UploadingException("Interrupted while uploading file " + filePath, failure);
+        }
+    }
+
     private void uploadInternal(File file, String path) throws DestinationOperationException, IOException {
         uploadingStrategy.setDestination(destination);
         uploadingStrategy.upload(file, path);
@@ -1,10 +1,19 @@
 package tdl.s3.upload;
 
 import tdl.s3.sync.destination.Destination;
+import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.sync.progress.DummyProgressListener;
 import tdl.s3.sync.progress.ProgressListener;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +23,45 @@ public class FileUploadingService {
 
     private ProgressListener listener = new DummyProgressListener();
 
+    private int maxPartsInFlight = MultipartUploadFileUploadingStrategy.DEFAULT_MAX_PARTS_IN_FLIGHT;
+
+    private PartReadMode partReadMode = PartReadMode.BUFFERED;
+
+    private PartSizePolicy partSizePolicy = new FixedPartSizePolicy();
+
+    private UploadJournal uploadJournal = UploadJournal.disabled();
+
+    //Uploads of growing files stay open between two uploads of the same file
+    private final TailFollower tailFollower = new TailFollower();
+
+    private int uploadThreadCount = ConcurrentMultipartUploader.DEFAULT_THREAD_COUNT;
+
+    private ConcurrentMultipartUploader concurrentUploader;
+
+    private Executor uploadExecutor;
+
+    private List<BandwidthLimiter> bandwidthLimiters = new ArrayList<>();
+
+    private AdaptiveConcurrency concurrency;
+
+    private UploadRetryPolicy retryPolicy = new UploadRetryPolicy();
+
+    private PartHedging hedging;
+
+    private long singleRequestThreshold = MultipartUploadFileUploadingStrategy.DEFAULT_SINGLE_REQUEST_THRESHOLD;
+
+    public static final int DEFAULT_MAX_CONCURRENT_FILES = 4;
+
+    private static final int MAX_FILE_UPLOADING_TIME = 360;
+
+    private int maxConcurrentFiles = DEFAULT_MAX_CONCURRENT_FILES;
+
+    private ExecutorService fileExecutorService;
+
+    private PrioritizedExecutor prioritizedFileExecutor;
+
+    private UploadPriorityPolicy priorityPolicy = UploadPriorities.fifo();
+
     public FileUploadingService(Destination destination) {
         this.destination = destination;
     }
@@ -26,22 +74,265 @@ public class FileUploadingService {
         this.listener = listener;
     }
 
+    /**
+     * Limits how many parts of a single file are uploaded at the same time.
+     */
+    public void setMaxPartsInFlight(int maxPartsInFlight) {
+        this.maxPartsInFlight = maxPartsInFlight;
+    }
+
+    /**
+     * Selects whether parts are copied into memory or streamed straight from the file.
+     */
+    public void setPartReadMode(PartReadMode partReadMode) {
+        this.partReadMode = partReadMode;
+    }
+
+    /**
+     * Chooses the part size of new uploads, for instance {@link AdaptivePartSizePolicy}.
+     * The same policy sees every file, so it can measure the throughput across uploads.
+     */
+    public void setPartSizePolicy(PartSizePolicy partSizePolicy) {
+        this.partSizePolicy = partSizePolicy;
+    }
+
+    /**
+     * Keeps a journal of the uploads in progress, so they are resumed without listing the destination.
+     */
+    public void setUploadJournal(UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+    /**
+     * Orders the queued files, and the parts waiting for an upload thread.
+     */
+    public void setPriorityPolicy(UploadPriorityPolicy priorityPolicy) {
+        this.priorityPolicy = priorityPolicy;
+    }
+
+    /**
+     * Sets the number of threads uploading parts, shared by all the files.
+     * Has to be called before the first upload.
+     */
+    public synchronized void setUploadThreadCount(int uploadThreadCount) {
+        if (concurrentUploader != null) {
+            throw new IllegalStateException("Upload threads are already running");
+        }
+        this.uploadThreadCount = uploadThreadCount;
+    }
+
+    /**
+     * Uploads the parts on threads shared with other services, such as the executor
+     * of a job registered on a {@link SharedUploadScheduler}, instead of threads of its own.
+     * Has to be called before the first upload.
+     */
+    public synchronized void setUploadExecutor(Executor uploadExecutor) {
+        if (concurrentUploader != null) {
+            throw new IllegalStateException("Upload threads are already running");
+        }
+        this.uploadExecutor = uploadExecutor;
+    }
+
+    /**
+     * Limits the upload rate, every limiter applying to every part. A limiter shared with other
+     * services caps them together. Takes effect for the parts starting after the call.
+     */
+    public synchronized void setBandwidthLimiters(List<BandwidthLimiter> bandwidthLimiters) {
+        this.bandwidthLimiters = new ArrayList<>(bandwidthLimiters);
+        if (concurrentUploader != null) {
+            concurrentUploader.setBandwidthLimiters(this.bandwidthLimiters);
+        }
+    }
+
+    /**
+     * Adjusts the number of parts uploaded at the same time while uploading, instead of using
+     * a fixed number of upload threads and parts in flight per file.
+     */
+    public synchronized void setAdaptiveConcurrency(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+        if (concurrentUploader != null) {
+            concurrentUploader.setConcurrency(concurrency);
+        }
+    }
+
+    /**
+     * Decides which failed parts are sent again and how long to wait before. Its retry budget
+     * covers every upload of the service.
+     */
+    public synchronized void setRetryPolicy(UploadRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        if (concurrentUploader != null) {
+            concurrentUploader.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    /**
+     * Sends the parts that take far longer than usual a second time, keeping whichever attempt
+     * finishes first. The same hedging sees every file, so it learns the usual part latency across uploads.
+     */
+    public void setPartHedging(PartHedging hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sends the finished files smaller than that with a single PutObject, sparing the requests
+     * of a multipart upload. 0 to always use multipart uploads, at most the minimum part size.
+     */
+    public void setSingleRequestThreshold(long singleRequestThreshold) {
+        if (singleRequestThreshold < 0 || singleRequestThreshold > PartSizePolicy.MINIMUM_PART_SIZE) {
+            throw new IllegalArgumentException("Single request threshold should be between 0 and "
+                    + PartSizePolicy.MINIMUM_PART_SIZE);
+        }
+        this.singleRequestThreshold = singleRequestThreshold;
+    }
+
+    /**
+     * Limits how many files {@link #uploadAsync(File, String)} uploads at the same time.
+     * Parts of all the active files still share the upload threads.
+     * Has to be called before the first asynchronous upload.
+     */
+    public synchronized void setMaxConcurrentFiles(int maxConcurrentFiles) {
+        if (maxConcurrentFiles < 1) {
+            throw new IllegalArgumentException("Max concurrent files should be >= 1");
+        }
+        if (fileExecutorService != null) {
+            throw new IllegalStateException("File uploads are already running");
+        }
+        this.maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+    private synchronized PrioritizedExecutor getFileExecutor() {
+        if (fileExecutorService == null) {
+            fileExecutorService = Executors.newFixedThreadPool(maxConcurrentFiles,
+                    ConcurrentMultipartUploader.createThreadFactory("s3-file-upload"));
+            prioritizedFileExecutor = new PrioritizedExecutor(fileExecutorService);
+        }
+        return prioritizedFileExecutor;
+    }
+
+    /**
+     * The uploader is created on first use and then reused by every file until shutdown.
+     */
+    synchronized ConcurrentMultipartUploader getConcurrentUploader() {
+        if (concurrentUploader == null) {
+            concurrentUploader = uploadExecutor != null
+                    ? new ConcurrentMultipartUploader(destination, uploadExecutor)
+                    : new ConcurrentMultipartUploader(destination, uploadThreadCount);
+            concurrentUploader.setBandwidthLimiters(bandwidthLimiters);
+            concurrentUploader.setConcurrency(concurrency);
+            concurrentUploader.setRetryPolicy(retryPolicy);
+        }
+        return concurrentUploader;
+    }
+
+    private synchronized UploadRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Waits for the running part uploads, stops the upload threads and closes the followed growing files.
+     * A later upload starts new threads.
+     */
+    public void shutdown() {
+        ConcurrentMultipartUploader uploader;
+        ExecutorService fileExecutor;
+        synchronized (this) {
+            uploader = concurrentUploader;
+            concurrentUploader = null;
+            fileExecutor = fileExecutorService;
+            fileExecutorService = null;
+        }
+        if (fileExecutor != null) {
+            awaitFileUploads(fileExecutor);
+        }
+        tailFollower.closeAll();
+        if (uploader == null) {
+            return;
+        }
+        try {
+            uploader.shutdownAndAwaitTermination();
+        } catch (DestinationOperationException ex) {
+            Logger.getLogger(FileUploadingService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static void awaitFileUploads(ExecutorService fileExecutor) {
+        fileExecutor.shutdown();
+        try {
+            fileExecutor.awaitTermination(MAX_FILE_UPLOADING_TIME, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(FileUploadingService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Uploads the file on one of the file upload threads.
+     * The future completes with true once the file is uploaded, or with false if the upload failed and was logged.
+     */
+    public CompletableFuture<Boolean> uploadAsync(File file, String remoteName) {
+        return CompletableFuture.supplyAsync(() -> tryUpload(file, remoteName), getFileExecutor(file, remoteName));
+    }
+
+    /**
+     * Uploads the file on one of the file upload threads.
+     * The future completes exceptionally with the {@link UploadingException} of a failed upload,
+     * so the caller can tell whether uploading the file again later is worth it.
+     */
+    public CompletableFuture<Void> uploadAsyncOrFail(File file, String remoteName) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                createFileUploader().upload(file, remoteName);
+            } catch (UploadingException ex) {
+                throw new CompletionException(ex);
+            }
+        }, getFileExecutor(file, remoteName));
+    }
+
+    private Executor getFileExecutor(File file, String remoteName) {
+        long uploadedSize = tailFollower.getUploadedSize(remoteName);
+        UploadCandidate candidate = new UploadCandidate(file, remoteName, null, Math.max(uploadedSize, 0), uploadedSize >= 0);
+        return getFileExecutor().withPriority(priorityPolicy.getPriority(candidate));
+    }
+
+    /**
+     * Size of the parts of the upload still open for the file, or -1 if the upload of the file is not followed.
+     * Once followed, the next upload of the file sends a part only when that many new bytes were written.
+     */
+    public int getFollowedPartSize(String remoteName) {
+        return tailFollower.getPartSize(remoteName);
+    }
+
     public void upload(File file) {
         upload(file, file.getName());
     }
 
     public void upload(File file, String remoteName) {
+        tryUpload(file, remoteName);
+    }
+
+    private boolean tryUpload(File file, String remoteName) {
         FileUploader fileUploader = createFileUploader();
         try {
             fileUploader.upload(file, remoteName);
+            return true;
         } catch (UploadingException ex) {
             Logger.getLogger(FileUploadingService.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
         }
     }
 
     private FileUploader createFileUploader() {
-        UploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination,
+                getConcurrentUploader(), maxPartsInFlight);
         strategy.setListener(listener);
-        return new FileUploaderImpl(destination, strategy);
+        strategy.setPartReadMode(partReadMode);
+        strategy.setPartSizePolicy(partSizePolicy);
+        strategy.setJournal(uploadJournal);
+        strategy.setTailFollower(tailFollower);
+        strategy.setPriorityPolicy(priorityPolicy);
+        strategy.setHedging(hedging);
+        strategy.setSingleRequestThreshold(singleRequestThreshold);
+        return new FileUploaderImpl(destination, strategy, getRetryPolicy());
     }
 }
@@ -0,0 +1,27 @@
+package tdl.s3.upload;
+
+import java.io.File;
+
+/**
+ * Uses the same part size for every upload.
+ */
+public class FixedPartSizePolicy implements PartSizePolicy {
+
+    private final int partSize;
+
+    public FixedPartSizePolicy() {
+        this(MINIMUM_PART_SIZE);
+    }
+
+    public FixedPartSizePolicy(int partSize) {
+        if (partSize < MINIMUM_PART_SIZE) {
+            throw new IllegalArgumentException("Part size should be >= " + MINIMUM_PART_SIZE);
+        }
+        this.partSize = partSize;
+    }
+
+    @Override
+    public int choosePartSize(File file, long fileSize, boolean isWritingFinished) {
+        return partSize;
+    }
+}
@@ -12,24 +12,34 @@ import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.sync.progress.ProgressListener;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
-public class MultipartUploadFile {
+public class MultipartUploadFile implements Closeable {
     private static final Logger log = getLogger(MultipartUploadFile.class);
 
-
-    //Minimum part size is 5 MB
-    private static final int MINIMUM_PART_SIZE = 5 * 1024 * 1024;
-
     private final File file;
 
     private final String remotePath;
 
     private final Destination destination;
 
+    private final PartBufferPool partBufferPool;
+
+    private final PartSizePolicy partSizePolicy;
+
+    private final UploadJournal journal;
+
+    private int journaledPartSize = 0;
+
+    private int partSize;
+
     private String uploadId;
 
     private long uploadedSize = 0;
@@ -44,10 +54,24 @@ public class MultipartUploadFile {
 
     private boolean isWritingFinished;
 
+    private boolean isUploadStarted;
+
+    private PartReadMode partReadMode = PartReadMode.BUFFERED;
+
+    private FileChannel channel;
+
     public MultipartUploadFile(File file, String remotePath, Destination destination) throws DestinationOperationException {
+        this(file, remotePath, destination, PartBufferPool.getDefault(), new FixedPartSizePolicy(), UploadJournal.disabled());
+    }
+
+    public MultipartUploadFile(File file, String remotePath, Destination destination, PartBufferPool partBufferPool,
+                               PartSizePolicy partSizePolicy, UploadJournal journal) throws DestinationOperationException {
         this.file = file;
         this.remotePath = remotePath;
         this.destination = destination;
+        this.partBufferPool = partBufferPool;
+        this.partSizePolicy = partSizePolicy;
+        this.journal = journal;
         init();
     }
 
@@ -63,28 +87,128 @@ public class MultipartUploadFile {
         return partETags;
     }
 
+    public void setPartReadMode(PartReadMode partReadMode) {
+        this.partReadMode = partReadMode;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
     public Set<Integer> getFailedMiddlePartNumbers() {
         return failedMiddlePartNumbers;
     }
 
+    public boolean isWritingFinished() {
+        return isWritingFinished;
+    }
+
+    /**
+     * Whether every part up to the tail was acknowledged, so the in-memory state matches the remote one.
+     */
+    public boolean hasUploadedEveryPart() {
+        return partETags.size() == nextPartToUploadIndex - 1;
+    }
+
+    /**
+     * Carries on a followed upload from its in-memory state, without asking the destination.
+     * Only the lock file is checked again, the parts before the tail were all uploaded.
+     */
+    void resume() {
+        isWritingFinished = !FileHelper.lockFileExists(file);
+        failedMiddlePartNumbers = Collections.emptySet();
+        uploadedSize = getTailOffset();
+        isUploadStarted = true;
+    }
+
+    public UploadCandidate toUploadCandidate() {
+        return new UploadCandidate(file, remotePath, isWritingFinished, uploadedSize, isUploadStarted);
+    }
+
     private void init() throws DestinationOperationException {
-        alreadyUploadedParts = destination.getAlreadyUploadedParts(remotePath);
+        alreadyUploadedParts = findAlreadyUploadedParts();
         isWritingFinished = !FileHelper.lockFileExists(file);
         boolean uploadingStarted = alreadyUploadedParts != null;
+        isUploadStarted = uploadingStarted;
         if (!uploadingStarted) {
             uploadId = destination.initUploading(remotePath);
             failedMiddlePartNumbers = Collections.emptySet();
+            partSize = partSizePolicy.choosePartSize(file, file.length(), isWritingFinished);
+            journalUploadStarted();
         } else {
             uploadId = alreadyUploadedParts.getUploadId();
             failedMiddlePartNumbers = MultipartUploadHelper.getFailedMiddlePartNumbers(alreadyUploadedParts);
             uploadedSize = MultipartUploadHelper.getUploadedSize(alreadyUploadedParts);
             nextPartToUploadIndex = MultipartUploadHelper.getLastPartIndex(alreadyUploadedParts) + 1;
+            //The uploaded parts record the size the upload was started with
+            partSize = MultipartUploadHelper.getPartSize(alreadyUploadedParts);
+            if (partSize == 0) {
+                partSize = journaledPartSize > 0
+                        ? journaledPartSize
+                        : partSizePolicy.choosePartSize(file, file.length(), isWritingFinished);
+            }
         }
         partETags = MultipartUploadHelper.getPartETagsFromPartListing(alreadyUploadedParts);
     }
 
+    /**
+     * A journaled upload only needs its parts listed, instead of listing every upload of the bucket.
+     * The journal itself is trusted when the parts can not be listed.
+     */
+    private PartListing findAlreadyUploadedParts() throws DestinationOperationException {
+        Optional<UploadJournal.Entry> entry = journal.read(remotePath);
+        if (!entry.isPresent()) {
+            return destination.getAlreadyUploadedParts(remotePath);
+        }
+        String journaledUploadId = entry.get().getUploadId();
+        journaledPartSize = entry.get().getPartSize();
+        PartListing listing;
+        try {
+            listing = destination.getUploadedParts(remotePath, journaledUploadId);
+        } catch (DestinationOperationException ex) {
+            log.warn("Cannot list parts of " + remotePath + ", resuming from the journal", ex);
+            return entry.get().toPartListing();
+        }
+        if (listing == null) {
+            //Completed or aborted since it was journaled
+            journaledPartSize = 0;
+            discardJournal();
+            return destination.getAlreadyUploadedParts(remotePath);
+        }
+        listing.setUploadId(journaledUploadId);
+        return listing;
+    }
+
+    private void journalUploadStarted() {
+        try {
+            journal.uploadStarted(remotePath, uploadId, partSize);
+        } catch (IOException ex) {
+            log.warn("Cannot journal upload of " + remotePath, ex);
+        }
+    }
+
+    /**
+     * Records an acknowledged part in the journal.
+     */
+    public void journalUploadedPart(PartETag partETag, long length) {
+        try {
+            journal.partUploaded(remotePath, partETag.getPartNumber(), getPartOffset(partETag.getPartNumber()),
+                    length, partETag.getETag());
+        } catch (IOException ex) {
+            log.warn("Cannot journal part " + partETag.getPartNumber() + " of " + remotePath, ex);
+        }
+    }
+
+    private void discardJournal() {
+        try {
+            journal.discard(remotePath);
+        } catch (IOException ex) {
+            log.warn("Cannot discard journal of " + remotePath, ex);
+        }
+    }
+
     public void validateUploadedFileSize() {
-        if (file.length() < uploadedSize) {
+        if (file.length() < getTailOffset()) {
             throw new IllegalStateException(
                     "Already uploaded size of file " + file.getName()
                     + " is greater than actual file size. "
@@ -93,8 +217,46 @@ public class MultipartUploadFile {
         }
     }
 
-    public BufferedInputStream createBufferedInputStreamFromFile() throws FileNotFoundException {
-        return new BufferedInputStream(new FileInputStream(file));
+    /**
+     * Every part before the tail is a full part, including the missing middle parts.
+     */
+    long getTailOffset() {
+        return getPartOffset(nextPartToUploadIndex);
+    }
+
+    private long getPartOffset(int partNumber) {
+        return (long) partSize * (partNumber - 1);
+    }
+
+    /**
+     * The file is opened once and shared by all the part reads.
+     * Positional reads do not move the channel position, so parts can be read in any order.
+     */
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    /**
+     * Releases the journal of the upload but keeps the file open for the next upload of its tail.
+     */
+    void suspend() {
+        try {
+            journal.release(remotePath);
+        } catch (IOException ex) {
+            log.warn("Cannot close journal of " + remotePath, ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        suspend();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
     }
 
     public UploadPartRequest createUploadPartRequest() throws DestinationOperationException {
@@ -102,43 +264,135 @@ public class MultipartUploadFile {
                 .withUploadId(uploadId);
     }
 
+    /**
+     * @deprecated parts are read with positional reads of the file, see {@link #getUploadPartRequestForPart(int)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
+    public BufferedInputStream createBufferedInputStreamFromFile() throws FileNotFoundException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * @deprecated parts are read into pooled buffers, see {@link #getUploadPartRequestForBuffer(PartBuffer, String, boolean, int)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
     public UploadPartRequest getUploadPartRequestForData(byte[] nextPart, boolean isLastPart, int partNumber) throws IOException, DestinationOperationException {
         try (ByteArrayInputStream partInputStream = ByteHelper.createInputStream(nextPart)) {
-            UploadPartRequest request = createUploadPartRequest()
+            return createUploadPartRequest()
                     .withPartNumber(partNumber)
                     .withMD5Digest(ChecksumHelper.digest(nextPart, "MD5"))
                     .withLastPart(isLastPart)
                     .withPartSize(nextPart.length)
                     .withInputStream(partInputStream);
-            return request;
         }
     }
 
+    /**
+     * Reads a full part of the upload, or nothing if the file does not hold a full part there.
+     *
+     * @deprecated parts are read with positional reads of the file, see {@link #getUploadPartRequestForPart(int)}.
+     *             To be removed in the next release.
+     */
+    @Deprecated
+    public byte[] readPart(int partNumber) throws IOException {
+        return ByteHelper.readPart(partNumber, file, partSize);
+    }
+
+    /**
+     * Creates a request streaming the data of a pooled buffer.
+     * The buffer goes back to the pool when the request input stream is closed.
+     */
+    public UploadPartRequest getUploadPartRequestForBuffer(PartBuffer partBuffer, String md5Digest, boolean isLastPart, int partNumber) throws DestinationOperationException {
+        return createUploadPartRequest()
+                .withPartNumber(partNumber)
+                .withMD5Digest(md5Digest)
+                .withLastPart(isLastPart)
+                .withPartSize(partBuffer.getLength())
+                .withInputStream(partBuffer.asInputStream());
+    }
+
+    /**
+     * Creates a request that lets the SDK stream the part straight from the file.
+     * No Content-MD5 is computed upfront: the SDK digests the bytes while sending them
+     * and checks the digest against the returned ETag, so the data is read only once.
+     */
+    public UploadPartRequest getUploadPartRequestForFileRegion(long offset, int partSize, boolean isLastPart, int partNumber) throws DestinationOperationException {
+        return createUploadPartRequest()
+                .withPartNumber(partNumber)
+                .withLastPart(isLastPart)
+                .withFile(file)
+                .withFileOffset(offset)
+                .withPartSize(partSize);
+    }
+
+    /**
+     * Reads the region of the file into a pooled buffer, or describes it as a file region,
+     * depending on the part read mode.
+     */
+    public UploadPartRequest getUploadPartRequestForRegion(long offset, int partSize, boolean isLastPart, int partNumber) throws IOException, DestinationOperationException {
+        if (partReadMode == PartReadMode.FILE_REGION) {
+            return getUploadPartRequestForFileRegion(offset, partSize, isLastPart, partNumber);
+        }
+        PartBuffer partBuffer = acquirePartBuffer(partSize);
+        try {
+            MessageDigest md5 = ChecksumHelper.getDigest("MD5");
+            ByteHelper.readFully(getChannel(), partBuffer.getBytes(), partSize, offset, md5);
+            String md5Digest = ChecksumHelper.encode(md5.digest());
+            return getUploadPartRequestForBuffer(partBuffer, md5Digest, isLastPart, partNumber);
+        } catch (IOException | DestinationOperationException | RuntimeException ex) {
+            partBuffer.release();
+            throw ex;
+        }
+    }
+
+    public UploadPartRequest getUploadPartRequestForPart(int partNumber) throws IOException, DestinationOperationException {
+        return getUploadPartRequestForRegion(getPartOffset(partNumber), partSize, false, partNumber);
+    }
+
+    private PartBuffer acquirePartBuffer(int partSize) throws InterruptedIOException {
+        try {
+            return partBufferPool.acquire(partSize);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part buffer");
+        }
+    }
+
+    /**
+     * Creates a request for a part that may be smaller than the others, or the last one,
+     * reading its data again.
+     */
+    public UploadPartRequest getUploadPartRequestForPart(int partNumber, int partSize, boolean isLastPart) throws IOException, DestinationOperationException {
+        return getUploadPartRequestForRegion(getPartOffset(partNumber), partSize, isLastPart, partNumber);
+    }
+
     public void commitIfFinishedWriting() throws DestinationOperationException {
         if (isWritingFinished) {
             destination.commitMultipartUpload(remotePath, partETags, uploadId);
+            discardJournal();
         }
     }
 
+    /**
+     * Lazily reads the missing middle parts, in part order.
+     * A part that can not be read fails the stream with a {@link PartReadingException}:
+     * committing without it would leave a gap in the object.
+     */
     public Stream<UploadPartRequest> streamUploadPartRequestForFailedParts() {
         return getFailedMiddlePartNumbers()
                 .stream()
+                .sorted()
                 .map(partNumber -> {
                     try {
-                        byte[] partData = readPart(partNumber);
-                        UploadPartRequest request = getUploadPartRequestForData(partData, false, partNumber);
-                        uploadedSize += partData.length;
-                        return request;
-                    } catch (IOException | DestinationOperationException ex) {
-                        log.error("Cannot upload part " + partNumber, ex);
-                        return null;
+                        return getUploadPartRequestForPart(partNumber);
+                    } catch (IOException ex) {
+                        throw new PartReadingException(ex);
+                    } catch (DestinationOperationException ex) {
+                        throw new PartReadingException(ex);
                     }
-                })
-                .filter(Objects::nonNull);
-    }
-
-    public byte[] readPart(int partNumber) throws IOException {
-        return ByteHelper.readPart(partNumber, file);
+                });
     }
 
     public void notifyStart(ProgressListener listener) {
@@ -149,20 +403,96 @@ public class MultipartUploadFile {
         listener.uploadFileFinished(file);
     }
 
-    public Stream<UploadPartRequest> streamUploadPartRequestForIncompleteParts() throws IOException, DestinationOperationException {
-        try (InputStream inputStream = createBufferedInputStreamFromFile()) {
-            byte[] nextPart = ByteHelper.getNextPartFromInputStream(inputStream, uploadedSize, isWritingFinished);
-            int partSize = nextPart.length;
-            List<UploadPartRequest> requests = new ArrayList<>();
-            while (partSize > 0) {
-                boolean isLastPart = isWritingFinished && partSize < MINIMUM_PART_SIZE;
-                UploadPartRequest request = getUploadPartRequestForData(nextPart, isLastPart, nextPartToUploadIndex);
+    /**
+     * Lazily reads the parts that were not uploaded yet.
+     * A part is only read from disk when the consumer asks for it, so memory use
+     * depends on how many parts are in flight rather than on the size of the file.
+     * The stream should be closed once consumed.
+     */
+    public Stream<UploadPartRequest> streamUploadPartRequestForIncompleteParts() {
+        IncompletePartIterator iterator = new IncompletePartIterator(getTailOffset());
+        Spliterator<UploadPartRequest> spliterator = Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(iterator::close);
+    }
+
+    private class IncompletePartIterator implements Iterator<UploadPartRequest> {
+
+        private long position;
+
+        private UploadPartRequest nextRequest;
+
+        private boolean finished;
+
+        IncompletePartIterator(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRequest == null && !finished) {
+                nextRequest = readNextRequest();
+            }
+            return nextRequest != null;
+        }
+
+        @Override
+        public UploadPartRequest next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            UploadPartRequest request = nextRequest;
+            nextRequest = null;
+            return request;
+        }
+
+        private UploadPartRequest readNextRequest() {
+            try {
+                int nextPartSize = getNextPartSize();
+                if (nextPartSize == 0) {
+                    close();
+                    return null;
+                }
+                boolean isLastPart = isWritingFinished && position + nextPartSize >= getChannel().size();
+                UploadPartRequest request = getUploadPartRequestForRegion(position, nextPartSize, isLastPart, nextPartToUploadIndex);
+                position += nextPartSize;
                 nextPartToUploadIndex++;
-                requests.add(request);
-                nextPart = ByteHelper.getNextPartFromInputStream(inputStream, 0, isWritingFinished);
-                partSize = nextPart.length;
+                return request;
+            } catch (IOException ex) {
+                close();
+                throw new PartReadingException(ex);
+            } catch (DestinationOperationException ex) {
+                close();
+                throw new PartReadingException(ex);
+            }
+        }
+
+        /**
+         * Size of the next part, or 0 if there is not enough data for a full part
+         * and the file is still being written.
+         */
+        private int getNextPartSize() throws IOException {
+            long remaining = getChannel().size() - position;
+            if (remaining <= 0 || (remaining < partSize && !isWritingFinished)) {
+                return 0;
+            }
+            return (int) Math.min(remaining, partSize);
+        }
+
+        void close() {
+            finished = true;
+            if (nextRequest != null) {
+                InputStream inputStream = nextRequest.getInputStream();
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException ex) {
+                        log.warn("Cannot release part of " + file.getName(), ex);
+                    }
+                }
+                nextRequest = null;
             }
-            return requests.stream();
         }
     }
 }
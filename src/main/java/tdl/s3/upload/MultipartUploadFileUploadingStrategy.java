@@ -3,6 +3,9 @@ package tdl.s3.upload;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import org.slf4j.Logger;
+import tdl.s3.helpers.ByteHelper;
+import tdl.s3.helpers.ChecksumHelper;
+import tdl.s3.helpers.FileHelper;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.sync.progress.DummyProgressListener;
@@ -10,8 +13,12 @@ import tdl.s3.sync.progress.ProgressListener;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
-import java.util.Objects;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.Stream;
@@ -23,62 +30,220 @@ public class MultipartUploadFileUploadingStrategy implements UploadingStrategy {
 
     private static final int DEFAULT_THREAD_COUNT = 4;
 
+    static final int DEFAULT_MAX_PARTS_IN_FLIGHT = DEFAULT_THREAD_COUNT;
+
+    static final long DEFAULT_SINGLE_REQUEST_THRESHOLD = PartSizePolicy.MINIMUM_PART_SIZE;
+
     private Destination destination;
 
     private ConcurrentMultipartUploader concurrentUploader;
 
+    private final int maxPartsInFlight;
+
     private ProgressListener listener = new DummyProgressListener();
 
+    private PartReadMode partReadMode = PartReadMode.BUFFERED;
+
+    private PartSizePolicy partSizePolicy = new FixedPartSizePolicy();
+
+    private UploadJournal journal = UploadJournal.disabled();
+
+    private TailFollower tailFollower = TailFollower.disabled();
+
+    private UploadPriorityPolicy priorityPolicy = UploadPriorities.fifo();
+
+    private PartHedging hedging;
+
+    private long singleRequestThreshold = DEFAULT_SINGLE_REQUEST_THRESHOLD;
+
     /**
      * Creates new Multipart upload strategy
      */
     MultipartUploadFileUploadingStrategy(Destination destination) {
-        this(destination, DEFAULT_THREAD_COUNT);
+        this(destination, DEFAULT_MAX_PARTS_IN_FLIGHT);
+    }
+
+    /**
+     * Creates new Multipart upload strategy.
+     *
+     * @param maxPartsInFlight maximum number of parts of a file being uploaded at the same time
+     */
+    MultipartUploadFileUploadingStrategy(Destination destination, int maxPartsInFlight) {
+        this(destination, DEFAULT_THREAD_COUNT, maxPartsInFlight);
     }
 
     /**
      * Creates new Multipart upload strategy.
      *
      * @param threadsCount count of threads that should be used for uploading
+     * @param maxPartsInFlight maximum number of parts of a file being uploaded at the same time
      */
-    private MultipartUploadFileUploadingStrategy(Destination destination, int threadsCount) {
+    MultipartUploadFileUploadingStrategy(Destination destination, int threadsCount, int maxPartsInFlight) {
+        this(destination, new ConcurrentMultipartUploader(destination, threadsCount), maxPartsInFlight);
+    }
+
+    /**
+     * Creates new Multipart upload strategy running its parts on a shared uploader.
+     * The uploader is not shut down by the strategy, it belongs to the caller.
+     *
+     * @param maxPartsInFlight maximum number of parts of a file being uploaded at the same time
+     */
+    MultipartUploadFileUploadingStrategy(Destination destination, ConcurrentMultipartUploader concurrentUploader, int maxPartsInFlight) {
+        if (maxPartsInFlight < 1) {
+            throw new IllegalArgumentException("Max parts in flight should be >= 1");
+        }
         this.destination = destination;
-        concurrentUploader = new ConcurrentMultipartUploader(destination, threadsCount);
+        this.maxPartsInFlight = maxPartsInFlight;
+        this.concurrentUploader = concurrentUploader;
     }
 
     @Override
     public void upload(File file, String remotePath) throws DestinationOperationException, IOException {
-        MultipartUploadFile multipartUploadFile = new MultipartUploadFile(file, remotePath, destination);
-        multipartUploadFile.validateUploadedFileSize();
-        multipartUploadFile.notifyStart(listener);
-        uploadRequiredParts(multipartUploadFile);
-        multipartUploadFile.notifyFinish(listener);
+        if (canUploadInSingleRequest(file, remotePath)) {
+            uploadInSingleRequest(file, remotePath);
+            return;
+        }
+        MultipartUploadFile multipartUploadFile = openMultipartUploadFile(file, remotePath);
+        boolean keepFollowing = false;
+        try {
+            multipartUploadFile.setPartReadMode(partReadMode);
+            multipartUploadFile.validateUploadedFileSize();
+            multipartUploadFile.notifyStart(listener);
+            uploadRequiredParts(multipartUploadFile);
+            multipartUploadFile.notifyFinish(listener);
+            keepFollowing = !multipartUploadFile.isWritingFinished() && multipartUploadFile.hasUploadedEveryPart();
+        } finally {
+            if (keepFollowing) {
+                multipartUploadFile.suspend();
+            }
+            if (!keepFollowing || !tailFollower.follow(remotePath, multipartUploadFile)) {
+                TailFollower.closeQuietly(multipartUploadFile);
+            }
+        }
     }
 
-    private void uploadRequiredParts(MultipartUploadFile multipartUploadFile) throws IOException, DestinationOperationException {
-        List<PartETag> eTags = multipartUploadFile.getPartETags();
+    /**
+     * Parts are only sent once full or once the file is finished, so a finished file smaller than
+     * a part has nothing uploaded yet and one request replaces the whole multipart upload.
+     * A journaled or followed upload of the file is still finished the usual way.
+     */
+    private boolean canUploadInSingleRequest(File file, String remotePath) {
+        return file.length() < singleRequestThreshold
+                && file.isFile()
+                && !journal.read(remotePath).isPresent()
+                && tailFollower.getUploadedSize(remotePath) < 0
+                && !FileHelper.lockFileExists(file);
+    }
 
-        Stream<UploadPartRequest> failedPartRequestStream = multipartUploadFile
-                .streamUploadPartRequestForFailedParts();
-        submitUploadRequestStream(failedPartRequestStream, eTags);
+    /**
+     * Sends the file with a single PutObject, its Content-MD5 computed while reading it.
+     * The remote path stands for the upload id in the progress events.
+     */
+    private void uploadInSingleRequest(File file, String remotePath) throws IOException, DestinationOperationException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int size = (int) channel.size();
+            PartBuffer buffer = acquireBuffer(size);
+            try {
+                MessageDigest md5 = ChecksumHelper.getDigest("MD5");
+                ByteHelper.readFully(channel, buffer.getBytes(), size, 0, md5);
+                String md5Digest = ChecksumHelper.encode(md5.digest());
+                if (channel.size() != size) {
+                    throw new IOException("File changed while reading it: " + file);
+                }
+                listener.uploadFileStarted(file, remotePath, 0);
+                concurrentUploader.putObject(remotePath, buffer.asInputStream(), size, md5Digest);
+                listener.uploadFileProgress(remotePath, size);
+                listener.uploadFileFinished(file);
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    private static PartBuffer acquireBuffer(int size) throws InterruptedIOException {
+        try {
+            return PartBufferPool.getDefault().acquire(size);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+    }
 
-        Stream<UploadPartRequest> incompletePartRequestStream = multipartUploadFile
-                .streamUploadPartRequestForIncompleteParts();
-        submitUploadRequestStream(incompletePartRequestStream, eTags);
+    private MultipartUploadFile openMultipartUploadFile(File file, String remotePath) throws DestinationOperationException {
+        MultipartUploadFile followed = tailFollower.resume(file, remotePath);
+        if (followed != null) {
+            followed.resume();
+            return followed;
+        }
+        return new MultipartUploadFile(file, remotePath, destination, PartBufferPool.getDefault(), partSizePolicy, journal);
+    }
 
-        concurrentUploader.shutdownAndAwaitTermination();
+    private void uploadRequiredParts(MultipartUploadFile multipartUploadFile) throws IOException, DestinationOperationException {
+        //Missing middle parts and the tail share the same window, so gaps are
+        //read while earlier parts are still uploading
+        try (Stream<UploadPartRequest> partRequestStream = Stream.concat(
+                multipartUploadFile.streamUploadPartRequestForFailedParts(),
+                multipartUploadFile.streamUploadPartRequestForIncompleteParts())) {
+            submitUploadRequestStream(partRequestStream, multipartUploadFile);
+        } catch (PartReadingException ex) {
+            ex.rethrowCause();
+        }
 
         multipartUploadFile.commitIfFinishedWriting();
     }
 
-    private void submitUploadRequestStream(Stream<UploadPartRequest> requestStream, List<PartETag> partETags) {
-        requestStream
-                .map(this::attachListenerToRequest)
-                .map(concurrentUploader::submitTaskForPartUploading)
-                .map(MultipartUploadFileUploadingStrategy::getUploadingResult)
-                .filter(Objects::nonNull)
-                .map(e -> e.getResult().getPartETag())
-                .forEach(partETags::add);
+    /**
+     * Keeps up to {@code maxPartsInFlight} parts uploading at the same time, or as many as the
+     * {@link AdaptiveConcurrency} of the uploader allows at the moment.
+     * The next request is only pulled from the stream once a slot is free,
+     * results are collected in completion order and the ETags sorted by part number.
+     * Returns once every submitted part of this file is done, whatever else runs on the uploader.
+     */
+    private void submitUploadRequestStream(Stream<UploadPartRequest> requestStream,
+                                           MultipartUploadFile multipartUploadFile) throws DestinationOperationException {
+        //Parts of the files that matter overtake the parts already waiting for a thread
+        long priority = priorityPolicy.getPriority(multipartUploadFile.toUploadCandidate());
+        PartCompletionService completionService = concurrentUploader.createCompletionService(priority);
+        PartAttempts partAttempts = new PartAttempts(concurrentUploader, completionService,
+                concurrentUploader.getRetryPolicy().newFileBudget(), hedging, multipartUploadFile);
+        Iterator<UploadPartRequest> requests = requestStream.iterator();
+        int partsInFlight = 0;
+        while (true) {
+            while (partsInFlight >= getMaxPartsInFlight()) {
+                collectNextUploadingResult(partAttempts, multipartUploadFile);
+                partsInFlight--;
+            }
+            if (!requests.hasNext()) {
+                break;
+            }
+            UploadPartRequest request = attachListenerToRequest(requests.next());
+            partAttempts.submit(request);
+            partsInFlight++;
+        }
+        while (partsInFlight > 0) {
+            collectNextUploadingResult(partAttempts, multipartUploadFile);
+            partsInFlight--;
+        }
+        multipartUploadFile.getPartETags().sort(Comparator.comparing(PartETag::getPartNumber));
+    }
+
+    private int getMaxPartsInFlight() {
+        AdaptiveConcurrency concurrency = concurrentUploader.getConcurrency();
+        return concurrency != null ? concurrency.getLimit() : maxPartsInFlight;
+    }
+
+    private void collectNextUploadingResult(PartAttempts partAttempts,
+                                            MultipartUploadFile multipartUploadFile) throws DestinationOperationException {
+        MultipartUploadResult result = partAttempts.takeNext();
+        if (result != null) {
+            PartETag partETag = result.getResult().getPartETag();
+            multipartUploadFile.getPartETags().add(partETag);
+            multipartUploadFile.journalUploadedPart(partETag, result.getRequest().getPartSize());
+            partSizePolicy.recordPartUpload(result.getRequest().getPartSize(), result.getUploadNanos());
+            if (hedging != null) {
+                hedging.recordPartUpload(result.getRequest().getPartSize(), result.getUploadNanos());
+            }
+        }
     }
 
     private UploadPartRequest attachListenerToRequest(UploadPartRequest request) {
@@ -87,19 +252,19 @@ public class MultipartUploadFileUploadingStrategy implements UploadingStrategy {
         return request;
     }
 
-    public static MultipartUploadResult getUploadingResult(Future<MultipartUploadResult> future) {
+    /**
+     * Failed parts were already retried by the uploader, a failure here fails the file
+     * instead of leaving a gap in its parts.
+     */
+    public static MultipartUploadResult getUploadingResult(Future<MultipartUploadResult> future) throws DestinationOperationException {
         try {
             return future.get();
         } catch (InterruptedException e) {
-            log.error("Some part uploads was unsuccessful.", e);
-            return null;
+            Thread.currentThread().interrupt();
+            throw new DestinationOperationException("Interrupted while waiting for part uploads", e);
         } catch (ExecutionException e) {
-            Throwable ex = e.getCause();
-            if (ex instanceof DestinationOperationException) {
-                log.error("Some part uploads was unsuccessful.", ex);
-            }
-            log.error("Some part uploads was unsuccessful.", e);
-            return null;
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new PartUploadException("Part upload failed: " + cause.getMessage(), cause);
         }
     }
 
@@ -108,6 +273,45 @@ public class MultipartUploadFileUploadingStrategy implements UploadingStrategy {
         this.listener = listener;
     }
 
+    public void setPartReadMode(PartReadMode partReadMode) {
+        this.partReadMode = partReadMode;
+    }
+
+    public void setPartSizePolicy(PartSizePolicy partSizePolicy) {
+        this.partSizePolicy = partSizePolicy;
+    }
+
+    public void setJournal(UploadJournal journal) {
+        this.journal = journal;
+    }
+
+    void setTailFollower(TailFollower tailFollower) {
+        this.tailFollower = tailFollower;
+    }
+
+    public void setPriorityPolicy(UploadPriorityPolicy priorityPolicy) {
+        this.priorityPolicy = priorityPolicy;
+    }
+
+    /**
+     * Sends the parts that take far longer than usual a second time, null to never do it.
+     */
+    public void setHedging(PartHedging hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Finished files smaller than that are sent in a single request instead of a multipart upload,
+     * 0 to always use multipart uploads. Can not exceed the minimum part size.
+     */
+    public void setSingleRequestThreshold(long singleRequestThreshold) {
+        if (singleRequestThreshold < 0 || singleRequestThreshold > PartSizePolicy.MINIMUM_PART_SIZE) {
+            throw new IllegalArgumentException("Single request threshold should be between 0 and "
+                    + PartSizePolicy.MINIMUM_PART_SIZE);
+        }
+        this.singleRequestThreshold = singleRequestThreshold;
+    }
+
     @Override
     public void setDestination(Destination destination) {
         this.destination = destination;
@@ -8,11 +8,11 @@ import com.amazonaws.services.s3.model.MultipartUploadListing;
 import org.slf4j.Logger;
 import tdl.s3.sync.destination.DestinationOperationException;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -23,29 +23,81 @@ public class MultipartUploadFinder {
     private final String bucket;
     private final String prefix;
 
+    //Key -> in progress upload, listed once and then kept up to date by the sync itself
+    private Map<String, MultipartUpload> uploadIndex;
+
     public MultipartUploadFinder(AmazonS3 awsClient, String bucket, String prefix) {
         this.awsClient = awsClient;
         this.bucket = bucket;
         this.prefix = prefix;
     }
 
+    /**
+     * Finds the in progress upload of the key using the index, which is built on first use.
+     */
+    public synchronized MultipartUpload findOrNull(String key) throws DestinationOperationException {
+        if (uploadIndex != null) {
+            return uploadIndex.get(key);
+        }
+        Map<String, MultipartUpload> index = new HashMap<>();
+        boolean complete = collectAlreadyStartedMultipartUploads(upload -> index.putIfAbsent(upload.getKey(), upload));
+        if (complete) {
+            uploadIndex = index;
+        }
+        //A partial index would hide uploads, so it only answers this lookup
+        return index.get(key);
+    }
+
+    /**
+     * Drops the index, the next lookup lists the uploads again.
+     * Needed when uploads may have been started or completed by someone else.
+     */
+    public synchronized void invalidate() {
+        uploadIndex = null;
+    }
+
+    public synchronized void uploadStarted(String key, String uploadId) {
+        if (uploadIndex != null) {
+            MultipartUpload upload = new MultipartUpload();
+            upload.setKey(key);
+            upload.setUploadId(uploadId);
+            uploadIndex.put(key, upload);
+        }
+    }
+
+    public synchronized void uploadCompleted(String key) {
+        if (uploadIndex != null) {
+            uploadIndex.remove(key);
+        }
+    }
+
     public List<MultipartUpload> getAlreadyStartedMultipartUploads() throws DestinationOperationException {
+        List<MultipartUpload> uploads = new ArrayList<>();
+        collectAlreadyStartedMultipartUploads(uploads::add);
+        return uploads;
+    }
+
+    /**
+     * Pages through the listing iteratively.
+     * A failure on the first page is thrown, a failure on a later page is logged and ends the listing.
+     *
+     * @return false if the listing stopped before the last page
+     */
+    private boolean collectAlreadyStartedMultipartUploads(Consumer<MultipartUpload> consumer) throws DestinationOperationException {
         ListMultipartUploadsRequest uploadsRequest = createListMultipartUploadsRequest();
-        MultipartUploadListing multipartUploadListing = listMultipartUploads(uploadsRequest);
-
-        Stream<MultipartUploadListing> stream = Stream.of(multipartUploadListing)
-                .flatMap(listing -> {
-                    try {
-                        return this.streamNextListing(listing);
-                    } catch (DestinationOperationException ex) {
-                        log.error("Failed to stream next listing " + listing.getUploadIdMarker(), ex);
-                        return null;
-                    }
-                }).filter(Objects::nonNull);
-
-        return stream.map(MultipartUploadListing::getMultipartUploads)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
+        MultipartUploadListing listing = listMultipartUploads(uploadsRequest);
+        while (true) {
+            listing.getMultipartUploads().forEach(consumer);
+            if (!listing.isTruncated()) {
+                return true;
+            }
+            try {
+                listing = getNextListing(listing);
+            } catch (DestinationOperationException ex) {
+                log.error("Failed to stream next listing " + listing.getNextUploadIdMarker(), ex);
+                return false;
+            }
+        }
     }
 
     private ListMultipartUploadsRequest createListMultipartUploadsRequest() {
@@ -62,18 +114,6 @@ public class MultipartUploadFinder {
         }
     }
 
-    private Stream<MultipartUploadListing> streamNextListing(MultipartUploadListing listing) throws DestinationOperationException {
-        if (!listing.isTruncated()) {
-            return Stream.of(listing);
-        }
-        MultipartUploadListing nextListing = getNextListing(listing);
-
-        Stream<MultipartUploadListing> head = Stream.of(listing);
-        Stream<MultipartUploadListing> tail = streamNextListing(nextListing);
-
-        return Stream.concat(head, tail);
-    }
-
     private MultipartUploadListing getNextListing(MultipartUploadListing listing) throws DestinationOperationException {
         ListMultipartUploadsRequest uploadsRequest = createListMultipartUploadsRequest();
         uploadsRequest.setUploadIdMarker(listing.getNextUploadIdMarker());
@@ -34,6 +34,19 @@ public final class MultipartUploadHelper {
                 .sum();
     }
 
+    /**
+     * Part size the upload was started with.
+     * Every part of an unfinished upload has that size, parts are listed only when
+     * there is enough data for a full one. Returns 0 if nothing was uploaded yet.
+     */
+    static int getPartSize(PartListing partListing) {
+        return (int) partListing.getParts()
+                .stream()
+                .mapToLong(PartSummary::getSize)
+                .max()
+                .orElse(0);
+    }
+
     static int getLastPartIndex(PartListing partListing) {
         return partListing.getParts()
                 .stream()
@@ -9,6 +9,8 @@ public class MultipartUploadResult {
 
     private final UploadPartResult result;
 
+    private long uploadNanos;
+
     public MultipartUploadResult(UploadPartRequest request, UploadPartResult result) {
         this.request = request;
         this.result = result;
@@ -22,4 +24,15 @@ public class MultipartUploadResult {
         return result;
     }
 
+    /**
+     * Time spent sending the part, excluding the time it waited for an upload thread.
+     */
+    public long getUploadNanos() {
+        return uploadNanos;
+    }
+
+    void setUploadNanos(long uploadNanos) {
+        this.uploadNanos = uploadNanos;
+    }
+
 }
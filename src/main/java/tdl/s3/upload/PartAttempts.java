@@ -0,0 +1,234 @@
+package tdl.s3.upload;
+
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import tdl.s3.sync.destination.DestinationOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The parts of one file being uploaded, and the attempts sending them.
+ *
+ * With {@link PartHedging}, a part whose attempt runs longer than usual is sent a second time,
+ * its data read again from the file. The first attempt to succeed gives the part its ETag and
+ * the other one is cancelled: an attempt still waiting for a thread never runs, a running one
+ * is interrupted. Both attempts send the same bytes, so they get the same ETag whichever
+ * one S3 keeps.
+ */
+class PartAttempts {
+    private static final Logger log = getLogger(PartAttempts.class);
+
+    //Waiting for a result is cut that often at most to look for stragglers
+    private static final long MIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ConcurrentMultipartUploader uploader;
+
+    private final PartCompletionService completionService;
+
+    private final UploadRetryPolicy.FileBudget retryBudget;
+
+    private final PartHedging hedging;
+
+    private final MultipartUploadFile multipartUploadFile;
+
+    private final Map<Future<MultipartUploadResult>, Attempt> attempts = new HashMap<>();
+
+    private final List<Part> pendingParts = new ArrayList<>();
+
+    private static class Part {
+
+        private final int partNumber;
+
+        private final int partSize;
+
+        private final boolean isLastPart;
+
+        private final List<Attempt> attempts = new ArrayList<>();
+
+        private boolean hedged;
+
+        Part(UploadPartRequest request) {
+            this.partNumber = request.getPartNumber();
+            this.partSize = (int) request.getPartSize();
+            this.isLastPart = request.isLastPart();
+        }
+    }
+
+    private static class Attempt {
+
+        private final Part part;
+
+        private final UploadPartRequest request;
+
+        //Claimed by the upload thread to run the attempt, or by the file thread to cancel it first
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private volatile long startNanos;
+
+        private Future<MultipartUploadResult> future;
+
+        Attempt(Part part, UploadPartRequest request) {
+            this.part = part;
+            this.request = request;
+        }
+
+        private boolean start() {
+            startNanos = System.nanoTime();
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * @param hedging null to send each part only once
+     */
+    PartAttempts(ConcurrentMultipartUploader uploader, PartCompletionService completionService,
+                 UploadRetryPolicy.FileBudget retryBudget, PartHedging hedging, MultipartUploadFile multipartUploadFile) {
+        this.uploader = uploader;
+        this.completionService = completionService;
+        this.retryBudget = retryBudget;
+        this.hedging = hedging;
+        this.multipartUploadFile = multipartUploadFile;
+    }
+
+    void submit(UploadPartRequest request) {
+        Part part = new Part(request);
+        pendingParts.add(part);
+        submitAttempt(part, request);
+    }
+
+    private void submitAttempt(Part part, UploadPartRequest request) {
+        Attempt attempt = new Attempt(part, request);
+        part.attempts.add(attempt);
+        attempt.future = uploader.submitTaskForPartUploading(request, completionService, retryBudget, attempt::start);
+        attempts.put(attempt.future, attempt);
+    }
+
+    /**
+     * Waits for the next part to be uploaded, by whichever of its attempts succeeds first.
+     * A part only fails once all of its attempts failed.
+     */
+    MultipartUploadResult takeNext() throws DestinationOperationException {
+        while (true) {
+            Future<MultipartUploadResult> future = pollNextAttempt();
+            if (future == null) {
+                hedgeStragglers();
+                continue;
+            }
+            Attempt attempt = attempts.remove(future);
+            if (attempt == null) {
+                //Cancelled after its part was uploaded by another attempt
+                continue;
+            }
+            Part part = attempt.part;
+            part.attempts.remove(attempt);
+            MultipartUploadResult result;
+            try {
+                result = MultipartUploadFileUploadingStrategy.getUploadingResult(future);
+            } catch (PartUploadException ex) {
+                if (!part.attempts.isEmpty()) {
+                    log.warn("Attempt to upload part " + part.partNumber + " failed, waiting for the other one: "
+                            + ex.getMessage());
+                    continue;
+                }
+                throw ex;
+            }
+            pendingParts.remove(part);
+            part.attempts.forEach(this::cancel);
+            part.attempts.clear();
+            return result;
+        }
+    }
+
+    private Future<MultipartUploadResult> pollNextAttempt() throws DestinationOperationException {
+        try {
+            long waitNanos = getNanosUntilNextStraggler();
+            if (waitNanos == Long.MAX_VALUE) {
+                return completionService.take();
+            }
+            return completionService.poll(Math.max(waitNanos, MIN_POLL_NANOS), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DestinationOperationException("Interrupted while waiting for part uploads", e);
+        }
+    }
+
+    /**
+     * A part waiting for a thread can not be a straggler yet, it is looked at again once it could be.
+     */
+    private long getNanosUntilNextStraggler() {
+        if (hedging == null) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (Part part : pendingParts) {
+            long hedgeDelay = hedging.getHedgeDelayNanos(part.partSize);
+            if (part.hedged || hedgeDelay < 0) {
+                continue;
+            }
+            long startNanos = part.attempts.get(0).startNanos;
+            long wait = startNanos == 0 ? hedgeDelay : startNanos + hedgeDelay - now;
+            earliest = Math.min(earliest, Math.max(0, wait));
+        }
+        return earliest;
+    }
+
+    private void hedgeStragglers() {
+        long now = System.nanoTime();
+        for (Part part : pendingParts) {
+            long hedgeDelay = hedging.getHedgeDelayNanos(part.partSize);
+            if (part.hedged || hedgeDelay < 0) {
+                continue;
+            }
+            long startNanos = part.attempts.get(0).startNanos;
+            if (startNanos != 0 && now - startNanos >= hedgeDelay) {
+                hedge(part, now - startNanos);
+            }
+        }
+    }
+
+    private void hedge(Part part, long runningNanos) {
+        part.hedged = true;
+        try {
+            UploadPartRequest request = multipartUploadFile.getUploadPartRequestForPart(
+                    part.partNumber, part.partSize, part.isLastPart);
+            log.info("Part " + part.partNumber + " of " + request.getKey() + " still uploading after "
+                    + TimeUnit.NANOSECONDS.toMillis(runningNanos) + " ms, sending it again");
+            submitAttempt(part, request);
+        } catch (IOException | DestinationOperationException ex) {
+            log.warn("Cannot send part " + part.partNumber + " again, waiting for the first attempt", ex);
+        }
+    }
+
+    private void cancel(Attempt attempt) {
+        attempts.remove(attempt.future);
+        if (attempt.claimed.compareAndSet(false, true)) {
+            //Never runs, so its data is released here
+            attempt.future.cancel(false);
+            closeQuietly(attempt.request.getInputStream());
+        } else {
+            attempt.future.cancel(true);
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            inputStream.close();
+        } catch (IOException ex) {
+            log.warn("Cannot release part data", ex);
+        }
+    }
+}
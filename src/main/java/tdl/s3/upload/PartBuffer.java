@@ -0,0 +1,49 @@
+package tdl.s3.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A buffer borrowed from a {@link PartBufferPool} holding the data of one part.
+ * Closing any stream created by {@link #asInputStream()} gives the buffer back to the pool.
+ */
+public class PartBuffer {
+
+    private final PartBufferPool pool;
+
+    private final byte[] bytes;
+
+    private final int length;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    PartBuffer(PartBufferPool pool, byte[] bytes, int length) {
+        this.pool = pool;
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(bytes, 0, length) {
+            @Override
+            public void close() {
+                release();
+            }
+        };
+    }
+
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.release(bytes);
+        }
+    }
+}
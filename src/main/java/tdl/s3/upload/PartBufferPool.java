@@ -0,0 +1,119 @@
+package tdl.s3.upload;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool of reusable part buffers bounded by a memory budget.
+ *
+ * Buffers are grouped in size classes rounded up to a megabyte, so a released
+ * 5 MB buffer serves the next 5 MB part instead of a fresh allocation.
+ * When the budget is used up, {@link #acquire(int)} blocks until another part
+ * finishes uploading and releases its buffer.
+ * The default pool is shared by every upload in the process.
+ */
+public class PartBufferPool {
+
+    private static final int SIZE_CLASS_GRANULARITY = 1024 * 1024;
+
+    private static final long DEFAULT_MEMORY_BUDGET = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+
+    private static final PartBufferPool DEFAULT = new PartBufferPool(DEFAULT_MEMORY_BUDGET);
+
+    private final Map<Integer, Deque<byte[]>> idleBuffers = new HashMap<>();
+
+    private long memoryBudget;
+
+    private long allocatedBytes = 0;
+
+    private long idleBytes = 0;
+
+    public PartBufferPool(long memoryBudget) {
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("Memory budget should be >= 1");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public static PartBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Takes a buffer able to hold {@code size} bytes, blocking while the memory budget is exhausted.
+     * A part larger than the whole budget is still handed out once no other buffer is allocated.
+     */
+    public synchronized PartBuffer acquire(int size) throws InterruptedException {
+        int capacity = getSizeClass(size);
+        while (true) {
+            Deque<byte[]> buffers = idleBuffers.get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                idleBytes -= capacity;
+                return new PartBuffer(this, buffers.pop(), size);
+            }
+            if (allocatedBytes + capacity > memoryBudget) {
+                evictIdleBuffers(allocatedBytes + capacity - memoryBudget);
+            }
+            if (allocatedBytes + capacity <= memoryBudget || allocatedBytes == 0) {
+                allocatedBytes += capacity;
+                return new PartBuffer(this, new byte[capacity], size);
+            }
+            wait();
+        }
+    }
+
+    synchronized void release(byte[] bytes) {
+        if (allocatedBytes > memoryBudget) {
+            allocatedBytes -= bytes.length;
+        } else {
+            idleBuffers.computeIfAbsent(bytes.length, capacity -> new ArrayDeque<>()).push(bytes);
+            idleBytes += bytes.length;
+        }
+        notifyAll();
+    }
+
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("Memory budget should be >= 1");
+        }
+        this.memoryBudget = memoryBudget;
+        if (allocatedBytes > memoryBudget) {
+            evictIdleBuffers(allocatedBytes - memoryBudget);
+        }
+        notifyAll();
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    private void evictIdleBuffers(long bytesToFree) {
+        long freed = 0;
+        Iterator<Deque<byte[]>> sizeClasses = idleBuffers.values().iterator();
+        while (freed < bytesToFree && sizeClasses.hasNext()) {
+            Deque<byte[]> buffers = sizeClasses.next();
+            while (freed < bytesToFree && !buffers.isEmpty()) {
+                int capacity = buffers.pop().length;
+                freed += capacity;
+                idleBytes -= capacity;
+                allocatedBytes -= capacity;
+            }
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        int classes = (Math.max(size, 1) + SIZE_CLASS_GRANULARITY - 1) / SIZE_CLASS_GRANULARITY;
+        return classes * SIZE_CLASS_GRANULARITY;
+    }
+}
@@ -0,0 +1,73 @@
+package tdl.s3.upload;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the part uploads of one file in the order they finish, like an
+ * {@link java.util.concurrent.ExecutorCompletionService}.
+ * A part upload only counts as finished after its last attempt, however many retries it was
+ * scheduled for in between.
+ */
+class PartCompletionService implements CompletionService<MultipartUploadResult> {
+
+    private final Executor executor;
+
+    private final BlockingQueue<Future<MultipartUploadResult>> finishedTasks = new LinkedBlockingQueue<>();
+
+    PartCompletionService(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Where the attempts of the parts run.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    void finished(Future<MultipartUploadResult> task) {
+        finishedTasks.add(task);
+    }
+
+    @Override
+    public Future<MultipartUploadResult> submit(Callable<MultipartUploadResult> task) {
+        FutureTask<MultipartUploadResult> futureTask = new FutureTask<MultipartUploadResult>(task) {
+            @Override
+            protected void done() {
+                finished(this);
+            }
+        };
+        executor.execute(futureTask);
+        return futureTask;
+    }
+
+    @Override
+    public Future<MultipartUploadResult> submit(Runnable task, MultipartUploadResult result) {
+        return submit(() -> {
+            task.run();
+            return result;
+        });
+    }
+
+    @Override
+    public Future<MultipartUploadResult> take() throws InterruptedException {
+        return finishedTasks.take();
+    }
+
+    @Override
+    public Future<MultipartUploadResult> poll() {
+        return finishedTasks.poll();
+    }
+
+    @Override
+    public Future<MultipartUploadResult> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return finishedTasks.poll(timeout, unit);
+    }
+}
@@ -0,0 +1,92 @@
+package tdl.s3.upload;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spots the part uploads that take far longer than usual, so they can be sent a second time.
+ *
+ * Keeps the time per byte of the latest parts. A part running longer than the chosen percentile
+ * of those, scaled to its size, is a straggler: usually one slow connection rather than a slow
+ * link. Sending it again on another connection and keeping whichever attempt finishes first
+ * bounds how long a file waits for its slowest part. No part is hedged before enough parts
+ * were measured, nor before {@code minDelayMillis}.
+ */
+public class PartHedging {
+
+    private static final double DEFAULT_PERCENTILE = 0.95;
+
+    private static final int DEFAULT_MIN_SAMPLES = 20;
+
+    private static final int DEFAULT_WINDOW_SIZE = 200;
+
+    private static final long DEFAULT_MIN_DELAY_MILLIS = 2000;
+
+    private final double percentile;
+
+    private final int minSamples;
+
+    private final long minDelayNanos;
+
+    private final double[] nanosPerByte;
+
+    private int sampleCount;
+
+    private int nextSample;
+
+    private double percentileNanosPerByte = -1;
+
+    public PartHedging() {
+        this(DEFAULT_PERCENTILE);
+    }
+
+    public PartHedging(double percentile) {
+        this(percentile, DEFAULT_MIN_SAMPLES, DEFAULT_WINDOW_SIZE, DEFAULT_MIN_DELAY_MILLIS);
+    }
+
+    /**
+     * @param percentile     parts slower than that share of the latest parts are hedged, such as 0.99
+     * @param minSamples     parts measured before any part is hedged
+     * @param windowSize     latest parts the percentile is computed on
+     * @param minDelayMillis shortest time a part runs before it is hedged
+     */
+    public PartHedging(double percentile, int minSamples, int windowSize, long minDelayMillis) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("Percentile should be between 0 and 1");
+        }
+        if (minSamples < 1 || windowSize < minSamples) {
+            throw new IllegalArgumentException("Window size should be >= min samples >= 1");
+        }
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.nanosPerByte = new double[windowSize];
+    }
+
+    public synchronized void recordPartUpload(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        nanosPerByte[nextSample] = nanos / (double) bytes;
+        nextSample = (nextSample + 1) % nanosPerByte.length;
+        sampleCount = Math.min(sampleCount + 1, nanosPerByte.length);
+        percentileNanosPerByte = -1;
+    }
+
+    /**
+     * How long an attempt to upload a part of that size may run before the part is sent again,
+     * or -1 while too few parts were measured.
+     */
+    public synchronized long getHedgeDelayNanos(long partSize) {
+        if (sampleCount < minSamples) {
+            return -1;
+        }
+        if (percentileNanosPerByte < 0) {
+            double[] sorted = Arrays.copyOf(nanosPerByte, sampleCount);
+            Arrays.sort(sorted);
+            int index = Math.min(sampleCount - 1, (int) Math.ceil(percentile * sampleCount) - 1);
+            percentileNanosPerByte = sorted[Math.max(0, index)];
+        }
+        return Math.max(minDelayNanos, (long) (percentileNanosPerByte * partSize));
+    }
+}
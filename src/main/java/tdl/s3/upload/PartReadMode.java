@@ -0,0 +1,17 @@
+package tdl.s3.upload;
+
+/**
+ * How the data of a part is handed to the SDK.
+ */
+public enum PartReadMode {
+
+    /**
+     * Parts are read into pooled heap buffers and sent with a Content-MD5 header.
+     */
+    BUFFERED,
+
+    /**
+     * Parts are described as (file, offset, length) regions and streamed by the SDK straight from disk.
+     */
+    FILE_REGION
+}
@@ -0,0 +1,27 @@
+package tdl.s3.upload;
+
+import tdl.s3.sync.destination.DestinationOperationException;
+
+import java.io.IOException;
+
+/**
+ * Carries a checked failure out of a lazily produced stream of part requests.
+ */
+class PartReadingException extends RuntimeException {
+
+    PartReadingException(IOException cause) {
+        super(cause);
+    }
+
+    PartReadingException(DestinationOperationException cause) {
+        super(cause);
+    }
+
+    void rethrowCause() throws IOException, DestinationOperationException {
+        Throwable cause = getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        throw (DestinationOperationException) cause;
+    }
+}
@@ -0,0 +1,27 @@
+package tdl.s3.upload;
+
+import java.io.File;
+
+/**
+ * Chooses the part size of a new multipart upload.
+ *
+ * The size is only chosen once per upload: a resumed upload keeps the size of
+ * the parts already uploaded, so the part offsets stay the same across runs.
+ */
+public interface PartSizePolicy {
+
+    //Minimum part size is 5 MB
+    int MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+
+    //S3 does not accept more parts for a single upload
+    int MAXIMUM_PART_COUNT = 10000;
+
+    int choosePartSize(File file, long fileSize, boolean isWritingFinished);
+
+    /**
+     * Called once a part was uploaded, so throughput aware policies can measure the link.
+     */
+    default void recordPartUpload(long bytes, long nanos) {
+        //DO NOTHING
+    }
+}
@@ -0,0 +1,14 @@
+package tdl.s3.upload;
+
+import tdl.s3.sync.destination.DestinationOperationException;
+
+/**
+ * A part could not be uploaded, after all the retries its {@link UploadRetryPolicy} allowed.
+ * Uploading the whole file again would not do better.
+ */
+public class PartUploadException extends DestinationOperationException {
+
+    public PartUploadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,76 @@
+package tdl.s3.upload;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an executor in priority order rather than in submission order.
+ *
+ * The executor only receives stand-ins: whichever stand-in a free thread runs first takes the most
+ * urgent task waiting at that moment, so a task submitted late still overtakes a backlog.
+ * Tasks of equal priority run in submission order.
+ */
+class PrioritizedExecutor {
+
+    private static class PendingTask {
+
+        private final long priority;
+
+        private final long sequence;
+
+        private final Runnable task;
+
+        PendingTask(long priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+    private final Executor executor;
+
+    private final PriorityQueue<PendingTask> pendingTasks = new PriorityQueue<>(
+            Comparator.<PendingTask>comparingLong(task -> task.priority)
+                    .thenComparingLong(task -> task.sequence));
+
+    private long sequence = 0;
+
+    PrioritizedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * An executor submitting every task with the given priority, lower values run first.
+     */
+    Executor withPriority(long priority) {
+        return task -> execute(task, priority);
+    }
+
+    void execute(Runnable task, long priority) {
+        PendingTask pendingTask;
+        synchronized (this) {
+            pendingTask = new PendingTask(priority, sequence++, task);
+            pendingTasks.add(pendingTask);
+        }
+        try {
+            executor.execute(this::runNext);
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                pendingTasks.remove(pendingTask);
+            }
+            throw ex;
+        }
+    }
+
+    private void runNext() {
+        PendingTask next;
+        synchronized (this) {
+            next = pendingTasks.poll();
+        }
+        if (next != null) {
+            next.task.run();
+        }
+    }
+}
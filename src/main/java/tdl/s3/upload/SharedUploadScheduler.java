@@ -0,0 +1,156 @@
+package tdl.s3.upload;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Upload threads shared by several sync jobs, with weighted fair sharing between them.
+ *
+ * Each job submits its part uploads through its own {@link Executor}. Whenever a thread is free,
+ * the next part comes from the waiting job that got the fewest parts relative to its weight,
+ * so while both are busy a job of weight 2 gets twice the parts of a job of weight 1.
+ * An idle job does not save up its share: its threads go to the busy jobs, and once it
+ * submits again it starts level with them.
+ */
+public class SharedUploadScheduler {
+    private static final Logger log = getLogger(SharedUploadScheduler.class);
+
+    private static final int MAX_UPLOADING_TIME = 360;
+
+    private class JobQueue implements Executor {
+
+        private final String name;
+
+        private final int weight;
+
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+        //Virtual time at which the next part of the job is due
+        private double nextTag = 0;
+
+        JobQueue(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            submit(this, task);
+        }
+    }
+
+    private final List<JobQueue> jobs = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private double virtualTime = 0;
+
+    private boolean shutdown = false;
+
+    public SharedUploadScheduler(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count should be >= 1");
+        }
+        ThreadFactory threadFactory = ConcurrentMultipartUploader.createThreadFactory("s3-shared-upload");
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = threadFactory.newThread(this::runTasks);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates the executor a job submits its parts to.
+     *
+     * @param weight share of the threads the job gets while other jobs are busy too
+     */
+    public synchronized Executor register(String jobName, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight should be >= 1");
+        }
+        JobQueue job = new JobQueue(jobName, weight);
+        jobs.add(job);
+        return job;
+    }
+
+    private synchronized void submit(JobQueue job, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Upload scheduler is shut down, cannot upload for " + job.name);
+        }
+        if (job.tasks.isEmpty()) {
+            job.nextTag = Math.max(job.nextTag, virtualTime);
+        }
+        job.tasks.add(task);
+        notify();
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (true) {
+            JobQueue next = null;
+            for (JobQueue job : jobs) {
+                if (!job.tasks.isEmpty() && (next == null || job.nextTag < next.nextTag)) {
+                    next = job;
+                }
+            }
+            if (next != null) {
+                virtualTime = next.nextTag;
+                next.nextTag += 1.0 / next.weight;
+                return next.tasks.poll();
+            }
+            if (shutdown) {
+                return null;
+            }
+            wait();
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            try {
+                task = take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.error("Part upload failed", ex);
+            }
+            //A part cancelled while running leaves the thread interrupted, which is not meant for the next part
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Runs the parts already submitted, then stops the threads.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(MAX_UPLOADING_TIME);
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
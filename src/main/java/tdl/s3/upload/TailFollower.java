@@ -0,0 +1,105 @@
+package tdl.s3.upload;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Keeps the uploads of files still being written open from one upload of the file to the next.
+ *
+ * The next upload of a followed file carries on from where the previous one stopped, with the
+ * same open channel, uploadId and ETags, so every new part costs a single part upload.
+ * An upload that failed is not followed: the next upload of the file reads the remote state again.
+ */
+class TailFollower {
+    private static final Logger log = getLogger(TailFollower.class);
+
+    private static final TailFollower DISABLED = new TailFollower(false);
+
+    private final boolean enabled;
+
+    private final Map<String, MultipartUploadFile> followedUploads = new HashMap<>();
+
+    TailFollower() {
+        this(true);
+    }
+
+    private TailFollower(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Follows nothing, every upload starts from the remote state.
+     */
+    static TailFollower disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Takes over the followed upload of the file, or returns null if the file is not followed.
+     * The upload is no longer followed until it is handed back with {@link #follow}.
+     */
+    synchronized MultipartUploadFile resume(File file, String remotePath) {
+        MultipartUploadFile upload = followedUploads.remove(remotePath);
+        if (upload != null && !upload.getFile().equals(file)) {
+            closeQuietly(upload);
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Keeps the upload open for the next upload of the same file.
+     * Returns false if the upload is not followed, it should then be closed by the caller.
+     */
+    synchronized boolean follow(String remotePath, MultipartUploadFile upload) {
+        if (!enabled) {
+            return false;
+        }
+        MultipartUploadFile previous = followedUploads.put(remotePath, upload);
+        if (previous != null && previous != upload) {
+            closeQuietly(previous);
+        }
+        return true;
+    }
+
+    /**
+     * Bytes of the followed file uploaded so far, or -1 if the file is not followed.
+     */
+    synchronized long getUploadedSize(String remotePath) {
+        MultipartUploadFile upload = followedUploads.get(remotePath);
+        return upload != null ? upload.getTailOffset() : -1;
+    }
+
+    /**
+     * Size of the parts of the followed file, or -1 if the file is not followed.
+     */
+    synchronized int getPartSize(String remotePath) {
+        MultipartUploadFile upload = followedUploads.get(remotePath);
+        return upload != null ? upload.getPartSize() : -1;
+    }
+
+    void closeAll() {
+        List<MultipartUploadFile> uploads;
+        synchronized (this) {
+            uploads = new ArrayList<>(followedUploads.values());
+            followedUploads.clear();
+        }
+        uploads.forEach(TailFollower::closeQuietly);
+    }
+
+    static void closeQuietly(MultipartUploadFile upload) {
+        try {
+            upload.close();
+        } catch (IOException ex) {
+            log.warn("Cannot close " + upload.getFile(), ex);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package tdl.s3.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Feeds the data of a part to the SDK no faster than the bandwidth limiters allow.
+ * Bytes sent again after a reset, when the SDK retries the part, are limited again.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    //Small reads keep the rate smooth instead of sleeping once per part
+    private static final int MAX_READ_SIZE = 64 * 1024;
+
+    private final List<BandwidthLimiter> limiters;
+
+    ThrottledInputStream(InputStream in, List<BandwidthLimiter> limiters) {
+        super(in);
+        this.limiters = limiters;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            acquire(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, Math.min(len, MAX_READ_SIZE));
+        if (read > 0) {
+            acquire(read);
+        }
+        return read;
+    }
+
+    private void acquire(int bytes) throws InterruptedIOException {
+        try {
+            for (BandwidthLimiter limiter : limiters) {
+                limiter.acquire(bytes);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+}
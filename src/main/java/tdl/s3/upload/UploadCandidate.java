@@ -0,0 +1,61 @@
+package tdl.s3.upload;
+
+import tdl.s3.helpers.FileHelper;
+
+import java.io.File;
+
+/**
+ * What an {@link UploadPriorityPolicy} knows about a file waiting to be uploaded.
+ */
+public class UploadCandidate {
+
+    private final File file;
+
+    private final String remotePath;
+
+    private Boolean isWritingFinished;
+
+    private final long uploadedSize;
+
+    private final boolean isUploadStarted;
+
+    UploadCandidate(File file, String remotePath, Boolean isWritingFinished, long uploadedSize, boolean isUploadStarted) {
+        this.file = file;
+        this.remotePath = remotePath;
+        this.isWritingFinished = isWritingFinished;
+        this.uploadedSize = uploadedSize;
+        this.isUploadStarted = isUploadStarted;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    /**
+     * Whether the file has no lock file, only checked when a policy asks for it.
+     */
+    public synchronized boolean isWritingFinished() {
+        if (isWritingFinished == null) {
+            isWritingFinished = !FileHelper.lockFileExists(file);
+        }
+        return isWritingFinished;
+    }
+
+    /**
+     * Bytes of the file known to be uploaded already, 0 when unknown.
+     */
+    public long getUploadedSize() {
+        return uploadedSize;
+    }
+
+    /**
+     * Whether part of the file was uploaded before, as for a recording that was growing until now.
+     */
+    public boolean isUploadStarted() {
+        return isUploadStarted;
+    }
+}
@@ -0,0 +1,225 @@
+package tdl.s3.upload;
+
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Append-only local record of the multipart uploads in progress.
+ *
+ * Each remote path gets its own journal file holding the uploadId, the part size and
+ * one line per acknowledged part. On restart the upload is found in the journal instead
+ * of listing every multipart upload of the bucket. Appends are forced to disk in batches,
+ * and the journal of an upload is deleted once the upload is committed.
+ * A record only counts once its line is terminated, so a torn last line left by a crash
+ * in the middle of an append is ignored, however many of its fields made it to disk.
+ */
+public class UploadJournal {
+    private static final Logger log = getLogger(UploadJournal.class);
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    private static final int FSYNC_BATCH_SIZE = 16;
+
+    private static final UploadJournal DISABLED = new UploadJournal(null);
+
+    public static class Entry {
+
+        private final String uploadId;
+
+        private final int partSize;
+
+        private final List<PartSummary> parts;
+
+        Entry(String uploadId, int partSize, List<PartSummary> parts) {
+            this.uploadId = uploadId;
+            this.partSize = partSize;
+            this.parts = parts;
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public int getPartSize() {
+            return partSize;
+        }
+
+        public PartListing toPartListing() {
+            PartListing listing = new PartListing();
+            listing.setUploadId(uploadId);
+            listing.setParts(new ArrayList<>(parts));
+            return listing;
+        }
+    }
+
+    private final Path directory;
+
+    private final Map<String, FileChannel> openJournals = new HashMap<>();
+
+    private final Map<String, Integer> unsyncedRecords = new HashMap<>();
+
+    public UploadJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * A journal that records nothing, uploads are then always found remotely.
+     */
+    public static UploadJournal disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    public synchronized Optional<Entry> read(String remotePath) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        Path journalPath = getJournalPath(remotePath);
+        if (!Files.exists(journalPath)) {
+            return Optional.empty();
+        }
+        try {
+            return parse(readCompleteLines(journalPath));
+        } catch (IOException ex) {
+            log.warn("Cannot read upload journal " + journalPath, ex);
+            return Optional.empty();
+        }
+    }
+
+    private static List<String> readCompleteLines(Path journalPath) throws IOException {
+        String content = new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            lines.add(content.substring(start, end));
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    private static Optional<Entry> parse(List<String> lines) {
+        Entry entry = null;
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            try {
+                if (fields[0].equals("upload") && fields.length == 3) {
+                    entry = new Entry(fields[1], Integer.parseInt(fields[2]), new ArrayList<>());
+                } else if (fields[0].equals("part") && fields.length == 5 && entry != null) {
+                    PartSummary part = new PartSummary();
+                    part.setPartNumber(Integer.parseInt(fields[1]));
+                    part.setSize(Long.parseLong(fields[3]));
+                    part.setETag(fields[4]);
+                    entry.parts.add(part);
+                }
+            } catch (NumberFormatException ex) {
+                log.warn("Ignoring malformed upload journal record: " + line);
+            }
+        }
+        return Optional.ofNullable(entry);
+    }
+
+    public synchronized void uploadStarted(String remotePath, String uploadId, int partSize) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        closeJournal(remotePath);
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(getJournalPath(remotePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        openJournals.put(remotePath, channel);
+        append(remotePath, "upload " + uploadId + " " + partSize);
+        sync(remotePath);
+    }
+
+    public synchronized void partUploaded(String remotePath, int partNumber, long offset, long length, String eTag) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        append(remotePath, "part " + partNumber + " " + offset + " " + length + " " + eTag);
+        int unsynced = unsyncedRecords.merge(remotePath, 1, Integer::sum);
+        if (unsynced >= FSYNC_BATCH_SIZE) {
+            sync(remotePath);
+        }
+    }
+
+    /**
+     * Forces the pending records of the upload to disk.
+     */
+    public synchronized void sync(String remotePath) throws IOException {
+        FileChannel channel = openJournals.get(remotePath);
+        if (channel != null) {
+            channel.force(false);
+            unsyncedRecords.remove(remotePath);
+        }
+    }
+
+    /**
+     * Forces the pending records to disk and closes the journal until the next part of the upload.
+     */
+    public synchronized void release(String remotePath) throws IOException {
+        closeJournal(remotePath);
+    }
+
+    /**
+     * Forgets the upload, once it is committed or when it turns out to no longer exist remotely.
+     */
+    public synchronized void discard(String remotePath) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        closeJournal(remotePath);
+        Files.deleteIfExists(getJournalPath(remotePath));
+    }
+
+    private void append(String remotePath, String record) throws IOException {
+        FileChannel channel = openJournals.get(remotePath);
+        if (channel == null) {
+            channel = FileChannel.open(getJournalPath(remotePath), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            openJournals.put(remotePath, channel);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        channel.position(channel.size());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeJournal(String remotePath) throws IOException {
+        unsyncedRecords.remove(remotePath);
+        FileChannel channel = openJournals.remove(remotePath);
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private Path getJournalPath(String remotePath) {
+        try {
+            return directory.resolve(URLEncoder.encode(remotePath, "UTF-8") + JOURNAL_EXTENSION);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package tdl.s3.upload;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The usual {@link UploadPriorityPolicy} implementations.
+ *
+ * They only look at what an {@link UploadCandidate} tells about the file, so they can be
+ * used for the files waiting to be uploaded as well as for their parts.
+ */
+public final class UploadPriorities {
+
+    private static final UploadPriorityPolicy FIFO = candidate -> 0;
+
+    private UploadPriorities() {
+    }
+
+    /**
+     * Uploads in the order files were queued, the default.
+     */
+    public static UploadPriorityPolicy fifo() {
+        return FIFO;
+    }
+
+    /**
+     * Files that just stopped growing first, so recordings become available as soon as they end.
+     */
+    public static UploadPriorityPolicy justFinishedFirst() {
+        return candidate -> candidate.isUploadStarted() && candidate.isWritingFinished() ? 0 : 1;
+    }
+
+    /**
+     * Growing files first, the furthest behind their writer first.
+     */
+    public static UploadPriorityPolicy fallingBehindFirst() {
+        return candidate -> candidate.isWritingFinished()
+                ? 0
+                : -(candidate.getFile().length() - candidate.getUploadedSize());
+    }
+
+    /**
+     * Small files first, so many files become available while a large one would still be uploading.
+     */
+    public static UploadPriorityPolicy smallestFirst() {
+        return candidate -> candidate.getFile().length();
+    }
+
+    /**
+     * The files modified the longest time ago first.
+     */
+    public static UploadPriorityPolicy oldestFirst() {
+        return candidate -> candidate.getFile().lastModified();
+    }
+
+    /**
+     * The priority of the first regular expression matching the remote path, or {@code otherwise}.
+     */
+    public static UploadPriorityPolicy pathPatterns(LinkedHashMap<String, Long> priorityByRegex, long otherwise) {
+        List<Map.Entry<Pattern, Long>> patterns = new ArrayList<>();
+        priorityByRegex.forEach((regex, priority) ->
+                patterns.add(new AbstractMap.SimpleImmutableEntry<>(Pattern.compile(regex), priority)));
+        return candidate -> {
+            for (Map.Entry<Pattern, Long> pattern : patterns) {
+                if (pattern.getKey().matcher(candidate.getRemotePath()).matches()) {
+                    return pattern.getValue();
+                }
+            }
+            return otherwise;
+        };
+    }
+}
@@ -0,0 +1,15 @@
+package tdl.s3.upload;
+
+/**
+ * Decides which uploads go first when files or parts are waiting for a thread.
+ *
+ * The priority is computed once per file when it is queued, and again for its parts
+ * each time the file is uploaded. See {@link UploadPriorities} for the usual policies.
+ */
+public interface UploadPriorityPolicy {
+
+    /**
+     * Lower values are uploaded first, equal values in the order they were queued.
+     */
+    long getPriority(UploadCandidate candidate);
+}
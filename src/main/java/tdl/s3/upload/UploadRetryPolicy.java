@@ -0,0 +1,224 @@
+package tdl.s3.upload;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a failed part upload is sent again, and after how long.
+ *
+ * Only the failed part is sent again, once its delay is over. The delay doubles with each
+ * retry of the part, starting higher when the destination asked to slow down, and is picked at
+ * random in the upper half of that range so parts failing together do not retry together.
+ * Permanent failures are never retried. Retries also draw from a budget per file and from a
+ * budget shared by every upload using the policy, so a destination that is down is not
+ * hammered with retries of all the parts of all the files. The shared budget is a bucket
+ * refilling completely in ten minutes, so a long running sync gets its retries back once
+ * the destination recovers.
+ */
+public class UploadRetryPolicy {
+
+    public enum FailureKind {
+        //The destination asked to slow down
+        THROTTLED,
+        //The request may succeed when sent again
+        TRANSIENT,
+        //Sending the request again gives the same error
+        PERMANENT
+    }
+
+    private static final int DEFAULT_MAX_RETRIES_PER_PART = 4;
+
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 20_000;
+
+    private static final int DEFAULT_RETRIES_PER_FILE = 20;
+
+    private static final int DEFAULT_RETRIES_PER_SESSION = 500;
+
+    private static final long SESSION_REFILL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final int maxRetriesPerPart;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final int retriesPerFile;
+
+    private final int retriesPerSession;
+
+    private final Clock clock;
+
+    //Guarded by this
+    private double sessionRetriesLeft;
+
+    private long lastRefillMillis;
+
+    /**
+     * Retries left for the parts of one file.
+     */
+    static class FileBudget {
+
+        private final AtomicInteger retriesLeft;
+
+        private FileBudget(int retries) {
+            this.retriesLeft = new AtomicInteger(retries);
+        }
+
+        int getRetriesLeft() {
+            return retriesLeft.get();
+        }
+
+        private boolean take() {
+            return retriesLeft.getAndUpdate(left -> Math.max(0, left - 1)) > 0;
+        }
+    }
+
+    public UploadRetryPolicy() {
+        this(DEFAULT_MAX_RETRIES_PER_PART, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_RETRIES_PER_FILE, DEFAULT_RETRIES_PER_SESSION);
+    }
+
+    /**
+     * @param maxRetriesPerPart  times a single part is sent again
+     * @param baseDelayMillis    delay before the first retry
+     * @param maxDelayMillis     longest delay between two attempts
+     * @param retriesPerFile     retries shared by the parts of a file
+     * @param retriesPerSession  retries shared by every upload using the policy
+     */
+    public UploadRetryPolicy(int maxRetriesPerPart, long baseDelayMillis, long maxDelayMillis,
+                             int retriesPerFile, int retriesPerSession) {
+        this(maxRetriesPerPart, baseDelayMillis, maxDelayMillis, retriesPerFile, retriesPerSession, Clock.systemUTC());
+    }
+
+    UploadRetryPolicy(int maxRetriesPerPart, long baseDelayMillis, long maxDelayMillis,
+                      int retriesPerFile, int retriesPerSession, Clock clock) {
+        if (maxRetriesPerPart < 0 || retriesPerFile < 0 || retriesPerSession < 0) {
+            throw new IllegalArgumentException("Retry counts should be >= 0");
+        }
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Delays should be 0 <= base <= max");
+        }
+        this.maxRetriesPerPart = maxRetriesPerPart;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.retriesPerFile = retriesPerFile;
+        this.retriesPerSession = retriesPerSession;
+        this.clock = clock;
+        this.sessionRetriesLeft = retriesPerSession;
+        this.lastRefillMillis = clock.millis();
+    }
+
+    /**
+     * A policy that never retries a part.
+     */
+    public static UploadRetryPolicy none() {
+        return new UploadRetryPolicy(0, 0, 0, 0, 0);
+    }
+
+    public synchronized int getSessionRetriesLeft() {
+        refillSessionRetries();
+        return (int) sessionRetriesLeft;
+    }
+
+    FileBudget newFileBudget() {
+        return new FileBudget(retriesPerFile);
+    }
+
+    /**
+     * Takes a retry from the budgets if the failure is worth retrying.
+     * A retry refused by one budget is not taken from the other one.
+     *
+     * @param retries times the part was already sent again
+     */
+    boolean shouldRetry(FailureKind kind, int retries, FileBudget fileBudget) {
+        if (kind == FailureKind.PERMANENT || retries >= maxRetriesPerPart) {
+            return false;
+        }
+        if (!takeSessionRetry()) {
+            return false;
+        }
+        if (fileBudget.take()) {
+            return true;
+        }
+        giveBackSessionRetry();
+        return false;
+    }
+
+    private synchronized boolean takeSessionRetry() {
+        refillSessionRetries();
+        if (sessionRetriesLeft < 1) {
+            return false;
+        }
+        sessionRetriesLeft--;
+        return true;
+    }
+
+    private synchronized void giveBackSessionRetry() {
+        sessionRetriesLeft = Math.min(retriesPerSession, sessionRetriesLeft + 1);
+    }
+
+    private void refillSessionRetries() {
+        long now = clock.millis();
+        if (now > lastRefillMillis) {
+            sessionRetriesLeft = Math.min(retriesPerSession,
+                    sessionRetriesLeft + (double) (now - lastRefillMillis) * retriesPerSession / SESSION_REFILL_MILLIS);
+        }
+        lastRefillMillis = now;
+    }
+
+    /**
+     * @param retry 0 before the first retry
+     */
+    long getDelayMillis(int retry, FailureKind kind) {
+        int exponent = Math.min(retry + (kind == FailureKind.THROTTLED ? 1 : 0), 30);
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public static FailureKind classify(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            //The SDK aborts when its thread is interrupted, for instance to cancel a hedged part
+            if (cause instanceof AbortedException || cause instanceof InterruptedException
+                    || cause instanceof FileNotFoundException) {
+                return FailureKind.PERMANENT;
+            }
+            if (cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException)) {
+                return FailureKind.PERMANENT;
+            }
+            if (cause instanceof AmazonServiceException) {
+                return classify((AmazonServiceException) cause);
+            }
+            if (cause instanceof IOException) {
+                return FailureKind.TRANSIENT;
+            }
+            if (cause instanceof AmazonClientException && cause.getCause() == null) {
+                return ((AmazonClientException) cause).isRetryable() ? FailureKind.TRANSIENT : FailureKind.PERMANENT;
+            }
+        }
+        return FailureKind.PERMANENT;
+    }
+
+    private static FailureKind classify(AmazonServiceException exception) {
+        int status = exception.getStatusCode();
+        String errorCode = exception.getErrorCode();
+        if (status == 503 || "SlowDown".equals(errorCode) || "Throttling".equals(errorCode)) {
+            return FailureKind.THROTTLED;
+        }
+        if (status >= 500 || status == 408 || "RequestTimeout".equals(errorCode)) {
+            return FailureKind.TRANSIENT;
+        }
+        return FailureKind.PERMANENT;
+    }
+}
@@ -7,7 +7,10 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
@@ -86,6 +89,21 @@ public class ByteHelperTest {
         MatcherAssert.assertThat(readBytes, equalTo(compareBytes));
     }
 
+    @Test
+    public void getNextPartSizeShouldNotReadIncompletePartUnlessLastBytesRequested() throws IOException {
+        byte[] bytes = createRandomBytes(100);
+        Assertions.assertEquals(0, ByteHelper.getNextPartSize(new ByteArrayInputStream(bytes), false));
+        Assertions.assertEquals(100, ByteHelper.getNextPartSize(new ByteArrayInputStream(bytes), true));
+    }
+
+    @Test
+    public void readFullyShouldThrowEOFExceptionIfStreamEndsEarly() {
+        Assertions.assertThrows(EOFException.class, () -> {
+            ByteArrayInputStream stream = new ByteArrayInputStream(createRandomBytes(10));
+            ByteHelper.readFully(stream, new byte[20], 20);
+        });
+    }
+
     @Test
     public void skipOffsetInInputStreamSkipsBytes() throws IOException {
         byte[] bytes = createRandomBytes(100);
@@ -129,4 +147,17 @@ public class ByteHelperTest {
         byte[] readBytes = ByteHelper.readPart(3, largeFile);
         Assertions.assertEquals(readBytes.length, 0);
     }
+
+    @Test
+    public void readFullyShouldDigestBytesWhileReading() throws IOException {
+        File largeFile = Paths.get("src/test/resources/helpers/bytehelpertest/largefile.bin").toFile();
+        int length = 200 * 1024 + 17;
+        byte[] buffer = new byte[length];
+        try (FileChannel channel = FileChannel.open(largeFile.toPath(), StandardOpenOption.READ)) {
+            MessageDigest digest = ChecksumHelper.getDigest("MD5");
+            ByteHelper.readFully(channel, buffer, length, 1000, digest);
+
+            Assertions.assertEquals(ChecksumHelper.encode(digest.digest()), ChecksumHelper.digest(buffer, "MD5"));
+        }
+    }
 }
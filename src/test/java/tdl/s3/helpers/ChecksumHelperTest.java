@@ -4,6 +4,8 @@ import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.security.MessageDigest;
+
 import static net.trajano.commons.testing.UtilityClassTestUtil.assertUtilityClassWellDefined;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
@@ -30,4 +32,14 @@ public class ChecksumHelperTest {
         byte[] bytes = "Hello World!".getBytes();
         Assertions.assertEquals(ChecksumHelper.digest(bytes, "MD5"), "7Qdih1MuhjZehB6Sv8UNjA==");
     }
+
+    @Test
+    public void getDigestShouldReuseResetInstancePerThread() {
+        MessageDigest digest = ChecksumHelper.getDigest("MD5");
+        digest.update("garbage".getBytes());
+        Assertions.assertSame(digest, ChecksumHelper.getDigest("MD5"));
+
+        byte[] bytes = "Hello World!".getBytes();
+        Assertions.assertEquals(ChecksumHelper.digest(bytes, "MD5"), "7Qdih1MuhjZehB6Sv8UNjA==");
+    }
 }
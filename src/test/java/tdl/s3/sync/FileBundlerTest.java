@@ -0,0 +1,120 @@
+package tdl.s3.sync;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class FileBundlerTest {
+
+    @Test
+    public void packShouldWriteContentAtIndexedOffsets(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "second".getBytes(StandardCharsets.UTF_8));
+        FileBundler bundler = FileBundler.load(Bundling.getBuilder(folder.resolve("state")).create(), folder);
+
+        List<FileBundler.Bundle> bundles = bundler.pack(folder, Arrays.asList("a.txt", "b.txt"));
+
+        Assertions.assertEquals(1, bundles.size());
+        byte[] data = Files.readAllBytes(bundles.get(0).getDataFile().toPath());
+        FileBundler.Entry entry = bundles.get(0).getEntries().get("b.txt");
+        Assertions.assertEquals("second", new String(data, (int) entry.getOffset(), (int) entry.getLength(), StandardCharsets.UTF_8));
+        Assertions.assertTrue(bundles.get(0).getDataKey().startsWith(Bundling.DEFAULT_REMOTE_PREFIX));
+    }
+
+    @Test
+    public void packShouldStartNewBundleWhenFull(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), new byte[30]);
+        Files.write(folder.resolve("b.txt"), new byte[30]);
+        FileBundler bundler = FileBundler.load(Bundling.getBuilder(folder.resolve("state"))
+                .setMaxFileSize(40)
+                .setMaxBundleSize(60)
+                .create(), folder);
+
+        List<FileBundler.Bundle> bundles = bundler.pack(folder, Arrays.asList("a.txt", "b.txt"));
+
+        Assertions.assertEquals(2, bundles.size());
+    }
+
+    @Test
+    public void committedFilesShouldBeBundledAfterReloadAndPendingOnesUploadedAgain(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "second".getBytes(StandardCharsets.UTF_8));
+        Bundling bundling = Bundling.getBuilder(folder.resolve("state")).create();
+        FileBundler bundler = FileBundler.load(bundling, folder);
+        FileBundler.Bundle committed = bundler.pack(folder, Collections.singletonList("a.txt")).get(0);
+        FileBundler.Bundle pending = bundler.pack(folder, Collections.singletonList("b.txt")).get(0);
+        bundler.commit(committed);
+
+        FileBundler reloaded = FileBundler.load(bundling, folder);
+
+        Assertions.assertTrue(reloaded.isBundled("a.txt", folder.resolve("a.txt").toFile()));
+        Assertions.assertFalse(reloaded.isBundled("b.txt", folder.resolve("b.txt").toFile()));
+        Assertions.assertFalse(committed.getDataFile().exists());
+        List<FileBundler.Bundle> pendingBundles = reloaded.takePendingBundles();
+        Assertions.assertEquals(1, pendingBundles.size());
+        Assertions.assertEquals(pending.getDataKey(), pendingBundles.get(0).getDataKey());
+        Assertions.assertEquals(Collections.singleton("b.txt"), pendingBundles.get(0).getEntries().keySet());
+        Assertions.assertTrue(pendingBundles.get(0).getDataFile().exists());
+    }
+
+    @Test
+    public void changedFileShouldBeBundledAgain(@TempDir Path folder) throws Exception {
+        Path file = folder.resolve("a.txt");
+        Files.write(file, "first".getBytes(StandardCharsets.UTF_8));
+        FileBundler bundler = FileBundler.load(Bundling.getBuilder(folder.resolve("state")).create(), folder);
+        bundler.commit(bundler.pack(folder, Collections.singletonList("a.txt")).get(0));
+
+        Files.write(file, "changed".getBytes(StandardCharsets.UTF_8));
+
+        Assertions.assertFalse(bundler.isBundled("a.txt", file.toFile()));
+    }
+
+    @Test
+    public void lockedOrLargeFilesShouldNotBeBundled(@TempDir Path folder) throws Exception {
+        File locked = Files.write(folder.resolve("a.txt"), new byte[10]).toFile();
+        Files.createFile(folder.resolve("a.txt.lock"));
+        File large = Files.write(folder.resolve("b.txt"), new byte[100]).toFile();
+        File small = Files.write(folder.resolve("c.txt"), new byte[10]).toFile();
+        FileBundler bundler = FileBundler.load(Bundling.getBuilder(folder.resolve("state"))
+                .setMaxFileSize(50)
+                .create(), folder);
+
+        Assertions.assertFalse(bundler.accepts(locked));
+        Assertions.assertFalse(bundler.accepts(large));
+        Assertions.assertTrue(bundler.accepts(small));
+    }
+
+    @Test
+    public void loadShouldCompactIndexesWithoutDeletedFiles(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("b.txt"), "second".getBytes(StandardCharsets.UTF_8));
+        Bundling bundling = Bundling.getBuilder(folder.resolve("state")).create();
+        FileBundler bundler = FileBundler.load(bundling, folder);
+        bundler.commit(bundler.pack(folder, Collections.singletonList("a.txt")).get(0));
+        bundler.commit(bundler.pack(folder, Collections.singletonList("b.txt")).get(0));
+        Files.delete(folder.resolve("b.txt"));
+
+        FileBundler reloaded = FileBundler.load(bundling, folder);
+
+        List<Path> indexes;
+        try (Stream<Path> files = Files.list(bundling.getStateDirectory())) {
+            indexes = files.collect(Collectors.toList());
+        }
+        Assertions.assertEquals(1, indexes.size());
+        String index = new String(Files.readAllBytes(indexes.get(0)), StandardCharsets.UTF_8);
+        Assertions.assertTrue(index.contains("a.txt"));
+        Assertions.assertFalse(index.contains("b.txt"));
+        Assertions.assertTrue(reloaded.isBundled("a.txt", folder.resolve("a.txt").toFile()));
+        Assertions.assertTrue(FileBundler.load(bundling, folder).isBundled("a.txt", folder.resolve("a.txt").toFile()));
+    }
+}
@@ -122,4 +122,24 @@ public class FiltersTest {
         Assertions.assertFalse(filters2.accept(invalidPath1));
         Assertions.assertFalse(filters2.accept(invalidPath2));
     }
+
+    @Test
+    public void glob() {
+        Filters filters = Filters.getBuilder()
+                .include(Filters.glob("*.{mp4,txt}"))
+                .create();
+        Assertions.assertTrue(filters.accept(Paths.get("src/test/resources/test_filter/file1.txt")));
+        Assertions.assertTrue(filters.accept(Paths.get("src/test/resources/test_filter/file1.mp4")));
+        Assertions.assertFalse(filters.accept(Paths.get("src/test/resources/test_filter/file1.bin")));
+    }
+
+    @Test
+    public void excludeDirectory() {
+        Filters filters = Filters.getBuilder()
+                .include(Filters.endsWith("txt"))
+                .excludeDirectory(Filters.glob("{tmp,cache}"))
+                .create();
+        Assertions.assertFalse(filters.acceptDirectory(Paths.get("src/test/resources/tmp")));
+        Assertions.assertTrue(filters.acceptDirectory(Paths.get("src/test/resources/test_filter")));
+    }
 }
@@ -1,12 +1,21 @@
 package tdl.s3.sync;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 import tdl.s3.upload.FileUploadingService;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import static org.mockito.Mockito.*;
 
@@ -35,4 +44,139 @@ public class FolderSynchronizerTest {
         FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
         synchronizer.synchronize();
     }
+
+    @Test
+    public void synchronizeShouldSubmitEveryUploadableFile() throws DestinationOperationException {
+        Source source = mock(Source.class);
+        Path path = mock(Path.class);
+        when(path.toFile()).thenReturn(new File("folder"));
+        when(source.getPath()).thenReturn(path);
+
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsync(any(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+
+        Destination destination = mock(Destination.class);
+        when(destination.filterUploadableFiles(anyList()))
+                .thenReturn(Arrays.asList("a.txt", "b.txt", "c.txt"));
+        when(fileUploadingService.getDestination()).thenReturn(destination);
+
+        FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
+        synchronizer.synchronize();
+
+        verify(fileUploadingService).uploadAsync(any(), eq("a.txt"));
+        verify(fileUploadingService).uploadAsync(any(), eq("b.txt"));
+        verify(fileUploadingService).uploadAsync(any(), eq("c.txt"));
+    }
+
+    @Test
+    public void synchronizeShouldNotAskDestinationForCompletedFiles(@TempDir Path folder) throws DestinationOperationException {
+        Source source = mock(Source.class);
+        when(source.getPath()).thenReturn(folder);
+        when(source.getFilesToUpload()).thenReturn(Arrays.asList("a.txt", "b.txt"));
+
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        Destination destination = mock(Destination.class);
+        when(fileUploadingService.getDestination()).thenReturn(destination);
+
+        SyncManifest manifest = SyncManifest.load(folder.resolve("manifest"));
+        manifest.markCompleted("a.txt", 0, 0);
+        manifest.markCompleted("b.txt", 0, 0);
+        manifest.reconciled();
+
+        FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
+        synchronizer.setManifest(manifest);
+        synchronizer.synchronize();
+
+        verify(destination, never()).filterUploadableFiles(anyList());
+        verify(fileUploadingService, never()).uploadAsync(any(), anyString());
+    }
+
+    @Test
+    public void failedUploadShouldNotPreventSavingTheOthers(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), new byte[10]);
+        Files.write(folder.resolve("b.txt"), new byte[10]);
+        Source source = mock(Source.class);
+        when(source.getPath()).thenReturn(folder);
+        when(source.getFilesToUpload()).thenReturn(Arrays.asList("a.txt", "b.txt"));
+
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Shut down"));
+        when(fileUploadingService.uploadAsync(any(), eq("a.txt"))).thenReturn(failed);
+        when(fileUploadingService.uploadAsync(any(), eq("b.txt"))).thenReturn(CompletableFuture.completedFuture(true));
+        Destination destination = mock(Destination.class);
+        when(destination.filterUploadableFiles(anyList())).thenReturn(Arrays.asList("a.txt", "b.txt"));
+        when(fileUploadingService.getDestination()).thenReturn(destination);
+
+        FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
+        synchronizer.setManifest(SyncManifest.load(folder.resolve("manifest")));
+        synchronizer.synchronize();
+
+        SyncManifest saved = SyncManifest.load(folder.resolve("manifest"));
+        Assertions.assertFalse(saved.isCompleted("a.txt", folder.resolve("a.txt").toFile()));
+        Assertions.assertTrue(saved.isCompleted("b.txt", folder.resolve("b.txt").toFile()));
+    }
+
+    @Test
+    public void synchronizeShouldBundleSmallFiles(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), new byte[10]);
+        Files.write(folder.resolve("b.txt"), new byte[10]);
+        Source source = mock(Source.class);
+        when(source.getPath()).thenReturn(folder);
+        when(source.getFilesToUpload()).thenReturn(Arrays.asList("a.txt", "b.txt"));
+
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsync(any(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        Destination destination = mock(Destination.class);
+        when(destination.filterUploadableFiles(anyList())).thenReturn(Arrays.asList("a.txt", "b.txt"));
+        when(fileUploadingService.getDestination()).thenReturn(destination);
+
+        FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
+        synchronizer.setBundler(FileBundler.load(Bundling.getBuilder(folder.resolve("bundles")).create(), folder));
+        synchronizer.synchronize();
+
+        verify(fileUploadingService).uploadAsync(any(), endsWith(".bundle"));
+        verify(fileUploadingService).uploadAsync(any(), endsWith(".index"));
+        verify(fileUploadingService, never()).uploadAsync(any(), eq("a.txt"));
+
+        synchronizer.synchronize();
+
+        verify(destination, times(1)).filterUploadableFiles(anyList());
+        verify(fileUploadingService, times(2)).uploadAsync(any(), anyString());
+    }
+
+    @Test
+    public void bundleWithoutIndexShouldBeUploadedAgainUnderTheSameName(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("a.txt"), new byte[10]);
+        Source source = mock(Source.class);
+        when(source.getPath()).thenReturn(folder);
+        when(source.getFilesToUpload()).thenReturn(Collections.singletonList("a.txt"));
+
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsync(any(), endsWith(".bundle")))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        when(fileUploadingService.uploadAsync(any(), endsWith(".index")))
+                .thenReturn(CompletableFuture.completedFuture(false))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        Destination destination = mock(Destination.class);
+        when(destination.filterUploadableFiles(anyList())).thenReturn(Collections.singletonList("a.txt"));
+        when(fileUploadingService.getDestination()).thenReturn(destination);
+        FileBundler bundler = FileBundler.load(Bundling.getBuilder(folder.resolve("bundles")).create(), folder);
+
+        FolderSynchronizer synchronizer = new FolderSynchronizer(source, fileUploadingService);
+        synchronizer.setBundler(bundler);
+        synchronizer.synchronize();
+        synchronizer.synchronize();
+
+        ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+        verify(fileUploadingService, times(4)).uploadAsync(any(), keys.capture());
+        List<String> bundleKeys = keys.getAllValues().stream()
+                .filter(key -> key.endsWith(".bundle"))
+                .collect(Collectors.toList());
+        Assertions.assertEquals(2, bundleKeys.size());
+        Assertions.assertEquals(bundleKeys.get(0), bundleKeys.get(1));
+        Assertions.assertTrue(bundler.isBundled("a.txt", folder.resolve("a.txt").toFile()));
+    }
 }
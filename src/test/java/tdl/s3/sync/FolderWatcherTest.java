@@ -0,0 +1,161 @@
+package tdl.s3.sync;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tdl.s3.upload.FileUploadingService;
+import tdl.s3.upload.PartSizePolicy;
+import tdl.s3.upload.UploadingException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.mockito.Mockito.*;
+
+public class FolderWatcherTest {
+
+    @Test
+    public void finishedFileShouldBeUploadedOnceWhenWritten(@TempDir Path folder) throws Exception {
+        Files.createDirectory(folder.resolve("subdir"));
+        Source source = Source.getBuilder(folder)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .setRecursive(true)
+                .create();
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsyncOrFail(any(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        SyncManifest manifest = SyncManifest.inMemory();
+
+        FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest);
+        Thread thread = new Thread(watcher::watch);
+        thread.start();
+        try {
+            Files.write(folder.resolve("subdir").resolve("file.txt"), "content".getBytes());
+            Files.write(folder.resolve("ignored.bin"), "content".getBytes());
+
+            verify(fileUploadingService, timeout(20000)).uploadAsyncOrFail(any(), eq("subdir/file.txt"));
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+        verify(fileUploadingService, times(1)).uploadAsyncOrFail(any(), anyString());
+    }
+
+    @Test
+    public void deletingLockFileShouldFinishUpload(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("recording.txt"), "content".getBytes());
+        Path lockFile = Files.createFile(folder.resolve("recording.txt.lock"));
+        Source source = Source.getBuilder(folder)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsyncOrFail(any(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        SyncManifest manifest = SyncManifest.inMemory();
+
+        FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest);
+        Thread thread = new Thread(watcher::watch);
+        thread.start();
+        try {
+            Files.delete(lockFile);
+
+            verify(fileUploadingService, timeout(20000)).uploadAsyncOrFail(any(), eq("recording.txt"));
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+        verify(fileUploadingService, times(1)).uploadAsyncOrFail(any(), anyString());
+    }
+
+    @Test
+    public void failedUploadOfFinishedFileShouldBeRetried(@TempDir Path folder) throws Exception {
+        Source source = Source.getBuilder(folder)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsyncOrFail(any(), anyString()))
+                .thenReturn(failedUpload(new IOException("Connection reset")))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        SyncManifest manifest = SyncManifest.inMemory();
+
+        FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest);
+        Thread thread = new Thread(watcher::watch);
+        thread.start();
+        try {
+            Files.write(folder.resolve("file.txt"), "content".getBytes());
+
+            verify(fileUploadingService, timeout(20000).times(2)).uploadAsyncOrFail(any(), eq("file.txt"));
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+        Assertions.assertTrue(manifest.isCompleted("file.txt", folder.resolve("file.txt").toFile()));
+    }
+
+    @Test
+    public void growingFileCreatedAgainShouldBeUploadedFromScratch(@TempDir Path folder) throws Exception {
+        Files.createFile(folder.resolve("recording.txt.lock"));
+        Source source = Source.getBuilder(folder)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsyncOrFail(any(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        SyncManifest manifest = SyncManifest.inMemory();
+        byte[] part = new byte[PartSizePolicy.MINIMUM_PART_SIZE];
+
+        FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest);
+        Thread thread = new Thread(watcher::watch);
+        thread.start();
+        try {
+            Files.write(folder.resolve("recording.txt"), part);
+            verify(fileUploadingService, timeout(20000)).uploadAsyncOrFail(any(), eq("recording.txt"));
+
+            Files.delete(folder.resolve("recording.txt"));
+            Files.write(folder.resolve("recording.txt"), part);
+
+            verify(fileUploadingService, timeout(20000).times(2)).uploadAsyncOrFail(any(), eq("recording.txt"));
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void finishingUploadShouldBeRetriedUntilPermanentFailure(@TempDir Path folder) throws Exception {
+        Files.write(folder.resolve("recording.txt"), "content".getBytes());
+        Path lockFile = Files.createFile(folder.resolve("recording.txt.lock"));
+        Source source = Source.getBuilder(folder)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+        FileUploadingService fileUploadingService = mock(FileUploadingService.class);
+        when(fileUploadingService.uploadAsyncOrFail(any(), anyString()))
+                .thenReturn(failedUpload(new IOException("Connection reset")))
+                .thenReturn(failedUpload(new FileNotFoundException("recording.txt")));
+        SyncManifest manifest = SyncManifest.inMemory();
+
+        FolderWatcher watcher = new FolderWatcher(source, fileUploadingService, manifest);
+        Thread thread = new Thread(watcher::watch);
+        thread.start();
+        try {
+            Files.delete(lockFile);
+
+            verify(fileUploadingService, timeout(20000).times(2)).uploadAsyncOrFail(any(), eq("recording.txt"));
+            verify(fileUploadingService, after(3000).times(2)).uploadAsyncOrFail(any(), anyString());
+        } finally {
+            watcher.close();
+            thread.join();
+        }
+        Assertions.assertFalse(manifest.isCompleted("recording.txt", folder.resolve("recording.txt").toFile()));
+    }
+
+    private static CompletableFuture<Void> failedUpload(Exception cause) {
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        upload.completeExceptionally(new CompletionException(new UploadingException("Can't upload file", cause)));
+        return upload;
+    }
+}
@@ -0,0 +1,122 @@
+package tdl.s3.sync;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ScanCacheTest {
+
+    @TempDir
+    Path folder;
+
+    private Source source;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Files.createDirectories(folder.resolve("source").resolve("subdir"));
+        Files.write(folder.resolve("source").resolve("a.txt"), "a".getBytes());
+        Files.write(folder.resolve("source").resolve("subdir").resolve("b.txt"), "b".getBytes());
+        Files.write(folder.resolve("source").resolve("subdir").resolve("ignored.bin"), "c".getBytes());
+        source = Source.getBuilder(folder.resolve("source"))
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .setRecursive(true)
+                .create();
+    }
+
+    @Test
+    public void unchangedFilesShouldOnlyBeListedOnce() {
+        ScanCache cache = ScanCache.inMemory();
+        List<String> first = source.getFilesToUpload(cache, true);
+        Collections.sort(first);
+        Assertions.assertEquals(Arrays.asList("a.txt", "subdir/b.txt"), first);
+        Assertions.assertEquals(Collections.emptyList(), source.getFilesToUpload(cache, true));
+    }
+
+    @Test
+    public void fullScanShouldListEveryFile() {
+        ScanCache cache = ScanCache.inMemory();
+        source.getFilesToUpload(cache, true);
+        Assertions.assertEquals(2, source.getFilesToUpload(cache, false).size());
+    }
+
+    @Test
+    public void newChangedAndUnlockedFilesShouldBeListed() throws IOException {
+        Path lockFile = Files.createFile(folder.resolve("source").resolve("a.txt.lock"));
+        ScanCache cache = ScanCache.inMemory();
+        source.getFilesToUpload(cache, true);
+
+        Files.write(folder.resolve("source").resolve("a.txt"), "more".getBytes(), StandardOpenOption.APPEND);
+        Files.write(folder.resolve("source").resolve("subdir").resolve("new.txt"), "new".getBytes());
+        List<String> changed = source.getFilesToUpload(cache, true);
+        Collections.sort(changed);
+        Assertions.assertEquals(Arrays.asList("a.txt", "subdir/new.txt"), changed);
+
+        Files.delete(lockFile);
+        Assertions.assertEquals(Collections.singletonList("a.txt"), source.getFilesToUpload(cache, true));
+    }
+
+    @Test
+    public void forgottenFileShouldBeListedAgain() {
+        ScanCache cache = ScanCache.inMemory();
+        source.getFilesToUpload(cache, true);
+        cache.forget("subdir/b.txt");
+        Assertions.assertEquals(Collections.singletonList("subdir/b.txt"), source.getFilesToUpload(cache, true));
+    }
+
+    @Test
+    public void savedCacheShouldBeLoadedBack() throws IOException {
+        Path cachePath = folder.resolve("scan-cache");
+        ScanCache cache = ScanCache.load(cachePath, source, "txt");
+        source.getFilesToUpload(cache, true);
+        cache.save();
+
+        ScanCache loaded = ScanCache.load(cachePath, source, "txt");
+        Assertions.assertEquals(Collections.emptyList(), source.getFilesToUpload(loaded, true));
+    }
+
+    @Test
+    public void cacheOfOtherFiltersShouldBeDiscarded() throws IOException {
+        Path cachePath = folder.resolve("scan-cache");
+        ScanCache cache = ScanCache.load(cachePath, source, "txt");
+        source.getFilesToUpload(cache, true);
+        cache.save();
+
+        ScanCache loaded = ScanCache.load(cachePath, source, "bin");
+        Assertions.assertEquals(2, source.getFilesToUpload(loaded, true).size());
+    }
+
+    @Test
+    public void cacheOfOtherSourceShouldBeDiscarded() throws IOException {
+        Path cachePath = folder.resolve("scan-cache");
+        ScanCache cache = ScanCache.load(cachePath, source, "txt");
+        source.getFilesToUpload(cache, true);
+        cache.save();
+        Source notRecursive = Source.getBuilder(folder.resolve("source"))
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+
+        ScanCache loaded = ScanCache.load(cachePath, notRecursive, "txt");
+        Assertions.assertEquals(Collections.singletonList("a.txt"), notRecursive.getFilesToUpload(loaded, true));
+    }
+
+    @Test
+    public void pathsWithLineBreaksShouldBeLoadedBack() throws IOException {
+        Files.write(folder.resolve("source").resolve("new\nline.txt"), "t".getBytes());
+        Path cachePath = folder.resolve("scan-cache");
+        ScanCache cache = ScanCache.load(cachePath, source, "txt");
+        Assertions.assertEquals(3, source.getFilesToUpload(cache, true).size());
+        cache.save();
+
+        ScanCache loaded = ScanCache.load(cachePath, source, "txt");
+        Assertions.assertEquals(Collections.emptyList(), source.getFilesToUpload(loaded, true));
+    }
+}
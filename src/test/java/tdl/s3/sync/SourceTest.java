@@ -114,4 +114,18 @@ public class SourceTest {
         List<String> pathList = source.getFilesToUpload();
         Assertions.assertTrue(pathList.isEmpty());
     }
+
+    @Test
+    public void getFilesToUploadShouldNotDescendIntoExcludedDirectories() {
+        Source source = Source.getBuilder(notEmptyDirPath)
+                .setRecursive(true)
+                .setFilters(Filters.getBuilder()
+                        .include(Filters.endsWith("txt"))
+                        .excludeDirectory(Filters.name("subdir"))
+                        .create())
+                .create();
+        List<String> pathList = source.getFilesToUpload();
+        Collections.sort(pathList);
+        Assertions.assertEquals(Arrays.asList("test_file_1.txt", "test_file_2.txt"), pathList);
+    }
 }
@@ -0,0 +1,46 @@
+package tdl.s3.sync;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tdl.s3.sync.destination.Destination;
+import tdl.s3.sync.destination.DestinationOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.mockito.Mockito.*;
+
+public class SyncHostTest {
+
+    @Test
+    public void failingJobShouldNotStopTheOthers(@TempDir Path folder) throws IOException, DestinationOperationException {
+        Source brokenSource = createSource(folder.resolve("broken"));
+        Source workingSource = createSource(folder.resolve("working"));
+        Destination brokenDestination = mock(Destination.class);
+        when(brokenDestination.filterUploadableFiles(anyList())).thenThrow(new IllegalStateException("Broken"));
+        Destination workingDestination = mock(Destination.class);
+        when(workingDestination.filterUploadableFiles(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        SyncHost host = new SyncHost(2);
+        host.addJob("broken", brokenSource, brokenDestination, 1);
+        host.addJob("working", workingSource, workingDestination, 1);
+        try {
+            host.run();
+        } finally {
+            host.shutdown();
+        }
+
+        verify(brokenDestination, never()).putObject(anyString(), any(InputStream.class), anyLong(), anyString());
+        verify(workingDestination).putObject(eq("a.txt"), any(InputStream.class), eq(3L), anyString());
+    }
+
+    private static Source createSource(Path path) throws IOException {
+        Files.createDirectories(path);
+        Files.write(path.resolve("a.txt"), "abc".getBytes());
+        return Source.getBuilder(path)
+                .setFilters(Filters.getBuilder().include(Filters.endsWith("txt")).create())
+                .create();
+    }
+}
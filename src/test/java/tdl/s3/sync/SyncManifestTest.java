@@ -0,0 +1,63 @@
+package tdl.s3.sync;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+public class SyncManifestTest {
+
+    @Test
+    public void savedManifestShouldBeLoadedBack(@TempDir Path folder) throws IOException {
+        Path manifestPath = folder.resolve("manifest");
+        SyncManifest manifest = SyncManifest.load(manifestPath);
+        manifest.markCompleted("dir/done.mp4", 100, 1000);
+        manifest.markIncomplete("recording.mp4", 50, 2000);
+        manifest.reconciled();
+        manifest.save();
+
+        SyncManifest loaded = SyncManifest.load(manifestPath);
+        Assertions.assertTrue(loaded.get("dir/done.mp4").get().isCompleted());
+        Assertions.assertEquals(100, loaded.get("dir/done.mp4").get().getSize());
+        Assertions.assertFalse(loaded.get("recording.mp4").get().isCompleted());
+        Assertions.assertEquals(2000, loaded.get("recording.mp4").get().getLastModified());
+        Assertions.assertFalse(loaded.isReconcileDue());
+    }
+
+    @Test
+    public void unreadableManifestShouldStartEmpty(@TempDir Path folder) throws IOException {
+        Path manifestPath = Files.write(folder.resolve("manifest"), Collections.singletonList("garbage"));
+        SyncManifest manifest = SyncManifest.load(manifestPath);
+        Assertions.assertFalse(manifest.get("garbage").isPresent());
+        Assertions.assertTrue(manifest.isReconcileDue());
+    }
+
+    @Test
+    public void rewrittenFileShouldNotBeCompleted(@TempDir Path folder) throws IOException {
+        File file = Files.write(folder.resolve("done.mp4"), new byte[100]).toFile();
+        SyncManifest manifest = SyncManifest.inMemory();
+        manifest.markCompleted("done.mp4", file.length(), file.lastModified());
+        Assertions.assertTrue(manifest.isCompleted("done.mp4", file));
+
+        Files.write(file.toPath(), new byte[200]);
+        Assertions.assertFalse(manifest.isCompleted("done.mp4", file));
+    }
+
+    @Test
+    public void pathsWithLineBreaksAndTabsShouldBeLoadedBack(@TempDir Path folder) throws IOException {
+        Path manifestPath = folder.resolve("manifest");
+        SyncManifest manifest = SyncManifest.load(manifestPath);
+        manifest.markCompleted("dir\\new\nline.mp4", 100, 1000);
+        manifest.markCompleted("tab\tbed.mp4", 50, 2000);
+        manifest.save();
+
+        SyncManifest loaded = SyncManifest.load(manifestPath);
+        Assertions.assertEquals(100, loaded.get("dir\\new\nline.mp4").get().getSize());
+        Assertions.assertEquals(2000, loaded.get("tab\tbed.mp4").get().getLastModified());
+    }
+}
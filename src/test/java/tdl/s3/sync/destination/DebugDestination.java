@@ -6,6 +6,7 @@ import com.amazonaws.services.s3.model.UploadPartRequest;
 import org.slf4j.Logger;
 import tdl.s3.upload.MultipartUploadResult;
 
+import java.io.InputStream;
 import java.util.List;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -49,6 +50,14 @@ public class DebugDestination implements Destination {
         return result;
     }
 
+    @Override
+    public PartListing getUploadedParts(String remotePath, String uploadId) throws DestinationOperationException {
+        log.debug("getUploadedParts: START");
+        PartListing result = destination.getUploadedParts(remotePath, uploadId);
+        log.debug("getUploadedParts: FINISH");
+        return result;
+    }
+
     @Override
     public MultipartUploadResult uploadMultiPart(UploadPartRequest request) throws DestinationOperationException {
         log.debug("uploadMultiPart: START");
@@ -72,6 +81,13 @@ public class DebugDestination implements Destination {
         return r;
     }
 
+    @Override
+    public void putObject(String remotePath, InputStream content, long contentLength, String md5Digest) throws DestinationOperationException {
+        log.debug("putObject: START");
+        destination.putObject(remotePath, content, contentLength, md5Digest);
+        log.debug("putObject: FINISH");
+    }
+
     @Override
     public List<String> filterUploadableFiles(List<String> relativePaths) throws DestinationOperationException {
         log.debug("canUploadFiles: START");
@@ -1,12 +1,15 @@
 package tdl.s3.sync.destination;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -113,13 +116,13 @@ public class S3BucketDestinationTest {
     @Test
     public void filterUploadableFilesShouldAcceptAllIfS3DirectoryIsEmpty() throws DestinationOperationException {
 
-        ObjectListing listing = mock(ObjectListing.class);
+        ListObjectsV2Result listing = mock(ListObjectsV2Result.class);
         List<S3ObjectSummary> summaries = new ArrayList<>();
         doReturn(summaries).when(listing).getObjectSummaries();
         doReturn(false).when(listing).isTruncated();
-        doReturn(null).when(listing).getNextMarker();
+        doReturn(null).when(listing).getNextContinuationToken();
 
-        doReturn(listing).when(awsClient).listObjects((ListObjectsRequest) any());
+        doReturn(listing).when(awsClient).listObjectsV2((ListObjectsV2Request) any());
 
         List<String> paths = Arrays.asList(
                 "file1.txt",
@@ -146,7 +149,7 @@ public class S3BucketDestinationTest {
     @Test
     public void filterUploadableFilesShouldRemoveFilesExistingInS3Directory() throws DestinationOperationException {
 
-        ObjectListing listing = mock(ObjectListing.class);
+        ListObjectsV2Result listing = mock(ListObjectsV2Result.class);
 
         List<String> existingPaths = Arrays.asList(
                 PREFIX + "file1.txt",
@@ -163,9 +166,9 @@ public class S3BucketDestinationTest {
 
         doReturn(summaries).when(listing).getObjectSummaries();
         doReturn(false).when(listing).isTruncated();
-        doReturn(null).when(listing).getNextMarker();
+        doReturn(null).when(listing).getNextContinuationToken();
 
-        doReturn(listing).when(awsClient).listObjects((ListObjectsRequest) any());
+        doReturn(listing).when(awsClient).listObjectsV2((ListObjectsV2Request) any());
 
         List<String> paths = Arrays.asList(
                 "file1.txt",
@@ -189,7 +192,7 @@ public class S3BucketDestinationTest {
     @Test
     public void filterUploadableFilesShouldHandleMultipleMarkers() throws DestinationOperationException {
 
-        ObjectListing listing = mock(ObjectListing.class);
+        ListObjectsV2Result listing = mock(ListObjectsV2Result.class);
 
         List<String> existingPaths = Arrays.asList(
                 PREFIX + "file1.txt",
@@ -218,13 +221,13 @@ public class S3BucketDestinationTest {
                 .thenReturn(true)
                 .thenReturn(false);
 
-        when(listing.getNextMarker())
+        when(listing.getNextContinuationToken())
                 .thenReturn("1")
                 .thenReturn(null);
 
         doReturn(listing)
                 .when(awsClient)
-                .listObjects((ListObjectsRequest) any());
+                .listObjectsV2((ListObjectsV2Request) any());
 
         List<String> paths = Arrays.asList(
                 "file1.txt",
@@ -251,4 +254,83 @@ public class S3BucketDestinationTest {
         Collections.sort(expected);
         Assertions.assertEquals(result, expected);
     }
+
+    @Test
+    public void filterUploadableFilesShouldOnlyListRangeOfCandidates() throws DestinationOperationException {
+        ListObjectsV2Result listing = mock(ListObjectsV2Result.class);
+        doReturn(new ArrayList<>()).when(listing).getObjectSummaries();
+        doReturn(false).when(listing).isTruncated();
+        doReturn(listing).when(awsClient).listObjectsV2((ListObjectsV2Request) any());
+
+        destination.filterUploadableFiles(Arrays.asList("rec_0002.mp4", "rec_0001.mp4"));
+
+        ArgumentCaptor<ListObjectsV2Request> request = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(awsClient).listObjectsV2(request.capture());
+        Assertions.assertEquals(PREFIX + "rec_0001.mp", request.getValue().getStartAfter());
+    }
+
+    @Test
+    public void filterUploadableFilesShouldNotListWithoutCandidates() throws DestinationOperationException {
+        Assertions.assertTrue(destination.filterUploadableFiles(new ArrayList<>()).isEmpty());
+        verify(awsClient, never()).listObjectsV2((ListObjectsV2Request) any());
+    }
+
+    @Test
+    public void putObjectShouldSendContentMD5() throws DestinationOperationException {
+        destination.putObject("file.txt", new ByteArrayInputStream(new byte[3]), 3, "md5");
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(awsClient).putObject(request.capture());
+        Assertions.assertEquals(PREFIX + "file.txt", request.getValue().getKey());
+        Assertions.assertEquals(3, request.getValue().getMetadata().getContentLength());
+        Assertions.assertEquals("md5", request.getValue().getMetadata().getContentMD5());
+    }
+
+    @Test
+    public void putObjectShouldWrapClientFailures() {
+        doThrow(new SdkClientException("Unable to execute HTTP request: Connection reset"))
+                .when(awsClient).putObject(any(PutObjectRequest.class));
+        Assertions.assertThrows(DestinationOperationException.class,
+                () -> destination.putObject("file.txt", new ByteArrayInputStream(new byte[0]), 0, "md5"));
+    }
+
+    @Test
+    public void putObjectThrowsDestinationOperationException() {
+        doThrow(exception).when(awsClient).putObject(any(PutObjectRequest.class));
+        Assertions.assertThrows(DestinationOperationException.class,
+                () -> destination.putObject("file.txt", new ByteArrayInputStream(new byte[0]), 0, "md5"));
+    }
+
+    @Test
+    public void getUploadedPartsShouldListEveryPage() throws DestinationOperationException {
+        PartListing firstPage = createPartListing(1, 2);
+        firstPage.setTruncated(true);
+        firstPage.setNextPartNumberMarker(2);
+        PartListing lastPage = createPartListing(3, 4);
+        List<Integer> markers = new ArrayList<>();
+        when(awsClient.listParts(any(ListPartsRequest.class))).thenAnswer(invocation -> {
+            markers.add(((ListPartsRequest) invocation.getArgument(0)).getPartNumberMarker());
+            return markers.size() == 1 ? firstPage : lastPage;
+        });
+
+        PartListing listing = destination.getUploadedParts("file.mp4", "upload-id");
+
+        Assertions.assertEquals(Arrays.asList(null, 2), markers);
+        Assertions.assertEquals(Arrays.asList(1, 2, 3, 4), listing.getParts().stream()
+                .map(PartSummary::getPartNumber)
+                .collect(Collectors.toList()));
+        Assertions.assertFalse(listing.isTruncated());
+    }
+
+    private static PartListing createPartListing(int... partNumbers) {
+        PartListing listing = new PartListing();
+        List<PartSummary> parts = new ArrayList<>();
+        for (int partNumber : partNumbers) {
+            PartSummary part = new PartSummary();
+            part.setPartNumber(partNumber);
+            parts.add(part);
+        }
+        listing.setParts(parts);
+        return listing;
+    }
 }
@@ -54,4 +54,23 @@ public class UploadStatsProgressListenerTest {
         listener.uploadFileFinished(file);
         assertFalse(listener.isCurrentlyUploading());
     }
+
+    @Test
+    public void simultaneousUploadsShouldBeTrackedSeparately() {
+        File otherFile = mock(File.class);
+        when(otherFile.length()).thenReturn(Long.valueOf(2000000));
+        listener.uploadFileStarted(file, "upload", 0);
+        listener.uploadFileStarted(otherFile, "other", 0);
+        listener.uploadFileProgress("upload", 100);
+        listener.uploadFileProgress("other", 300);
+        assertEquals(2, listener.getAllCurrentStats().size());
+
+        listener.uploadFileFinished(otherFile);
+        UploadStatsProgressListener.FileUploadStat stat = listener.getCurrentStats().get();
+        assertEquals(stat.getTotalSize(), 1000000);
+        assertEquals(stat.getUploadedSize(), 100);
+
+        listener.uploadFileFinished(file);
+        assertFalse(listener.isCurrentlyUploading());
+    }
 }
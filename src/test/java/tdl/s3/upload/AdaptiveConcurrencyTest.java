@@ -0,0 +1,71 @@
+package tdl.s3.upload;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import tdl.s3.sync.destination.DestinationOperationException;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveConcurrencyTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void throttlingShouldHalveTheLimitOncePerRound() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 32, 16);
+
+        concurrency.recordFailure(new DestinationOperationException("Fail to upload multipart", slowDown()));
+        Assertions.assertEquals(8, concurrency.getLimit());
+
+        //The other parts that were in flight
+        concurrency.recordFailure(new DestinationOperationException("Fail to upload multipart", slowDown()));
+        Assertions.assertEquals(8, concurrency.getLimit());
+    }
+
+    @Test
+    public void otherFailuresShouldNotChangeTheLimit() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 32, 16);
+
+        concurrency.recordFailure(new DestinationOperationException("Fail to upload multipart", new AmazonS3Exception("Access Denied")));
+        Assertions.assertEquals(16, concurrency.getLimit());
+    }
+
+    @Test
+    public void risingLatencyShouldLowerTheLimit() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 32, 4);
+        recordRound(concurrency, TimeUnit.MILLISECONDS.toNanos(10));
+        Assertions.assertEquals(5, concurrency.getLimit());
+
+        recordRound(concurrency, TimeUnit.MILLISECONDS.toNanos(100));
+        Assertions.assertEquals(3, concurrency.getLimit());
+    }
+
+    @Test
+    public void limitShouldStayWithinBounds() {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 3, 3);
+        recordRound(concurrency, TimeUnit.MILLISECONDS.toNanos(10));
+        Assertions.assertEquals(3, concurrency.getLimit());
+
+        for (int i = 0; i < 3; i++) {
+            concurrency.recordFailure(slowDown());
+            recordRound(concurrency, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        Assertions.assertEquals(2, concurrency.getMinLimit());
+        Assertions.assertTrue(concurrency.getLimit() >= 2);
+    }
+
+    private static void recordRound(AdaptiveConcurrency concurrency, long nanosPerPart) {
+        int parts = concurrency.getLimit();
+        for (int i = 0; i < parts; i++) {
+            concurrency.recordSuccess(MB, nanosPerPart);
+        }
+    }
+
+    private static AmazonS3Exception slowDown() {
+        AmazonS3Exception exception = new AmazonS3Exception("Please reduce your request rate.");
+        exception.setStatusCode(503);
+        exception.setErrorCode("SlowDown");
+        return exception;
+    }
+}
@@ -0,0 +1,56 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptivePartSizePolicyTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private final File file = new File("recording.mp4");
+
+    @Test
+    public void shouldUseMinimumPartSizeWithoutMeasurements() {
+        AdaptivePartSizePolicy policy = new AdaptivePartSizePolicy();
+        Assertions.assertEquals(PartSizePolicy.MINIMUM_PART_SIZE, policy.choosePartSize(file, 20 * MB, true));
+    }
+
+    @Test
+    public void shouldUseLargerPartsOnFastLink() {
+        AdaptivePartSizePolicy policy = new AdaptivePartSizePolicy(64 * MB, 5, 30, 6);
+        //4 MB per second, 5 seconds per part
+        policy.recordPartUpload(4 * MB, TimeUnit.SECONDS.toNanos(1));
+        Assertions.assertEquals(20 * MB, policy.choosePartSize(file, 100 * MB, true));
+
+        //Capped by the maximum part size
+        policy.recordPartUpload(400L * MB, TimeUnit.SECONDS.toNanos(1));
+        policy.recordPartUpload(400L * MB, TimeUnit.SECONDS.toNanos(1));
+        Assertions.assertEquals(64 * MB, policy.choosePartSize(file, 100 * MB, true));
+    }
+
+    @Test
+    public void shouldKeepFileWithinPartCountLimit() {
+        AdaptivePartSizePolicy policy = new AdaptivePartSizePolicy();
+        long fileSize = 200L * 1024 * MB;
+        int partSize = policy.choosePartSize(file, fileSize, true);
+        Assertions.assertTrue((long) partSize * PartSizePolicy.MAXIMUM_PART_COUNT >= fileSize);
+        Assertions.assertEquals(0, partSize % MB);
+    }
+
+    @Test
+    public void shouldForgetFinishedAndLongUnseenFiles() {
+        AdaptivePartSizePolicy policy = new AdaptivePartSizePolicy();
+        policy.choosePartSize(file, 20 * MB, false);
+        Assertions.assertEquals(1, policy.getObservedFileCount());
+        policy.choosePartSize(file, 40 * MB, true);
+        Assertions.assertEquals(0, policy.getObservedFileCount());
+
+        for (int i = 0; i < 2000; i++) {
+            policy.choosePartSize(new File("recording" + i + ".mp4"), 20 * MB, false);
+        }
+        Assertions.assertTrue(policy.getObservedFileCount() <= 1024);
+    }
+}
@@ -0,0 +1,49 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalTime;
+import java.util.Collections;
+
+public class BandwidthLimiterTest {
+
+    private static final int ONE_MEGABYTE = 1024 * 1024;
+
+    @Test
+    public void readsShouldBeLimitedToTheRate() throws IOException {
+        BandwidthLimiter limiter = new BandwidthLimiter(ONE_MEGABYTE);
+        InputStream stream = new ThrottledInputStream(new ByteArrayInputStream(new byte[ONE_MEGABYTE / 2]),
+                Collections.singletonList(limiter));
+
+        long start = System.nanoTime();
+        byte[] buffer = new byte[8192];
+        while (stream.read(buffer) > 0) {
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Assertions.assertTrue(elapsedMillis >= 400, "Took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    public void rateChangesShouldApplyWhileRunning() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(1);
+        limiter.setBytesPerSecond(BandwidthSchedule.UNLIMITED);
+
+        long start = System.nanoTime();
+        limiter.acquire(ONE_MEGABYTE);
+        Assertions.assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+
+    @Test
+    public void scheduleShouldFollowTheTimeOfDay() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse("08:00=2M,19:00=0");
+        Assertions.assertEquals(2 * ONE_MEGABYTE, schedule.getRate(LocalTime.of(12, 0)));
+        Assertions.assertEquals(BandwidthSchedule.UNLIMITED, schedule.getRate(LocalTime.of(20, 0)));
+        Assertions.assertEquals(BandwidthSchedule.UNLIMITED, schedule.getRate(LocalTime.of(3, 0)));
+        Assertions.assertEquals(10 * ONE_MEGABYTE, BandwidthSchedule.parse("10M").getRate(LocalTime.NOON));
+    }
+}
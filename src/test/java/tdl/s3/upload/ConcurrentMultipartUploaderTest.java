@@ -1,6 +1,7 @@
 package tdl.s3.upload;
 
 import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 import com.beust.jcommander.internal.Lists;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Assertions;
@@ -8,6 +9,7 @@ import org.junit.jupiter.api.Test;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
@@ -37,6 +39,18 @@ public class ConcurrentMultipartUploaderTest {
         Assertions.assertNotNull(executorService);
     }
 
+    @Test
+    public void uploadThreadsShouldBeNamedDaemons() throws Exception {
+        Destination destination = mock(Destination.class);
+        ConcurrentMultipartUploader uploader = new ConcurrentMultipartUploader(destination);
+        Thread thread = uploader.getExecutorService()
+                .submit(Thread::currentThread)
+                .get();
+        MatcherAssert.assertThat(thread.getName(), containsString("s3-part-upload-"));
+        Assertions.assertTrue(thread.isDaemon());
+        uploader.shutdownAndAwaitTermination();
+    }
+
     @Test
     public void executionShouldHandleException() throws DestinationOperationException, InterruptedException {
         Destination destination = mock(Destination.class);
@@ -68,6 +82,30 @@ public class ConcurrentMultipartUploaderTest {
         uploader.shutdownAndAwaitTermination();
     }
 
+    @Test
+    public void retryDelayShouldNotHoldTheUploadThread() throws Exception {
+        Destination destination = mock(Destination.class);
+        UploadPartRequest failing = new UploadPartRequest().withPartNumber(1);
+        UploadPartRequest other = new UploadPartRequest().withPartNumber(2);
+        when(destination.uploadMultiPart(failing))
+                .thenThrow(new DestinationOperationException("Fail to upload multipart", new IOException("Connection reset")))
+                .thenReturn(new MultipartUploadResult(failing, new UploadPartResult()));
+        when(destination.uploadMultiPart(other))
+                .thenReturn(new MultipartUploadResult(other, new UploadPartResult()));
+        ConcurrentMultipartUploader uploader = new ConcurrentMultipartUploader(destination, 1);
+        uploader.setRetryPolicy(new UploadRetryPolicy(1, 500, 500, 1, 1));
+        PartCompletionService completionService = uploader.createCompletionService();
+
+        uploader.submitTaskForPartUploading(failing, completionService);
+        uploader.submitTaskForPartUploading(other, completionService);
+
+        //The only thread uploads the other part while the failed one waits for its retry
+        Assertions.assertEquals(2, completionService.take().get().getRequest().getPartNumber());
+        Assertions.assertEquals(1, completionService.take().get().getRequest().getPartNumber());
+        verify(destination, times(2)).uploadMultiPart(failing);
+        uploader.shutdownAndAwaitTermination();
+    }
+
     @Test
     public void executionShouldHandleInterruption() throws DestinationOperationException, InterruptedException, ExecutionException, TimeoutException {
         DestinationOperationException destinationOperationException = Assertions.assertThrows(DestinationOperationException.class, () -> {
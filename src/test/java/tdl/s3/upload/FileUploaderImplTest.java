@@ -1,14 +1,23 @@
 package tdl.s3.upload;
 
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
+import tdl.s3.sync.destination.S3BucketDestination;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.mockito.Mockito.*;
 
@@ -19,7 +28,7 @@ public class FileUploaderImplTest {
         Destination destination = mock(Destination.class);
         UploadingStrategy strategy = mock(UploadingStrategy.class);
 
-        doThrow(new DestinationOperationException("Message"))
+        doThrow(new DestinationOperationException("Message", new IOException("Connection reset")))
                 .doNothing()
                 .when(strategy)
                 .upload(any(), anyString());
@@ -37,7 +46,7 @@ public class FileUploaderImplTest {
             Destination destination = mock(Destination.class);
             UploadingStrategy strategy = mock(UploadingStrategy.class);
 
-            doThrow(new DestinationOperationException("Message"))
+            doThrow(new DestinationOperationException("Message", new IOException("Connection reset")))
                     .when(strategy)
                     .upload(any(), anyString());
 
@@ -48,4 +57,58 @@ public class FileUploaderImplTest {
             uploader.upload(file);
         });
     }
+
+    @Test
+    public void partUploadFailureShouldNotRetryTheFile() throws DestinationOperationException, IOException, URISyntaxException {
+        Destination destination = mock(Destination.class);
+        UploadingStrategy strategy = mock(UploadingStrategy.class);
+
+        doThrow(new PartUploadException("Part upload failed", new DestinationOperationException("Message")))
+                .doNothing()
+                .when(strategy)
+                .upload(any(), anyString());
+
+        FileUploader uploader = new FileUploaderImpl(destination, strategy);
+        File file = mock(File.class);
+        when(file.toURI()).thenReturn(new URI("file:///tmp/file1.txt"));
+        when(file.getName()).thenReturn("path");
+        Assertions.assertThrows(UploadingException.class, () -> uploader.upload(file));
+        verify(strategy, times(1)).upload(any(), anyString());
+    }
+
+    @Test
+    public void permanentFailureShouldNotRetryTheFile() throws DestinationOperationException, IOException, URISyntaxException {
+        Destination destination = mock(Destination.class);
+        UploadingStrategy strategy = mock(UploadingStrategy.class);
+        AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+        accessDenied.setStatusCode(403);
+        accessDenied.setErrorCode("AccessDenied");
+
+        doThrow(new DestinationOperationException("Fail to initialize uploading process", accessDenied))
+                .doNothing()
+                .when(strategy)
+                .upload(any(), anyString());
+
+        FileUploader uploader = new FileUploaderImpl(destination, strategy);
+        File file = mock(File.class);
+        when(file.toURI()).thenReturn(new URI("file:///tmp/file1.txt"));
+        when(file.getName()).thenReturn("path");
+        Assertions.assertThrows(UploadingException.class, () -> uploader.upload(file));
+        verify(strategy, times(1)).upload(any(), anyString());
+    }
+
+    @Test
+    public void putInterruptedByConnectionFailureShouldBeRetried(@TempDir Path folder) throws Exception {
+        AmazonS3 awsClient = mock(AmazonS3.class);
+        when(awsClient.putObject(any(PutObjectRequest.class)))
+                .thenThrow(new SdkClientException("Unable to execute HTTP request: Connection reset"))
+                .thenReturn(new PutObjectResult());
+        Destination destination = new S3BucketDestination(awsClient, "bucket", "prefix/");
+        File file = Files.write(folder.resolve("file.txt"), "content".getBytes()).toFile();
+
+        FileUploader uploader = new FileUploaderImpl(destination, new MultipartUploadFileUploadingStrategy(destination));
+        uploader.upload(file, "file.txt");
+
+        verify(awsClient, times(2)).putObject(any(PutObjectRequest.class));
+    }
 }
@@ -1,5 +1,6 @@
 package tdl.s3.upload;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
@@ -32,4 +33,17 @@ public class FileUploadingServiceTest {
         FileUploadingService service = new FileUploadingService(destination);
         service.upload(file);
     }
+
+    @Test
+    public void uploaderShouldBeSharedUntilShutdown() {
+        FileUploadingService service = new FileUploadingService(mock(Destination.class));
+        ConcurrentMultipartUploader uploader = service.getConcurrentUploader();
+        Assertions.assertSame(uploader, service.getConcurrentUploader());
+
+        service.shutdown();
+
+        Assertions.assertTrue(uploader.getExecutorService().isShutdown());
+        Assertions.assertNotSame(uploader, service.getConcurrentUploader());
+        service.shutdown();
+    }
 }
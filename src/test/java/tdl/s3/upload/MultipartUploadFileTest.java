@@ -8,15 +8,17 @@ import tdl.s3.sync.destination.DestinationOperationException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
@@ -49,40 +51,67 @@ public class MultipartUploadFileTest {
         multipartUploadFile.validateUploadedFileSize();
     }
 
-    @Test
-    public void streamUploadPartRequestForFailedPartsShouldHandleIOException() throws DestinationOperationException, IOException {
+    @Test(expected = PartReadingException.class)
+    public void streamUploadPartRequestForFailedPartsShouldFailOnIOException() throws DestinationOperationException, IOException {
         MultipartUploadFile multipartUploadFile = mock(MultipartUploadFile.class);
         Set<Integer> partNumbers = new HashSet<>(Arrays.asList(1, 2, 3, 4, 5));
 
         doReturn(partNumbers)
                 .when(multipartUploadFile)
                 .getFailedMiddlePartNumbers();
-        doReturn(mock(UploadPartRequest.class))
-                .when(multipartUploadFile)
-                .getUploadPartRequestForData(any(), anyBoolean(), anyInt());
         doCallRealMethod().when(multipartUploadFile)
                 .streamUploadPartRequestForFailedParts();
 
         Arrays.asList(1, 3, 5).stream().forEach(partNumber -> {
             try {
-                when(multipartUploadFile.readPart(eq(partNumber)))
-                        .thenReturn("Random".getBytes());
-            } catch (IOException ex) {
+                when(multipartUploadFile.getUploadPartRequestForPart(eq(partNumber)))
+                        .thenReturn(mock(UploadPartRequest.class));
+            } catch (IOException | DestinationOperationException ex) {
                 Logger.getLogger(MultipartUploadFileTest.class.getName()).log(Level.SEVERE, null, ex);
             }
         });
         Arrays.asList(2, 4).stream().forEach(partNumber -> {
             try {
-                when(multipartUploadFile.readPart(eq(partNumber)))
+                when(multipartUploadFile.getUploadPartRequestForPart(eq(partNumber)))
                         .thenThrow(new IOException());
-            } catch (IOException ex) {
+            } catch (IOException | DestinationOperationException ex) {
                 Logger.getLogger(MultipartUploadFileTest.class.getName()).log(Level.SEVERE, null, ex);
             }
         });
 
-        List<UploadPartRequest> requests = multipartUploadFile.streamUploadPartRequestForFailedParts()
+        multipartUploadFile.streamUploadPartRequestForFailedParts()
                 .collect(Collectors.toList());
+    }
+
+    @Test
+    public void incompletePartsShouldOnlyBeReadWhenPulled() throws Exception {
+        Path filePath = Files.createTempFile("multipart", ".bin");
+        try {
+            Files.write(filePath, new byte[3 * PartSizePolicy.MINIMUM_PART_SIZE]);
+            when(mockDestination.initUploading(mockRemotePath)).thenReturn("upload-id");
+            when(mockDestination.createUploadPartRequest(mockRemotePath)).thenAnswer(invocation -> new UploadPartRequest());
+            PartBufferPool pool = new PartBufferPool(64L * 1024 * 1024);
+            MultipartUploadFile multipartUploadFile = new MultipartUploadFile(filePath.toFile(), mockRemotePath,
+                    mockDestination, pool, new FixedPartSizePolicy(), UploadJournal.disabled());
+
+            try (Stream<UploadPartRequest> requests = multipartUploadFile.streamUploadPartRequestForIncompleteParts()) {
+                Iterator<UploadPartRequest> iterator = requests.iterator();
+                assertEquals(0, pool.getAllocatedBytes());
 
-        assertEquals(requests.size(), 3);
+                UploadPartRequest first = iterator.next();
+                assertEquals(1, first.getPartNumber());
+                assertEquals(PartSizePolicy.MINIMUM_PART_SIZE, pool.getAllocatedBytes());
+
+                first.getInputStream().close();
+                UploadPartRequest second = iterator.next();
+                assertEquals(2, second.getPartNumber());
+                //The buffer of the consumed part is reused, the third part is not read yet
+                assertEquals(PartSizePolicy.MINIMUM_PART_SIZE, pool.getAllocatedBytes());
+                second.getInputStream().close();
+            }
+            multipartUploadFile.close();
+        } finally {
+            Files.delete(filePath);
+        }
     }
 }
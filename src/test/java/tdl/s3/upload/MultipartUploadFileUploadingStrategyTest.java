@@ -1,39 +1,336 @@
 package tdl.s3.upload;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import tdl.s3.helpers.ChecksumHelper;
+import tdl.s3.sync.destination.Destination;
 import tdl.s3.sync.destination.DestinationOperationException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertNull;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 public class MultipartUploadFileUploadingStrategyTest {
 
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
     @Test
-    public void getUploadingResultShouldReturnNullOnInterruptedException() throws DestinationOperationException, InterruptedException, ExecutionException {
+    public void getUploadingResultShouldThrowOnInterruptedException() throws InterruptedException, ExecutionException {
         Future future = mock(Future.class);
         when(future.get()).thenThrow(new InterruptedException());
-        Assertions.assertNull(MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+        Assertions.assertThrows(DestinationOperationException.class,
+                () -> MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+        Assertions.assertTrue(Thread.interrupted());
     }
 
     @Test
-    public void getUploadingResultShouldReturnNullOnDestinationOperationException() throws DestinationOperationException, InterruptedException, ExecutionException {
+    public void getUploadingResultShouldThrowOnDestinationOperationException() throws InterruptedException, ExecutionException {
         Future future = mock(Future.class);
         ExecutionException ex = mock(ExecutionException.class);
-        when(ex.getCause()).thenReturn(new DestinationOperationException(""));
+        DestinationOperationException cause = new DestinationOperationException("");
+        when(ex.getCause()).thenReturn(cause);
         when(future.get()).thenThrow(ex);
-        Assertions.assertNull(MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+        PartUploadException thrown = Assertions.assertThrows(PartUploadException.class,
+                () -> MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+        Assertions.assertSame(cause, thrown.getCause());
     }
     
     @Test
-    public void getUploadingResultShouldReturnNullOnExecutionException() throws DestinationOperationException, InterruptedException, ExecutionException {
+    public void getUploadingResultShouldThrowOnExecutionException() throws InterruptedException, ExecutionException {
         Future future = mock(Future.class);
         ExecutionException ex = mock(ExecutionException.class);
         when(future.get()).thenThrow(ex);
-        Assertions.assertNull(MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+        Assertions.assertThrows(PartUploadException.class,
+                () -> MultipartUploadFileUploadingStrategy.getUploadingResult(future));
+    }
+
+    @Test
+    public void uploadShouldKeepConfiguredNumberOfPartsInFlight(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE * 2 + 1024);
+
+        AtomicInteger partsInFlight = new AtomicInteger();
+        AtomicInteger maxPartsInFlight = new AtomicInteger();
+        Destination destination = mockDestination(request -> {
+            maxPartsInFlight.accumulateAndGet(partsInFlight.incrementAndGet(), Math::max);
+            Thread.sleep(200);
+            partsInFlight.decrementAndGet();
+        });
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination, 4, 2);
+        strategy.upload(file, "file.bin");
+
+        Assertions.assertEquals(2, maxPartsInFlight.get());
+        ArgumentCaptor<List<PartETag>> eTags = ArgumentCaptor.forClass(List.class);
+        verify(destination).commitMultipartUpload(eq("file.bin"), eTags.capture(), eq("upload-id"));
+        List<Integer> partNumbers = eTags.getValue().stream()
+                .map(PartETag::getPartNumber)
+                .collect(Collectors.toList());
+        Assertions.assertEquals(Arrays.asList(1, 2, 3), partNumbers);
+    }
+
+    @Test
+    public void uploadShouldDescribePartsAsFileRegionsWhenConfigured(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE + 1024);
+
+        List<UploadPartRequest> requests = new CopyOnWriteArrayList<>();
+        Destination destination = mockDestination(requests::add);
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.setPartReadMode(PartReadMode.FILE_REGION);
+        strategy.upload(file, "file.bin");
+
+        requests.sort(Comparator.comparing(UploadPartRequest::getPartNumber));
+        Assertions.assertEquals(2, requests.size());
+        Assertions.assertEquals(file, requests.get(0).getFile());
+        Assertions.assertEquals(0L, (long) requests.get(0).getFileOffset());
+        Assertions.assertEquals(PART_SIZE, requests.get(0).getPartSize());
+        Assertions.assertEquals((long) PART_SIZE, (long) requests.get(1).getFileOffset());
+        Assertions.assertEquals(1024, requests.get(1).getPartSize());
+        Assertions.assertTrue(requests.get(1).isLastPart());
+        Assertions.assertNull(requests.get(0).getInputStream());
+        Assertions.assertNull(requests.get(0).getMd5Digest());
+    }
+
+    @Test
+    public void smallFinishedFileShouldBeSentInSingleRequest(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, 40 * 1024);
+        Destination destination = mockDestination(request -> {
+        });
+        AtomicReference<byte[]> sent = new AtomicReference<>();
+        doAnswer(invocation -> {
+            sent.set(IOUtils.toByteArray((InputStream) invocation.getArgument(1)));
+            return null;
+        }).when(destination).putObject(eq("file.bin"), any(), eq(40L * 1024), anyString());
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.upload(file, "file.bin");
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        Assertions.assertArrayEquals(content, sent.get());
+        verify(destination).putObject(eq("file.bin"), any(), eq(40L * 1024),
+                eq(ChecksumHelper.digest(content, "MD5")));
+        verify(destination, never()).getAlreadyUploadedParts(anyString());
+        verify(destination, never()).initUploading(anyString());
+    }
+
+    @Test
+    public void smallLockedFileShouldStillUseMultipartUpload(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, 40 * 1024);
+        Files.createFile(folder.resolve("file.bin.lock"));
+        Destination destination = mockDestination(request -> {
+        });
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.upload(file, "file.bin");
+
+        verify(destination).initUploading("file.bin");
+        verify(destination, never()).putObject(anyString(), any(), anyLong(), anyString());
+    }
+
+    @Test
+    public void uploadShouldResumeJournaledUploadWithoutListingUploads(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE * 2 + 1024);
+        UploadJournal journal = new UploadJournal(folder.resolve("journal"));
+        journal.uploadStarted("file.bin", "upload-id", PART_SIZE);
+        journal.partUploaded("file.bin", 1, 0, PART_SIZE, "etag1");
+        journal.release("file.bin");
+
+        List<UploadPartRequest> requests = new CopyOnWriteArrayList<>();
+        Destination destination = mockDestination(requests::add);
+        PartSummary uploadedPart = new PartSummary();
+        uploadedPart.setPartNumber(1);
+        uploadedPart.setSize(PART_SIZE);
+        uploadedPart.setETag("etag1");
+        PartListing listing = new PartListing();
+        listing.setParts(new ArrayList<>(Collections.singletonList(uploadedPart)));
+        when(destination.getUploadedParts("file.bin", "upload-id")).thenReturn(listing);
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.setJournal(journal);
+        strategy.upload(file, "file.bin");
+
+        verify(destination, never()).getAlreadyUploadedParts(anyString());
+        verify(destination, never()).initUploading(anyString());
+        Assertions.assertEquals(Arrays.asList(2, 3), requests.stream()
+                .map(UploadPartRequest::getPartNumber)
+                .sorted()
+                .collect(Collectors.toList()));
+        verify(destination).commitMultipartUpload(eq("file.bin"), anyList(), eq("upload-id"));
+        Assertions.assertFalse(journal.read("file.bin").isPresent());
+    }
+
+    @Test
+    public void followedGrowingFileShouldOnlyUploadNewParts(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE + 1024);
+        Path lockFile = Files.createFile(folder.resolve("file.bin.lock"));
+
+        List<UploadPartRequest> requests = new CopyOnWriteArrayList<>();
+        Destination destination = mockDestination(requests::add);
+        TailFollower tailFollower = new TailFollower();
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.setTailFollower(tailFollower);
+
+        strategy.upload(file, "file.bin");
+        Assertions.assertEquals(PART_SIZE, tailFollower.getPartSize("file.bin"));
+        byte[] newPart = new byte[PART_SIZE];
+        Files.write(file.toPath(), newPart, StandardOpenOption.APPEND);
+        strategy.upload(file, "file.bin");
+        Files.delete(lockFile);
+        strategy.upload(file, "file.bin");
+
+        verify(destination, times(1)).getAlreadyUploadedParts(anyString());
+        verify(destination, times(1)).initUploading(anyString());
+        Assertions.assertEquals(Arrays.asList(1, 2, 3), requests.stream()
+                .map(UploadPartRequest::getPartNumber)
+                .collect(Collectors.toList()));
+        Assertions.assertTrue(requests.get(2).isLastPart());
+        ArgumentCaptor<List<PartETag>> eTags = ArgumentCaptor.forClass(List.class);
+        verify(destination).commitMultipartUpload(eq("file.bin"), eTags.capture(), eq("upload-id"));
+        Assertions.assertEquals(3, eTags.getValue().size());
+    }
+
+    @Test
+    public void transientPartFailureShouldOnlyResendThePart(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE + 1024);
+
+        AtomicInteger firstPartAttempts = new AtomicInteger();
+        List<Integer> readSizes = new CopyOnWriteArrayList<>();
+        Destination destination = mockDestination(request -> {
+            byte[] data = new byte[PART_SIZE];
+            int read = 0;
+            int count;
+            while ((count = request.getInputStream().read(data, read, data.length - read)) > 0) {
+                read += count;
+            }
+            if (request.getPartNumber() == 1) {
+                readSizes.add(read);
+                if (firstPartAttempts.incrementAndGet() == 1) {
+                    AmazonS3Exception error = new AmazonS3Exception("We encountered an internal error");
+                    error.setStatusCode(500);
+                    throw new DestinationOperationException("Fail to upload multipart", error);
+                }
+            }
+        });
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.upload(file, "file.bin");
+
+        Assertions.assertEquals(2, firstPartAttempts.get());
+        Assertions.assertEquals(Arrays.asList(PART_SIZE, PART_SIZE), readSizes);
+        verify(destination, times(1)).getAlreadyUploadedParts(anyString());
+        ArgumentCaptor<List<PartETag>> eTags = ArgumentCaptor.forClass(List.class);
+        verify(destination).commitMultipartUpload(eq("file.bin"), eTags.capture(), eq("upload-id"));
+        Assertions.assertEquals(2, eTags.getValue().size());
+    }
+
+    @Test
+    public void permanentPartFailureShouldFailTheFile(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE + 1024);
+
+        AtomicInteger attempts = new AtomicInteger();
+        Destination destination = mockDestination(request -> {
+            if (request.getPartNumber() == 2) {
+                attempts.incrementAndGet();
+                AmazonS3Exception error = new AmazonS3Exception("The specified upload does not exist");
+                error.setStatusCode(404);
+                throw new DestinationOperationException("Fail to upload multipart", error);
+            }
+        });
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        Assertions.assertThrows(PartUploadException.class, () -> strategy.upload(file, "file.bin"));
+
+        Assertions.assertEquals(1, attempts.get());
+        verify(destination, never()).commitMultipartUpload(anyString(), anyList(), anyString());
+    }
+
+    @Test
+    public void stragglingPartShouldBeSentAgain(@TempDir Path folder) throws Exception {
+        File file = createRandomFile(folder, PART_SIZE * 2 + 1024);
+
+        AtomicInteger firstPartAttempts = new AtomicInteger();
+        AtomicBoolean stragglerCancelled = new AtomicBoolean();
+        Destination destination = mockDestination(request -> {
+            if (request.getPartNumber() == 1 && firstPartAttempts.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(30_000);
+                } catch (InterruptedException ex) {
+                    stragglerCancelled.set(true);
+                    throw ex;
+                }
+            }
+        });
+
+        MultipartUploadFileUploadingStrategy strategy = new MultipartUploadFileUploadingStrategy(destination);
+        strategy.setHedging(new PartHedging(0.5, 1, 10, 0));
+        long start = System.nanoTime();
+        strategy.upload(file, "file.bin");
+
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20));
+        Assertions.assertEquals(2, firstPartAttempts.get());
+        ArgumentCaptor<List<PartETag>> eTags = ArgumentCaptor.forClass(List.class);
+        verify(destination).commitMultipartUpload(eq("file.bin"), eTags.capture(), eq("upload-id"));
+        Assertions.assertEquals(Arrays.asList(1, 2, 3), eTags.getValue().stream()
+                .map(PartETag::getPartNumber)
+                .collect(Collectors.toList()));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!stragglerCancelled.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(stragglerCancelled.get());
+    }
+
+    private interface PartUploadAction {
+        void onUpload(UploadPartRequest request) throws Exception;
+    }
+
+    private static Destination mockDestination(PartUploadAction action) throws DestinationOperationException {
+        Destination destination = mock(Destination.class);
+        when(destination.initUploading(anyString())).thenReturn("upload-id");
+        when(destination.createUploadPartRequest(anyString())).thenAnswer(invocation -> new UploadPartRequest());
+        when(destination.uploadMultiPart(any())).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            action.onUpload(request);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return new MultipartUploadResult(request, result);
+        });
+        return destination;
+    }
+
+    private static File createRandomFile(Path folder, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random().nextBytes(content);
+        return Files.write(folder.resolve("file.bin"), content).toFile();
     }
 }
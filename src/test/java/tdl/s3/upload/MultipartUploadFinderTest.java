@@ -2,12 +2,15 @@ package tdl.s3.upload;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.MultipartUpload;
 import com.amazonaws.services.s3.model.MultipartUploadListing;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import tdl.s3.sync.destination.DestinationOperationException;
 
+import java.util.Collections;
+
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
@@ -80,4 +83,29 @@ public class MultipartUploadFinderTest {
         MultipartUploadFinder finder = new MultipartUploadFinder(awsClient, bucket, prefix);
         finder.getAlreadyStartedMultipartUploads();
     }
+
+    @Test
+    public void findOrNullShouldListUploadsOnceUntilInvalidated() throws DestinationOperationException {
+        AmazonS3 awsClient = mock(AmazonS3.class);
+        MultipartUpload upload = new MultipartUpload();
+        upload.setKey("prefix/a.mp4");
+        upload.setUploadId("upload-a");
+        MultipartUploadListing listing = mock(MultipartUploadListing.class);
+        when(listing.getMultipartUploads()).thenReturn(Collections.singletonList(upload));
+        when(awsClient.listMultipartUploads(any())).thenReturn(listing);
+
+        MultipartUploadFinder finder = new MultipartUploadFinder(awsClient, "bucket", "prefix");
+        Assertions.assertEquals("upload-a", finder.findOrNull("prefix/a.mp4").getUploadId());
+        Assertions.assertNull(finder.findOrNull("prefix/b.mp4"));
+
+        finder.uploadStarted("prefix/b.mp4", "upload-b");
+        Assertions.assertEquals("upload-b", finder.findOrNull("prefix/b.mp4").getUploadId());
+        finder.uploadCompleted("prefix/a.mp4");
+        Assertions.assertNull(finder.findOrNull("prefix/a.mp4"));
+        verify(awsClient, times(1)).listMultipartUploads(any());
+
+        finder.invalidate();
+        Assertions.assertEquals("upload-a", finder.findOrNull("prefix/a.mp4").getUploadId());
+        verify(awsClient, times(2)).listMultipartUploads(any());
+    }
 }
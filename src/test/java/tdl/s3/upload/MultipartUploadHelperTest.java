@@ -1,7 +1,12 @@
 package tdl.s3.upload;
 
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+
 import static net.trajano.commons.testing.UtilityClassTestUtil.assertUtilityClassWellDefined;
 
 public class MultipartUploadHelperTest {
@@ -10,4 +15,20 @@ public class MultipartUploadHelperTest {
     public void shouldSatisfyContractForUtilityClass() {
         assertUtilityClassWellDefined(MultipartUploadHelper.class);
     }
+
+    @Test
+    public void getPartSizeShouldReturnSizeOfUploadedParts() {
+        PartListing listing = new PartListing();
+        listing.setParts(Arrays.asList(createPart(1, 8 * 1024 * 1024), createPart(3, 8 * 1024 * 1024)));
+        Assertions.assertEquals(8 * 1024 * 1024, MultipartUploadHelper.getPartSize(listing));
+
+        Assertions.assertEquals(0, MultipartUploadHelper.getPartSize(new PartListing()));
+    }
+
+    private static PartSummary createPart(int partNumber, long size) {
+        PartSummary part = new PartSummary();
+        part.setPartNumber(partNumber);
+        part.setSize(size);
+        return part;
+    }
 }
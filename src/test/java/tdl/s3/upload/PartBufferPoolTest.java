@@ -0,0 +1,81 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class PartBufferPoolTest {
+
+    private static final int ONE_MEGABYTE = 1024 * 1024;
+
+    @Test
+    public void constructorShouldThrowExceptionOnInvalidBudget() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PartBufferPool(0));
+    }
+
+    @Test
+    public void acquireShouldReuseReleasedBufferOfTheSameSizeClass() throws Exception {
+        PartBufferPool pool = new PartBufferPool(10 * ONE_MEGABYTE);
+        PartBuffer first = pool.acquire(5 * ONE_MEGABYTE);
+        byte[] bytes = first.getBytes();
+        first.release();
+
+        PartBuffer second = pool.acquire(5 * ONE_MEGABYTE - 10);
+        Assertions.assertSame(bytes, second.getBytes());
+        Assertions.assertEquals(5 * ONE_MEGABYTE - 10, second.getLength());
+        Assertions.assertEquals(5 * ONE_MEGABYTE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void releaseShouldOnlyReturnBufferOnce() throws Exception {
+        PartBufferPool pool = new PartBufferPool(10 * ONE_MEGABYTE);
+        PartBuffer buffer = pool.acquire(ONE_MEGABYTE);
+        try (InputStream stream = buffer.asInputStream()) {
+            Assertions.assertEquals(0, stream.read());
+        }
+        buffer.release();
+        Assertions.assertEquals(ONE_MEGABYTE, pool.getIdleBytes());
+    }
+
+    @Test
+    public void acquireShouldBlockUntilBudgetIsAvailable() throws Exception {
+        PartBufferPool pool = new PartBufferPool(5 * ONE_MEGABYTE);
+        PartBuffer first = pool.acquire(5 * ONE_MEGABYTE);
+
+        CompletableFuture<PartBuffer> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire(5 * ONE_MEGABYTE);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+
+        first.release();
+        Assertions.assertSame(first.getBytes(), second.get(1, TimeUnit.SECONDS).getBytes());
+    }
+
+    @Test
+    public void acquireShouldEvictIdleBuffersOfOtherSizeClasses() throws Exception {
+        PartBufferPool pool = new PartBufferPool(6 * ONE_MEGABYTE);
+        pool.acquire(ONE_MEGABYTE).release();
+        pool.acquire(5 * ONE_MEGABYTE).release();
+
+        pool.acquire(6 * ONE_MEGABYTE);
+        Assertions.assertEquals(6 * ONE_MEGABYTE, pool.getAllocatedBytes());
+        Assertions.assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void acquireShouldAllowPartLargerThanBudgetWhenNothingElseIsAllocated() throws Exception {
+        PartBufferPool pool = new PartBufferPool(ONE_MEGABYTE);
+        PartBuffer buffer = pool.acquire(5 * ONE_MEGABYTE);
+        Assertions.assertEquals(5 * ONE_MEGABYTE, buffer.getLength());
+        buffer.release();
+        Assertions.assertEquals(0, pool.getAllocatedBytes());
+    }
+}
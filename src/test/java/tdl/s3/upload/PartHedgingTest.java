@@ -0,0 +1,42 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class PartHedgingTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void shouldNotHedgeBeforeEnoughParts() {
+        PartHedging hedging = new PartHedging(0.9, 3, 10, 0);
+        hedging.recordPartUpload(MB, TimeUnit.SECONDS.toNanos(1));
+        hedging.recordPartUpload(MB, TimeUnit.SECONDS.toNanos(1));
+        Assertions.assertEquals(-1, hedging.getHedgeDelayNanos(MB));
+    }
+
+    @Test
+    public void hedgeDelayShouldFollowThePercentileScaledToThePartSize() {
+        PartHedging hedging = new PartHedging(0.9, 10, 10, 0);
+        for (int seconds = 1; seconds <= 10; seconds++) {
+            hedging.recordPartUpload(MB, TimeUnit.SECONDS.toNanos(seconds));
+        }
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(9), hedging.getHedgeDelayNanos(MB), TimeUnit.MILLISECONDS.toNanos(1));
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(18), hedging.getHedgeDelayNanos(2 * MB), TimeUnit.MILLISECONDS.toNanos(1));
+
+        //Oldest parts leave the window
+        for (int i = 0; i < 10; i++) {
+            hedging.recordPartUpload(MB, TimeUnit.SECONDS.toNanos(1));
+        }
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(1), hedging.getHedgeDelayNanos(MB), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void hedgeDelayShouldNotGoBelowTheMinimum() {
+        PartHedging hedging = new PartHedging(0.5, 1, 10, 2000);
+        hedging.recordPartUpload(MB, TimeUnit.MILLISECONDS.toNanos(10));
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(2), hedging.getHedgeDelayNanos(MB));
+    }
+}
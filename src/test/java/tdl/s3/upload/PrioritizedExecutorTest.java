@@ -0,0 +1,47 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PrioritizedExecutorTest {
+
+    @Test
+    public void urgentTasksShouldOvertakeWaitingOnes() throws InterruptedException {
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        PrioritizedExecutor executor = new PrioritizedExecutor(service);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0);
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        executor.withPriority(10).execute(() -> order.add("archive-1"));
+        executor.withPriority(10).execute(() -> order.add("archive-2"));
+        executor.withPriority(0).execute(() -> order.add("recording"));
+        release.countDown();
+        service.shutdown();
+        Assertions.assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(Arrays.asList("recording", "archive-1", "archive-2"), order);
+    }
+
+    @Test
+    public void justFinishedFilesShouldGoFirst() {
+        UploadPriorityPolicy policy = UploadPriorities.justFinishedFirst();
+        UploadCandidate finishedRecording = new UploadCandidate(null, "recording.mp4", true, 100, true);
+        UploadCandidate archive = new UploadCandidate(null, "archive.mp4", true, 0, false);
+        Assertions.assertTrue(policy.getPriority(finishedRecording) < policy.getPriority(archive));
+    }
+}
@@ -0,0 +1,55 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SharedUploadSchedulerTest {
+
+    @Test
+    public void busyJobsShouldShareThreadsByWeight() throws InterruptedException {
+        SharedUploadScheduler scheduler = new SharedUploadScheduler(1);
+        Executor heavy = scheduler.register("heavy", 2);
+        Executor light = scheduler.register("light", 1);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        heavy.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            heavy.execute(() -> order.add("heavy"));
+            light.execute(() -> order.add("light"));
+        }
+        release.countDown();
+        scheduler.shutdown();
+
+        Assertions.assertEquals(12, order.size());
+        long heavyInFirstSix = order.subList(0, 6).stream()
+                .filter("heavy"::equals)
+                .count();
+        Assertions.assertEquals(4, heavyInFirstSix);
+    }
+
+    @Test
+    public void submittingAfterShutdownShouldBeRejected() {
+        SharedUploadScheduler scheduler = new SharedUploadScheduler(1);
+        Executor job = scheduler.register("job", 1);
+        scheduler.shutdown();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> job.execute(() -> { }));
+    }
+}
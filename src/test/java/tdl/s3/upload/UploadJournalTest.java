@@ -0,0 +1,67 @@
+package tdl.s3.upload;
+
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+public class UploadJournalTest {
+
+    @Test
+    public void journaledUploadShouldBeReadBack(@TempDir Path folder) throws IOException {
+        UploadJournal journal = new UploadJournal(folder);
+        journal.uploadStarted("dir/file.mp4", "upload-id", 1024);
+        journal.partUploaded("dir/file.mp4", 1, 0, 1024, "etag1");
+        journal.partUploaded("dir/file.mp4", 2, 1024, 1024, "etag2");
+        journal.release("dir/file.mp4");
+
+        UploadJournal.Entry entry = new UploadJournal(folder).read("dir/file.mp4").get();
+        Assertions.assertEquals("upload-id", entry.getUploadId());
+        Assertions.assertEquals(1024, entry.getPartSize());
+        PartListing listing = entry.toPartListing();
+        Assertions.assertEquals("upload-id", listing.getUploadId());
+        Assertions.assertEquals("etag1,etag2", listing.getParts().stream()
+                .map(PartSummary::getETag)
+                .collect(Collectors.joining(",")));
+    }
+
+    @Test
+    public void tornLastRecordShouldBeIgnored(@TempDir Path folder) throws IOException {
+        UploadJournal journal = new UploadJournal(folder);
+        journal.uploadStarted("file.mp4", "upload-id", 1024);
+        journal.partUploaded("file.mp4", 1, 0, 1024, "etag1");
+        journal.release("file.mp4");
+        Path journalFile = Files.list(folder).findFirst().get();
+        Files.write(journalFile, "part 2 1024 1024 etag2".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        UploadJournal.Entry entry = journal.read("file.mp4").get();
+        Assertions.assertEquals(1, entry.toPartListing().getParts().size());
+    }
+
+    @Test
+    public void discardedUploadShouldBeForgotten(@TempDir Path folder) throws IOException {
+        UploadJournal journal = new UploadJournal(folder);
+        journal.uploadStarted("file.mp4", "upload-id", 1024);
+        journal.discard("file.mp4");
+
+        Assertions.assertFalse(journal.read("file.mp4").isPresent());
+        Assertions.assertEquals(Collections.emptyList(), Files.list(folder).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void disabledJournalShouldRecordNothing() throws IOException {
+        UploadJournal journal = UploadJournal.disabled();
+        journal.uploadStarted("file.mp4", "upload-id", 1024);
+        Assertions.assertFalse(journal.isEnabled());
+        Assertions.assertFalse(journal.read("file.mp4").isPresent());
+    }
+}
@@ -0,0 +1,98 @@
+package tdl.s3.upload;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class UploadPrioritiesTest {
+
+    @Test
+    public void fifoShouldKeepQueueOrder(@TempDir Path folder) throws IOException {
+        List<UploadCandidate> candidates = Arrays.asList(
+                candidate(folder, "b.mp4", 20, true, 0, false),
+                candidate(folder, "a.mp4", 10, true, 0, false));
+
+        Assertions.assertEquals(Arrays.asList("b.mp4", "a.mp4"), order(UploadPriorities.fifo(), candidates));
+    }
+
+    @Test
+    public void justFinishedFirstShouldPreferStartedUploadsOfFinishedFiles(@TempDir Path folder) throws IOException {
+        List<UploadCandidate> candidates = Arrays.asList(
+                candidate(folder, "new.mp4", 10, true, 0, false),
+                candidate(folder, "growing.mp4", 10, false, 5, true),
+                candidate(folder, "ended.mp4", 10, true, 5, true));
+
+        Assertions.assertEquals(Arrays.asList("ended.mp4", "new.mp4", "growing.mp4"),
+                order(UploadPriorities.justFinishedFirst(), candidates));
+    }
+
+    @Test
+    public void fallingBehindFirstShouldPreferGrowingFilesFurthestBehind(@TempDir Path folder) throws IOException {
+        List<UploadCandidate> candidates = Arrays.asList(
+                candidate(folder, "finished.mp4", 100, true, 0, false),
+                candidate(folder, "close.mp4", 100, false, 90, true),
+                candidate(folder, "behind.mp4", 100, false, 10, true));
+
+        Assertions.assertEquals(Arrays.asList("behind.mp4", "close.mp4", "finished.mp4"),
+                order(UploadPriorities.fallingBehindFirst(), candidates));
+    }
+
+    @Test
+    public void smallestFirstShouldOrderBySize(@TempDir Path folder) throws IOException {
+        List<UploadCandidate> candidates = Arrays.asList(
+                candidate(folder, "large.mp4", 300, true, 0, false),
+                candidate(folder, "small.mp4", 100, true, 0, false),
+                candidate(folder, "medium.mp4", 200, true, 0, false));
+
+        Assertions.assertEquals(Arrays.asList("small.mp4", "medium.mp4", "large.mp4"),
+                order(UploadPriorities.smallestFirst(), candidates));
+    }
+
+    @Test
+    public void oldestFirstShouldOrderByModificationTime(@TempDir Path folder) throws IOException {
+        UploadCandidate recent = candidate(folder, "recent.mp4", 10, true, 0, false);
+        UploadCandidate old = candidate(folder, "old.mp4", 10, true, 0, false);
+        Assertions.assertTrue(recent.getFile().setLastModified(2_000_000_000_000L));
+        Assertions.assertTrue(old.getFile().setLastModified(1_000_000_000_000L));
+
+        Assertions.assertEquals(Arrays.asList("old.mp4", "recent.mp4"),
+                order(UploadPriorities.oldestFirst(), Arrays.asList(recent, old)));
+    }
+
+    @Test
+    public void pathPatternsShouldUseTheFirstMatchingPattern(@TempDir Path folder) throws IOException {
+        LinkedHashMap<String, Long> priorityByRegex = new LinkedHashMap<>();
+        priorityByRegex.put("live/.*", 0L);
+        priorityByRegex.put(".*\\.mp4", 5L);
+        UploadPriorityPolicy policy = UploadPriorities.pathPatterns(priorityByRegex, 10);
+
+        Assertions.assertEquals(0, policy.getPriority(candidate(folder, "live/cam.mp4", 10, true, 0, false)));
+        Assertions.assertEquals(5, policy.getPriority(candidate(folder, "archive.mp4", 10, true, 0, false)));
+        Assertions.assertEquals(10, policy.getPriority(candidate(folder, "notes.txt", 10, true, 0, false)));
+    }
+
+    private static UploadCandidate candidate(Path folder, String remotePath, int size, boolean isWritingFinished,
+                                             long uploadedSize, boolean isUploadStarted) throws IOException {
+        Path path = folder.resolve(remotePath);
+        Files.createDirectories(path.getParent());
+        File file = Files.write(path, new byte[size]).toFile();
+        return new UploadCandidate(file, remotePath, isWritingFinished, uploadedSize, isUploadStarted);
+    }
+
+    private static List<String> order(UploadPriorityPolicy policy, List<UploadCandidate> candidates) {
+        return candidates.stream()
+                .sorted(Comparator.comparingLong(policy::getPriority))
+                .map(UploadCandidate::getRemotePath)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,101 @@
+package tdl.s3.upload;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import tdl.s3.sync.destination.DestinationOperationException;
+
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static tdl.s3.upload.UploadRetryPolicy.FailureKind.PERMANENT;
+import static tdl.s3.upload.UploadRetryPolicy.FailureKind.THROTTLED;
+import static tdl.s3.upload.UploadRetryPolicy.FailureKind.TRANSIENT;
+
+public class UploadRetryPolicyTest {
+
+    @Test
+    public void failuresShouldBeClassified() {
+        Assertions.assertEquals(THROTTLED, UploadRetryPolicy.classify(
+                new DestinationOperationException("Fail to upload multipart", s3Exception(503, "SlowDown"))));
+        Assertions.assertEquals(TRANSIENT, UploadRetryPolicy.classify(
+                new DestinationOperationException("Fail to upload multipart", s3Exception(500, "InternalError"))));
+        Assertions.assertEquals(TRANSIENT, UploadRetryPolicy.classify(
+                new SdkClientException("Unable to execute HTTP request", new SocketTimeoutException("Read timed out"))));
+        Assertions.assertEquals(PERMANENT, UploadRetryPolicy.classify(
+                new DestinationOperationException("Fail to upload multipart", s3Exception(403, "AccessDenied"))));
+        Assertions.assertEquals(PERMANENT, UploadRetryPolicy.classify(new DestinationOperationException("Message")));
+    }
+
+    @Test
+    public void retriesShouldStopAtTheFirstExhaustedBudget() {
+        UploadRetryPolicy policy = new UploadRetryPolicy(2, 0, 0, 3, 4);
+        UploadRetryPolicy.FileBudget file = policy.newFileBudget();
+
+        Assertions.assertFalse(policy.shouldRetry(PERMANENT, 0, file));
+        Assertions.assertTrue(policy.shouldRetry(TRANSIENT, 0, file));
+        Assertions.assertTrue(policy.shouldRetry(TRANSIENT, 1, file));
+        //Per part
+        Assertions.assertFalse(policy.shouldRetry(TRANSIENT, 2, file));
+        //Per file
+        Assertions.assertTrue(policy.shouldRetry(THROTTLED, 0, file));
+        Assertions.assertFalse(policy.shouldRetry(THROTTLED, 0, file));
+        //Per session
+        UploadRetryPolicy.FileBudget otherFile = policy.newFileBudget();
+        Assertions.assertTrue(policy.shouldRetry(TRANSIENT, 0, otherFile));
+        Assertions.assertFalse(policy.shouldRetry(TRANSIENT, 0, otherFile));
+        Assertions.assertEquals(0, policy.getSessionRetriesLeft());
+    }
+
+    @Test
+    public void retryRefusedBySessionShouldKeepFileBudget() {
+        Clock clock = mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        UploadRetryPolicy policy = new UploadRetryPolicy(5, 0, 0, 5, 1, clock);
+        Assertions.assertTrue(policy.shouldRetry(TRANSIENT, 0, policy.newFileBudget()));
+
+        UploadRetryPolicy.FileBudget file = policy.newFileBudget();
+        Assertions.assertFalse(policy.shouldRetry(TRANSIENT, 0, file));
+        Assertions.assertEquals(5, file.getRetriesLeft());
+    }
+
+    @Test
+    public void sessionBudgetShouldRefillOverTime() {
+        Clock clock = mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        UploadRetryPolicy policy = new UploadRetryPolicy(5, 0, 0, 100, 10, clock);
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(policy.shouldRetry(TRANSIENT, 0, policy.newFileBudget()));
+        }
+        Assertions.assertFalse(policy.shouldRetry(TRANSIENT, 0, policy.newFileBudget()));
+
+        when(clock.millis()).thenReturn(TimeUnit.MINUTES.toMillis(5));
+        Assertions.assertEquals(5, policy.getSessionRetriesLeft());
+        when(clock.millis()).thenReturn(TimeUnit.HOURS.toMillis(1));
+        Assertions.assertEquals(10, policy.getSessionRetriesLeft());
+    }
+
+    @Test
+    public void delayShouldGrowWithJitterUpToTheMaximum() {
+        UploadRetryPolicy policy = new UploadRetryPolicy(10, 100, 1000, 10, 10);
+        for (int i = 0; i < 20; i++) {
+            long first = policy.getDelayMillis(0, TRANSIENT);
+            Assertions.assertTrue(first >= 50 && first <= 100, "First delay " + first);
+            long throttled = policy.getDelayMillis(0, THROTTLED);
+            Assertions.assertTrue(throttled >= 100 && throttled <= 200, "Throttled delay " + throttled);
+            long last = policy.getDelayMillis(40, TRANSIENT);
+            Assertions.assertTrue(last >= 500 && last <= 1000, "Last delay " + last);
+        }
+    }
+
+    private static AmazonS3Exception s3Exception(int status, String errorCode) {
+        AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+        exception.setStatusCode(status);
+        exception.setErrorCode(errorCode);
+        return exception;
+    }
+}